@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast the proxy takes on new connections during a connection storm.
+ * A local load generator runs many client threads that each, in a loop, open
+ * a connection, send one GET with Connection: close, read the response and
+ * close the connection, so every request pays for an accept. The proxy sits in front of a
+ * LocalUpstreamProxy and LocalOriginServer, and is run once per combination of
+ * mode and proxy.listen.acceptors. Reported are connections per second, the
+ * time to connect and the time to the end of the response, and failures.
+ *
+ * Arguments are key=value pairs:
+ * modes=thread,nio acceptors=1,4 clients=128 seconds=5 backlog=1024
+ */
+public class ConnectionStormBenchmark {
+
+    private static final byte[] REQUEST = ("GET http://proxy-main-entry/bytes/64 HTTP/1.1\r\n"
+            + "Host: proxy-main-entry\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String[] modes = options.getOrDefault("modes", "thread,nio").split(",");
+        String[] acceptorCounts = options.getOrDefault("acceptors", "1,4").split(",");
+        int clients = Integer.parseInt(options.getOrDefault("clients", "128"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "5"));
+
+        // The proxy logs every request, keep the results readable
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (LocalOriginServer origin = new LocalOriginServer();
+             LocalUpstreamProxy upstream = new LocalUpstreamProxy(origin.getAddress())) {
+            System.setProperty("proxy.console", "false");
+            System.setProperty("proxy.admin.port", "-1");
+            // Every benchmark connection comes from the same loopback address
+            System.setProperty("proxy.admission.maxConnectionsPerClient", "0");
+            System.setProperty("proxy.accesslog.enabled", "false");
+            System.setProperty("proxy.upstreams", "127.0.0.1:" + upstream.getPort());
+            System.setProperty("proxy.listen", "127.0.0.1:0");
+            System.setProperty("proxy.listen.backlog", options.getOrDefault("backlog", "1024"));
+            System.setProperty("proxy.executor.poolSize", String.valueOf(Math.max(512, clients * 2)));
+
+            results.printf("%-7s %9s %10s %13s %13s %14s %9s%n",
+                    "mode", "acceptors", "conn/s", "connect p50", "connect p99", "response p99", "failures");
+            for (String mode : modes) {
+                for (String acceptors : acceptorCounts) {
+                    run(results, mode.trim(), Integer.parseInt(acceptors.trim()), clients, seconds);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(PrintStream results, String mode, int acceptors, int clients, int seconds)
+            throws Exception {
+        System.setProperty("proxy.mode", mode);
+        System.setProperty("proxy.listen.acceptors", String.valueOf(acceptors));
+        Proxy proxy = new Proxy(0);
+        Thread listener = new Thread(proxy::listen, "bench-listener");
+        listener.setDaemon(true);
+        listener.start();
+        int port = proxy.getPort();
+
+        // Warm up so JIT compilation does not count against the first run
+        storm(port, clients, Math.max(1, seconds / 5));
+        Storm storm = storm(port, clients, seconds);
+        proxy.close();
+
+        results.printf("%-7s %9d %10.0f %10.2f ms %10.2f ms %11.2f ms %9d%n", mode, acceptors,
+                storm.completed.sum() / (double) seconds,
+                storm.connect.getQuantileMicros(0.5) / 1000.0, storm.connect.getQuantileMicros(0.99) / 1000.0,
+                storm.response.getQuantileMicros(0.99) / 1000.0, storm.failures.sum());
+    }
+
+    /**
+     * What one storm measured
+     */
+    private static final class Storm {
+        final LongAdder completed = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram response = new LatencyHistogram();
+    }
+
+    /**
+     * Runs the load generator: every client thread starts at once and opens
+     * connections back to back until the time is up
+     */
+    private static Storm storm(int port, int clients, int seconds) throws InterruptedException {
+        Storm storm = new Storm();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                byte[] buffer = new byte[4096];
+                while (System.nanoTime() - deadline[0] < 0) {
+                    long started = System.nanoTime();
+                    try (Socket socket = new Socket("127.0.0.1", port)) {
+                        long connected = System.nanoTime();
+                        storm.connect.recordNanos(connected - started);
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(10000);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(REQUEST);
+                        out.flush();
+                        readResponse(socket.getInputStream(), buffer);
+                        storm.response.recordNanos(System.nanoTime() - started);
+                        storm.completed.increment();
+                    } catch (IOException e) {
+                        storm.failures.increment();
+                    }
+                }
+            }, "storm-client-" + i);
+            threads[i].start();
+        }
+        deadline[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return storm;
+    }
+
+    /**
+     * Reads a response framed by Content-Length. The whole body is read rather than
+     * waiting for the end of the stream: in nio mode the connection stays open as
+     * long as the one to the upstream, which LocalOriginServer keeps alive.
+     */
+    private static void readResponse(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int headEnd = -1;
+        while (headEnd < 0) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0 || total + read == buffer.length) {
+                throw new IOException("Unexpected response");
+            }
+            total += read;
+            headEnd = new String(buffer, 0, total, StandardCharsets.ISO_8859_1).indexOf("\r\n\r\n");
+        }
+        String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1);
+        int lengthAt = head.toLowerCase(Locale.ROOT).indexOf("\r\ncontent-length:");
+        if (!head.startsWith("HTTP/1.1 2") || lengthAt < 0) {
+            throw new IOException("Unexpected response");
+        }
+        int lineEnd = head.indexOf("\r\n", lengthAt + 2);
+        long remaining = Long.parseLong(head.substring(lengthAt + 17, lineEnd < 0 ? head.length() : lineEnd).trim())
+                - (total - headEnd - 4);
+        while (remaining > 0) {
+            int read = in.read(buffer);
+            if (read < 0) {
+                throw new IOException("Response ended early");
+            }
+            remaining -= read;
+        }
+    }
+}
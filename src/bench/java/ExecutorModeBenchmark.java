@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the ways the proxy can service connections.
+ * For each mode a Proxy is started against a LocalUpstreamProxy and two things
+ * are measured: how many CONNECT tunnels per second can be opened, used once
+ * and closed, and how much memory and how many threads each open tunnel holds.
+ *
+ * Arguments are key=value pairs:
+ * modes=virtual,pool[,nio] tunnels=500 seconds=10 concurrency=32 poolSize=20000
+ */
+public class ExecutorModeBenchmark {
+
+    private static final byte[] PAYLOAD = new byte[1024];
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String[] modes = options.getOrDefault("modes", "virtual,pool").split(",");
+        int tunnels = Integer.parseInt(options.getOrDefault("tunnels", "500"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+
+        // The proxy logs every request, keep the results readable
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (LocalUpstreamProxy upstream = new LocalUpstreamProxy()) {
+            System.setProperty("proxy.console", "false");
+            System.setProperty("proxy.admin.port", "-1");
+            // Every benchmark connection comes from the same loopback address
+            System.setProperty("proxy.admission.maxConnectionsPerClient", "0");
+            System.setProperty("proxy.upstreams", "127.0.0.1:" + upstream.getPort());
+            // Large enough that the pool measures thread cost rather than rejections
+            System.setProperty("proxy.executor.poolSize", options.getOrDefault("poolSize", "20000"));
+
+            results.printf("%-8s %14s %16s %16s %14s%n",
+                    "mode", "conn/s", "heap B/tunnel", "rss B/tunnel", "threads/tunnel");
+            for (String mode : modes) {
+                runMode(results, mode.trim(), tunnels, seconds, concurrency);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void runMode(PrintStream results, String mode, int tunnels, int seconds, int concurrency)
+            throws Exception {
+        System.setProperty("proxy.mode", mode.equals("nio") ? "nio" : "thread");
+        System.setProperty("proxy.executor.virtual", String.valueOf(mode.equals("virtual")));
+
+        Proxy proxy = new Proxy(0);
+        Thread listener = new Thread(proxy::listen, "bench-listener");
+        listener.setDaemon(true);
+        listener.start();
+        int port = proxy.getPort();
+
+        // Warm up so JIT compilation does not count against the first mode
+        openAndCloseTunnels(port, Math.max(1, seconds / 5), concurrency);
+        double connectionsPerSecond = openAndCloseTunnels(port, seconds, concurrency);
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = Thread.activeCount();
+
+        List<Socket> open = new ArrayList<>();
+        for (int i = 0; i < tunnels; i++) {
+            open.add(openTunnel(port));
+        }
+        long heapPerTunnel = (usedHeap() - heapBefore) / tunnels;
+        long rssPerTunnel = rssBefore < 0 ? -1 : (residentSetSize() - rssBefore) / tunnels;
+        double threadsPerTunnel = (double) (Thread.activeCount() - threadsBefore) / tunnels;
+
+        for (Socket socket : open) {
+            socket.close();
+        }
+        proxy.close();
+
+        results.printf("%-8s %14.0f %16d %16d %14.2f%n",
+                mode, connectionsPerSecond, heapPerTunnel, rssPerTunnel, threadsPerTunnel);
+    }
+
+    /**
+     * Opens, uses and closes tunnels from several client threads for a fixed time
+     *
+     * @return tunnels completed per second
+     */
+    private static double openAndCloseTunnels(int port, int seconds, int concurrency) throws InterruptedException {
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] clients = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            clients[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        openTunnel(port).close();
+                        completed.incrementAndGet();
+                    } catch (IOException e) {
+                        // Counted as not completed
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return completed.get() / (double) seconds;
+    }
+
+    /**
+     * Opens a tunnel through the proxy and sends one payload through it and back,
+     * so both relay directions are running when this returns
+     */
+    private static Socket openTunnel(int port) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("CONNECT 127.0.0.1:443 HTTP/1.1\r\nHost: 127.0.0.1:443\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            readHead(in);
+            out.write(PAYLOAD);
+            out.flush();
+            int received = 0;
+            byte[] buffer = new byte[PAYLOAD.length];
+            while (received < PAYLOAD.length) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Tunnel closed early");
+                }
+                received += read;
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void readHead(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed before response");
+            }
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return resident set size in bytes, or -1 where /proc is not available
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,592 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the whole proxy with production-like load, as opposed to the
+ * microbenchmarks of single code paths.
+ * By default a Proxy is started in this JVM in front of local stand-ins for
+ * the upstream proxies: proxy.upstreams lists one LocalUpstreamProxy per
+ * upstream, all relaying to one LocalOriginServer, and some of them can be
+ * made to drop a share of their connections. With target=host:port the load
+ * goes to a proxy that is already running instead, using its own upstreams.
+ *
+ * The load is open-loop: every request has a time it is due to start, taken
+ * either from a fixed rate and a mix of GETs and CONNECT tunnels with
+ * weighted body sizes, or from the timestamps of a recorded access log.
+ * Latency is measured from that due time rather than from when the request
+ * was actually sent, so requests held up behind a stalled proxy count the
+ * time they waited and the percentiles are free of coordinated omission. How
+ * far sends fell behind schedule is reported too; a large lag means the
+ * generator itself ran short of connections. A share of clients can read
+ * their responses slowly.
+ *
+ * GETs reuse their worker's kept-alive connection, tunnels are opened, have
+ * their payload echoed back by the upstream stand-in in 16 KB round trips,
+ * and are closed. When replaying against the stand-ins each GET asks the
+ * origin for as many bytes as the logged response had; against a real proxy
+ * the logged URLs are requested as they are, and tunnels are only opened and
+ * closed as nothing at the far end echoes.
+ *
+ * Arguments are key=value pairs:
+ * rate=200 seconds=10 warmup=2 mix=get:90,connect:10 sizes=1024:60,16384:30,1048576:10
+ * connections=256 slowPercent=0 slowBytesPerSecond=65536 upstreams=4 failingUpstreams=0
+ * failurePercent=0 mode=thread host=proxy-main-entry timeout=30
+ * replay=access.log speed=1 target=host:port
+ */
+public class LoadGenerator {
+
+    /**
+     * Largest body the origin stand-in serves
+     */
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+
+    /**
+     * Size of the round trips a tunnel's payload is echoed in
+     */
+    private static final int TUNNEL_CHUNK = 16 * 1024;
+
+    /**
+     * One request of the schedule
+     */
+    private static final class Request {
+        final long dueNanos;
+        final boolean connect;
+
+        /**
+         * For a GET, the absolute URL; for a CONNECT, host:port
+         */
+        final String target;
+        final int size;
+        final boolean slow;
+
+        Request(long dueNanos, boolean connect, String target, int size, boolean slow) {
+            this.dueNanos = dueNanos;
+            this.connect = connect;
+            this.target = target;
+            this.size = size;
+            this.slow = slow;
+        }
+    }
+
+    /**
+     * What was measured for one kind of request
+     */
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder completed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int timeoutMillis;
+    private final int slowBytesPerSecond;
+    private final boolean echoTunnels;
+
+    /**
+     * From the start of the last load run until its last response
+     */
+    private long elapsedNanos;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        host = options.getOrDefault("host", "proxy-main-entry");
+        timeoutMillis = Integer.parseInt(options.getOrDefault("timeout", "30")) * 1000;
+        slowBytesPerSecond = Integer.parseInt(options.getOrDefault("slowBytesPerSecond", "65536"));
+        echoTunnels = !options.containsKey("target");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int connections = Integer.parseInt(options.getOrDefault("connections", "256"));
+        String target = options.get("target");
+        String replay = options.get("replay");
+
+        // The proxy logs every request, keep the results readable
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        if (target != null) {
+            int colon = target.lastIndexOf(':');
+            InetSocketAddress proxy = new InetSocketAddress(target.substring(0, colon),
+                    Integer.parseInt(target.substring(colon + 1)));
+            List<Request> schedule = replay != null ? replaySchedule(replay, true) : syntheticSchedule(seconds());
+            report(results, schedule, load(proxy, schedule, connections), null);
+            return;
+        }
+
+        int upstreamCount = Integer.parseInt(options.getOrDefault("upstreams", "4"));
+        int failing = Integer.parseInt(options.getOrDefault("failingUpstreams", "0"));
+        int failurePercent = Integer.parseInt(options.getOrDefault("failurePercent", "0"));
+        List<LocalUpstreamProxy> upstreams = new ArrayList<>();
+        try (LocalOriginServer origin = new LocalOriginServer()) {
+            StringBuilder upstreamList = new StringBuilder();
+            for (int i = 0; i < upstreamCount; i++) {
+                LocalUpstreamProxy upstream = new LocalUpstreamProxy(origin.getAddress());
+                if (i < failing) {
+                    upstream.setFailurePercent(failurePercent);
+                }
+                upstreams.add(upstream);
+                upstreamList.append(i == 0 ? "" : ",").append("127.0.0.1:").append(upstream.getPort());
+            }
+            System.setProperty("proxy.console", "false");
+            System.setProperty("proxy.admin.port", "-1");
+            // Every generated connection comes from the same loopback address
+            System.setProperty("proxy.admission.maxConnectionsPerClient", "0");
+            System.setProperty("proxy.accesslog.enabled", "false");
+            System.setProperty("proxy.upstreams", upstreamList.toString());
+            // The stand-ins take any host, so names from a replayed log need not resolve here
+            System.setProperty("proxy.dns.resolveLocally", "false");
+            System.setProperty("proxy.listen", "127.0.0.1:0");
+            System.setProperty("proxy.mode", options.getOrDefault("mode", "thread"));
+            System.setProperty("proxy.executor.poolSize", String.valueOf(Math.max(512, connections * 2)));
+
+            Proxy proxy = new Proxy(0);
+            Thread listener = new Thread(proxy::listen, "load-listener");
+            listener.setDaemon(true);
+            listener.start();
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", proxy.getPort());
+
+            // Warm up so JIT compilation does not count against the measured run
+            int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+            if (warmup > 0) {
+                load(address, syntheticSchedule(warmup), connections);
+            }
+            long failuresBefore = injectedFailures(upstreams);
+            List<Request> schedule = replay != null ? replaySchedule(replay, false) : syntheticSchedule(seconds());
+            Map<String, Stats> stats = load(address, schedule, connections);
+            report(results, schedule, stats, injectedFailures(upstreams) - failuresBefore);
+            proxy.close();
+        } finally {
+            for (LocalUpstreamProxy upstream : upstreams) {
+                upstream.close();
+            }
+        }
+    }
+
+    private int seconds() {
+        return Integer.parseInt(options.getOrDefault("seconds", "10"));
+    }
+
+    private static long injectedFailures(List<LocalUpstreamProxy> upstreams) {
+        long failures = 0;
+        for (LocalUpstreamProxy upstream : upstreams) {
+            failures += upstream.getFailures();
+        }
+        return failures;
+    }
+
+    /**
+     * Builds a schedule at a fixed rate, each request drawn from the mix of kinds and body sizes
+     */
+    private List<Request> syntheticSchedule(int seconds) {
+        double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        Map<String, Integer> mix = weights(options.getOrDefault("mix", "get:90,connect:10"));
+        Map<String, Integer> sizes = weights(options.getOrDefault("sizes", "1024:60,16384:30,1048576:10"));
+        int slowPercent = Integer.parseInt(options.getOrDefault("slowPercent", "0"));
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.getOrDefault("seed", "1")));
+
+        long count = (long) (rate * seconds);
+        double intervalNanos = 1e9 / rate;
+        List<Request> schedule = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            boolean connect = pick(mix, random).equalsIgnoreCase("connect");
+            int size = Math.min(MAX_BODY, Integer.parseInt(pick(sizes, random)));
+            String target = connect ? host + ":443" : "http://" + host + "/bytes/" + size;
+            schedule.add(new Request((long) (i * intervalNanos), connect, target, size,
+                    random.nextInt(100) < slowPercent));
+        }
+        return schedule;
+    }
+
+    /**
+     * Builds a schedule from an access log, keeping the gaps between requests divided by speed
+     *
+     * @param asLogged whether GETs ask for the logged URL, rather than the logged size from the origin stand-in
+     */
+    private List<Request> replaySchedule(String file, boolean asLogged) throws IOException {
+        double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+        int slowPercent = Integer.parseInt(options.getOrDefault("slowPercent", "0"));
+        SplittableRandom random = new SplittableRandom(Long.parseLong(options.getOrDefault("seed", "1")));
+        List<Request> schedule = new ArrayList<>();
+        long firstMillis = -1;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            String ts = field(line, "ts");
+            String method = field(line, "method");
+            String target = field(line, "target");
+            if (ts == null || method == null || target == null) {
+                continue;
+            }
+            long millis;
+            try {
+                millis = Instant.parse(ts).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                continue;
+            }
+            if (firstMillis < 0) {
+                firstMillis = millis;
+            }
+            String bytesOut = field(line, "bytes_out");
+            int size = bytesOut == null ? 0 : (int) Math.min(MAX_BODY, Long.parseLong(bytesOut));
+            long due = (long) (Math.max(0, millis - firstMillis) * 1_000_000L / speed);
+            boolean slow = random.nextInt(100) < slowPercent;
+            if (method.equals("CONNECT")) {
+                schedule.add(new Request(due, true, target, size, slow));
+            } else if (method.equals("GET")) {
+                if (!asLogged) {
+                    // The origin stand-in only knows how many bytes to send
+                    String logged = new URL(target).getHost();
+                    target = "http://" + (logged.isEmpty() ? host : logged) + "/bytes/" + size;
+                }
+                schedule.add(new Request(due, false, target, size, slow));
+            }
+        }
+        // A log written by several threads is only roughly in time order
+        schedule.sort((a, b) -> Long.compare(a.dueNanos, b.dueNanos));
+        return schedule;
+    }
+
+    /**
+     * @return a string or number field of an access log line, or null if absent
+     */
+    private static String field(String line, String name) {
+        String key = "\"" + name + "\":";
+        int at = line.indexOf(key);
+        if (at < 0) {
+            return null;
+        }
+        int start = at + key.length();
+        if (line.startsWith("\"", start)) {
+            int end = line.indexOf('"', start + 1);
+            return end < 0 ? null : line.substring(start + 1, end);
+        }
+        int end = start;
+        while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '}') {
+            end++;
+        }
+        String value = line.substring(start, end).trim();
+        return value.equals("null") ? null : value;
+    }
+
+    /**
+     * Parses "name:weight,..." keeping the order given
+     */
+    private static Map<String, Integer> weights(String spec) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            int colon = part.lastIndexOf(':');
+            weights.put(part.substring(0, colon).trim(), Integer.parseInt(part.substring(colon + 1).trim()));
+        }
+        return weights;
+    }
+
+    private static String pick(Map<String, Integer> weights, SplittableRandom random) {
+        int total = 0;
+        for (int weight : weights.values()) {
+            total += weight;
+        }
+        int chosen = random.nextInt(total);
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            chosen -= weight.getValue();
+            if (chosen < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Runs a schedule: each worker takes the next request, waits for it to be
+     * due and sends it, so at most the number of workers are in flight
+     *
+     * @return stats by kind, GET and CONNECT, with the lag of sends behind schedule under "lag"
+     */
+    private Map<String, Stats> load(InetSocketAddress proxy, List<Request> schedule, int workers)
+            throws InterruptedException {
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        stats.put("GET", new Stats());
+        stats.put("CONNECT", new Stats());
+        Stats lag = new Stats();
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime() + 10_000_000;
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(() -> {
+                Socket kept = null;
+                int index;
+                while ((index = next.getAndIncrement()) < schedule.size()) {
+                    Request request = schedule.get(index);
+                    long due = start + request.dueNanos;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    lag.latency.recordNanos(System.nanoTime() - due);
+                    Stats kind = stats.get(request.connect ? "CONNECT" : "GET");
+                    try {
+                        if (request.connect) {
+                            tunnel(proxy, request, kind);
+                        } else {
+                            kept = get(proxy, kept, request, kind);
+                        }
+                    } catch (IOException e) {
+                        kind.errors.increment();
+                        kept = closeQuietly(kept);
+                    }
+                    kind.latency.recordNanos(System.nanoTime() - due);
+                    kind.completed.increment();
+                }
+                closeQuietly(kept);
+            }, "load-worker-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        elapsedNanos = System.nanoTime() - start;
+        stats.put("lag", lag);
+        return stats;
+    }
+
+    private Socket connect(InetSocketAddress proxy) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(proxy, timeoutMillis);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeoutMillis);
+        return socket;
+    }
+
+    /**
+     * Sends a GET on the worker's kept-alive connection, opening one if needed
+     *
+     * @return the connection to use for the next GET, null if it was closed
+     */
+    private Socket get(InetSocketAddress proxy, Socket kept, Request request, Stats stats) throws IOException {
+        Socket socket = kept != null ? kept : connect(proxy);
+        String hostHeader = new URL(request.target).getHost();
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + request.target + " HTTP/1.1\r\nHost: " + hostHeader + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        String head = readHead(in);
+        if (head == null) {
+            socket.close();
+            if (kept != null) {
+                // The proxy closed the idle connection first, try once on a new one
+                return get(proxy, null, request, stats);
+            }
+            throw new IOException("Connection closed before a response");
+        }
+        if (!isOk(head)) {
+            stats.errors.increment();
+        }
+        String lower = head.toLowerCase(Locale.ROOT);
+        long length = headerValue(lower, "content-length");
+        boolean chunked = lower.contains("\r\ntransfer-encoding: chunked");
+        if (chunked) {
+            stats.bytes.add(readChunked(in, request.slow));
+        } else {
+            stats.bytes.add(readBody(in, length, request.slow));
+        }
+        if (lower.contains("\r\nconnection: close") || (!chunked && length < 0)) {
+            socket.close();
+            return null;
+        }
+        return socket;
+    }
+
+    /**
+     * Opens a tunnel, has its payload echoed back and closes it
+     */
+    private void tunnel(InetSocketAddress proxy, Request request, Stats stats) throws IOException {
+        try (Socket socket = connect(proxy)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("CONNECT " + request.target + " HTTP/1.1\r\nHost: " + request.target + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            String head = readHead(in);
+            if (!isOk(head)) {
+                throw new IOException("Tunnel refused");
+            }
+            if (!echoTunnels) {
+                return;
+            }
+            byte[] chunk = new byte[TUNNEL_CHUNK];
+            int remaining = Math.max(1, request.size);
+            while (remaining > 0) {
+                int length = Math.min(chunk.length, remaining);
+                out.write(chunk, 0, length);
+                out.flush();
+                readBody(in, length, request.slow);
+                remaining -= length;
+            }
+            stats.bytes.add(Math.max(1, request.size));
+        }
+    }
+
+    /**
+     * @return the response head up to its blank line, or null if the connection closed before one
+     */
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            head.append((char) b);
+            int length = head.length();
+            if (length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 2) == '\r'
+                    && head.charAt(length - 3) == '\n' && head.charAt(length - 4) == '\r') {
+                return head.toString();
+            }
+        }
+        if (head.length() == 0) {
+            return null;
+        }
+        throw new IOException("Connection closed in the middle of a response head");
+    }
+
+    private static boolean isOk(String head) {
+        return head != null && head.startsWith("HTTP/1.") && head.startsWith(" 200", 8);
+    }
+
+    /**
+     * @return the numeric value of a header in a lower-cased head, -1 if absent
+     */
+    private static long headerValue(String head, String name) {
+        int at = head.indexOf("\r\n" + name + ":");
+        if (at < 0) {
+            return -1;
+        }
+        int end = head.indexOf("\r\n", at + 2);
+        return Long.parseLong(head.substring(at + name.length() + 3, end).trim());
+    }
+
+    /**
+     * Reads a body of the given length, or until the connection closes when it is -1,
+     * at no more than slowBytesPerSecond when the client is slow
+     *
+     * @return bytes read
+     */
+    private long readBody(InputStream in, long length, boolean slow) throws IOException {
+        byte[] buffer = new byte[slow ? 4096 : 64 * 1024];
+        long started = System.nanoTime();
+        long total = 0;
+        while (length < 0 || total < length) {
+            int read = in.read(buffer, 0, (int) (length < 0 ? buffer.length : Math.min(buffer.length, length - total)));
+            if (read < 0) {
+                if (length < 0) {
+                    break;
+                }
+                throw new IOException("Response ended early");
+            }
+            total += read;
+            if (slow) {
+                long ahead = total * 1_000_000_000L / slowBytesPerSecond - (System.nanoTime() - started);
+                if (ahead > 0) {
+                    LockSupport.parkNanos(ahead);
+                }
+            }
+        }
+        return total;
+    }
+
+    private long readChunked(InputStream in, boolean slow) throws IOException {
+        long total = 0;
+        while (true) {
+            String line = readLine(in);
+            int semicolon = line.indexOf(';');
+            long size = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+            if (size == 0) {
+                // Skip any trailers up to the blank line
+                while (!readLine(in).isEmpty()) {
+                    continue;
+                }
+                return total;
+            }
+            total += readBody(in, size, slow);
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Response ended early");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static Socket closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private void report(PrintStream results, List<Request> schedule, Map<String, Stats> stats, Long injected) {
+        double scheduled = schedule.isEmpty() ? 0 : schedule.get(schedule.size() - 1).dueNanos / 1e9;
+        double seconds = elapsedNanos / 1e9;
+        results.printf("Scheduled %d requests over %.1f s (%.1f req/s), done in %.1f s%n", schedule.size(),
+                scheduled, scheduled > 0 ? schedule.size() / scheduled : 0, seconds);
+        results.printf("%-8s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "kind", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        Stats lag = stats.remove("lag");
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats kind = entry.getValue();
+            long completed = kind.completed.sum();
+            if (completed == 0) {
+                continue;
+            }
+            results.printf("%-8s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), completed,
+                    kind.errors.sum(), seconds > 0 ? completed / seconds : 0,
+                    seconds > 0 ? kind.bytes.sum() / seconds / (1024 * 1024) : 0,
+                    kind.latency.getQuantileMicros(0.5) / 1000.0, kind.latency.getQuantileMicros(0.99) / 1000.0,
+                    kind.latency.getQuantileMicros(0.999) / 1000.0, kind.latency.getMaxMicros() / 1000.0);
+        }
+        results.printf("Send lag behind schedule: p99 %.2f ms, max %.2f ms%n",
+                lag.latency.getQuantileMicros(0.99) / 1000.0, lag.latency.getMaxMicros() / 1000.0);
+        if (injected != null) {
+            results.printf("Upstream connections dropped to inject failures: %d%n", injected);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain HTTP origin server on the loopback interface, for benchmarks.
+ * GET /bytes/N answers with N bytes of body and any other path with 404.
+ * Connections are kept alive, and requests may be in origin-form or in the
+ * absolute-form an upstream proxy forwards unchanged. Responses are marked
+ * no-store so the proxy's cache never answers in place of the relay path.
+ */
+public class LocalOriginServer implements Runnable, AutoCloseable {
+
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final byte[] body = new byte[MAX_BODY];
+    private volatile boolean running = true;
+
+    public LocalOriginServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        Thread thread = new Thread(this, "local-origin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), "local-origin-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                break;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), 64 * 1024);
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                String line;
+                do {
+                    line = readLine(in);
+                } while (line != null && !line.isEmpty());
+
+                String[] parts = requestLine.split(" ");
+                String path = parts.length > 1 ? parts[1] : "";
+                int schemeEnd = path.indexOf("://");
+                if (schemeEnd >= 0) {
+                    int slash = path.indexOf('/', schemeEnd + 3);
+                    path = slash < 0 ? "/" : path.substring(slash);
+                }
+                int length = -1;
+                if (path.startsWith("/bytes/")) {
+                    try {
+                        length = Integer.parseInt(path.substring("/bytes/".length()));
+                    } catch (NumberFormatException ignoredNumber) {
+                    }
+                }
+                if (length < 0 || length > MAX_BODY) {
+                    out.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                } else {
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n"
+                            + "Cache-Control: no-store\r\nContent-Length: " + length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    if (!parts[0].equals("HEAD")) {
+                        out.write(body, 0, length);
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // The proxy closed the connection
+        }
+    }
+
+    /**
+     * @return the next line without its line ending, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+}
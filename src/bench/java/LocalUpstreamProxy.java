@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in for the upstream proxy chain used by benchmarks.
+ * Answers every CONNECT with 200 and then echoes the tunnel back. Given an
+ * origin, any other request is relayed to that origin whatever host it names,
+ * so requests for hosts like proxy-main-entry work without DNS; the connection
+ * then stays a byte pipe to the origin for the requests that follow. All of it
+ * runs on a single selector thread so it adds next to nothing to the memory
+ * and thread counts measured in the same JVM.
+ * A failure rate can be set, in which case that share of connections is
+ * dropped without an answer when their first request head arrives.
+ */
+public class LocalUpstreamProxy implements Runnable, AutoCloseable {
+
+    private static final byte[] CONNECT_OK = "HTTP/1.1 200 Connection established\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private final InetSocketAddress origin;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile int failurePercent;
+    private final LongAdder failures = new LongAdder();
+
+    public LocalUpstreamProxy() throws IOException {
+        this(null);
+    }
+
+    /**
+     * @param origin where requests other than CONNECT are relayed, null to close such connections
+     */
+    public LocalUpstreamProxy(InetSocketAddress origin) throws IOException {
+        this.origin = origin;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, "local-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @param percent share of new connections to drop at their first request, 0 for none
+     */
+    public void setFailurePercent(int percent) {
+        failurePercent = percent;
+    }
+
+    /**
+     * @return connections dropped so far to inject failures
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Per-connection state, the buffer holds the request head and then data read
+     * from the channel that is still to be written to the peer
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        boolean tunnelling;
+
+        /**
+         * Where data read from this channel goes: the connection itself when
+         * echoing, otherwise the other end of an origin relay, which points back here
+         */
+        Connection peer = this;
+
+        Connection(Selector selector, SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            SocketChannel channel = serverChannel.accept();
+                            if (channel != null) {
+                                new Connection(selector, channel);
+                            }
+                        } else {
+                            service(key);
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() != null) {
+                            close((Connection) key.attachment());
+                        } else {
+                            key.channel().close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                break;
+            }
+        }
+    }
+
+    private void service(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (key.isWritable()) {
+            // Data read from the peer is waiting to go out on this channel
+            flush(connection.peer);
+        }
+        if (!key.isValid() || !key.isReadable()) {
+            return;
+        }
+        ByteBuffer buffer = connection.buffer;
+        if (connection.channel.read(buffer) < 0) {
+            close(connection);
+            return;
+        }
+        if (!connection.tunnelling) {
+            String head = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+            int headEnd = head.indexOf("\r\n\r\n");
+            if (headEnd < 0) {
+                return;
+            }
+            if (failurePercent > 0 && ThreadLocalRandom.current().nextInt(100) < failurePercent) {
+                failures.increment();
+                close(connection);
+                return;
+            }
+            connection.tunnelling = true;
+            if (head.startsWith("CONNECT ")) {
+                // Drop the CONNECT head and put the reply in front of any tunnel bytes
+                byte[] rest = head.substring(headEnd + 4).getBytes(StandardCharsets.ISO_8859_1);
+                buffer.clear();
+                buffer.put(CONNECT_OK).put(rest);
+            } else if (origin != null) {
+                // Everything from here on, this head included, is relayed to the origin unchanged
+                SocketChannel originChannel = SocketChannel.open(origin);
+                Connection originConnection = new Connection(selector, originChannel);
+                originConnection.tunnelling = true;
+                originConnection.peer = connection;
+                connection.peer = originConnection;
+            } else {
+                close(connection);
+                return;
+            }
+        }
+        flush(connection);
+    }
+
+    /**
+     * Writes what was read from a connection to its peer, reading no more from it
+     * until the peer has taken everything
+     */
+    private static void flush(Connection from) throws IOException {
+        Connection to = from.peer;
+        from.buffer.flip();
+        to.channel.write(from.buffer);
+        from.buffer.compact();
+        boolean pending = from.buffer.position() > 0;
+        setInterest(from.key, SelectionKey.OP_READ, !pending);
+        setInterest(to.key, SelectionKey.OP_WRITE, pending);
+    }
+
+    private static void setInterest(SelectionKey key, int op, boolean on) {
+        if (key.isValid()) {
+            key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+        }
+    }
+
+    private static void close(Connection connection) throws IOException {
+        connection.key.cancel();
+        connection.channel.close();
+        if (connection.peer != connection) {
+            connection.peer.key.cancel();
+            connection.peer.channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        serverChannel.close();
+    }
+}
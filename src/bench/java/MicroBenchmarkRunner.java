@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Small throughput harness in the spirit of JMH, without the dependency.
+ * Each benchmark runs warmup iterations and then timed iterations of a fixed
+ * length on one or more threads, every thread with its own workload. Scores
+ * are operations per second with a 99.9% confidence interval, plus bytes per
+ * second for workloads that move data. Results are written as JSON in the
+ * layout JMH uses, so they can be compared between runs here or with JMH tooling.
+ */
+public class MicroBenchmarkRunner {
+
+    /**
+     * Student's t for a two-sided 99.9% interval, by degrees of freedom from 1 to 30
+     */
+    private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768,
+            3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+
+    /**
+     * State one benchmark thread runs operations on
+     */
+    interface Workload extends AutoCloseable {
+        /**
+         * Runs one operation
+         *
+         * @return bytes the operation moved, 0 when that means nothing for the benchmark
+         */
+        long run() throws Exception;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    interface WorkloadFactory {
+        /**
+         * Sets up the workload for one thread, not counted in the score
+         */
+        Workload create() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final int threads;
+        final double[] opsPerSecond;
+        final double[] bytesPerSecond;
+
+        Result(String name, int threads, double[] opsPerSecond, double[] bytesPerSecond) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        double score() {
+            return mean(opsPerSecond);
+        }
+
+        double error() {
+            return MicroBenchmarkRunner.error(opsPerSecond);
+        }
+
+        boolean movesBytes() {
+            return mean(bytesPerSecond) > 0;
+        }
+    }
+
+    private final Map<String, WorkloadFactory> benchmarks = new LinkedHashMap<>();
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationMillis;
+    private final int threads;
+
+    MicroBenchmarkRunner(int warmupIterations, int iterations, long iterationMillis, int threads) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = Math.max(1, iterations);
+        this.iterationMillis = iterationMillis;
+        this.threads = Math.max(1, threads);
+    }
+
+    void add(String name, WorkloadFactory factory) {
+        benchmarks.put(name, factory);
+    }
+
+    /**
+     * Runs every benchmark whose name contains a match for the pattern
+     *
+     * @param log where progress is printed
+     * @return one result per benchmark run
+     */
+    List<Result> run(Pattern include, PrintStream log) throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, WorkloadFactory> benchmark : benchmarks.entrySet()) {
+            if (include.matcher(benchmark.getKey()).find()) {
+                log.println("# " + benchmark.getKey() + ", " + threads + " thread(s)");
+                results.add(measure(benchmark.getKey(), benchmark.getValue(), log));
+            }
+        }
+        return results;
+    }
+
+    private Result measure(String name, WorkloadFactory factory, PrintStream log) throws Exception {
+        Workload[] workloads = new Workload[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                workloads[i] = factory.create();
+            }
+            double[] opsPerSecond = new double[iterations];
+            double[] bytesPerSecond = new double[iterations];
+            for (int i = 0; i < warmupIterations + iterations; i++) {
+                long[] totals = iterate(workloads);
+                double seconds = totals[2] / 1e9;
+                boolean warmup = i < warmupIterations;
+                log.printf(Locale.ROOT, "%s %d: %.1f ops/s%n", warmup ? "Warmup" : "Iteration",
+                        (warmup ? i : i - warmupIterations) + 1, totals[0] / seconds);
+                if (!warmup) {
+                    opsPerSecond[i - warmupIterations] = totals[0] / seconds;
+                    bytesPerSecond[i - warmupIterations] = totals[1] / seconds;
+                }
+            }
+            return new Result(name, threads, opsPerSecond, bytesPerSecond);
+        } finally {
+            for (Workload workload : workloads) {
+                if (workload != null) {
+                    workload.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs all workloads for one iteration
+     *
+     * @return operations, bytes and elapsed nanoseconds
+     */
+    private long[] iterate(Workload[] workloads) throws Exception {
+        long[] operations = new long[workloads.length];
+        long[] bytes = new long[workloads.length];
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[workloads.length];
+        for (int i = 0; i < workloads.length; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    Workload workload = workloads[index];
+                    long end = deadline[0];
+                    do {
+                        bytes[index] += workload.run();
+                        operations[index]++;
+                    } while (System.nanoTime() < end);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "bench-worker-" + i);
+            workers[i].start();
+        }
+        long started = System.nanoTime();
+        deadline[0] = started + iterationMillis * 1_000_000;
+        // Counting down publishes the deadline to the workers
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        long totalOperations = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < workloads.length; i++) {
+            totalOperations += operations[i];
+            totalBytes += bytes[i];
+        }
+        return new long[]{totalOperations, totalBytes, elapsed};
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * @return half the width of the 99.9% confidence interval of the mean, NaN for a single value
+     */
+    private static double error(double[] values) {
+        int n = values.length;
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double mean = mean(values);
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+        return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+    }
+
+    /**
+     * Prints one line per result, with the change from the baseline where it has the same benchmark
+     */
+    static void report(List<Result> results, Map<String, Double> baseline, PrintStream out) {
+        out.printf("%-24s %7s %16s %14s %12s %10s%n", "Benchmark", "Threads", "Score", "Error", "MB/s", "Change");
+        for (Result result : results) {
+            Double before = baseline.get(result.name);
+            out.printf(Locale.ROOT, "%-24s %7d %16.1f %14.1f %12s %10s%n", result.name, result.threads,
+                    result.score(), result.error(),
+                    result.movesBytes() ? String.format(Locale.ROOT, "%.1f", mean(result.bytesPerSecond) / 1e6) : "",
+                    before == null ? "" : String.format(Locale.ROOT, "%+.1f%%", (result.score() / before - 1) * 100));
+        }
+    }
+
+    /**
+     * Writes results as a JSON array of the form JMH produces with -rf json
+     */
+    void writeJson(List<Result> results, Path file) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : \"").append(result.name).append("\",\n");
+            json.append("        \"mode\" : \"thrpt\",\n");
+            json.append("        \"threads\" : ").append(result.threads).append(",\n");
+            json.append("        \"forks\" : 0,\n");
+            json.append("        \"jvm\" : \"").append(ProcessHandle.current().info().command().orElse("java")
+                    .replace("\\", "\\\\")).append("\",\n");
+            json.append("        \"jdkVersion\" : \"").append(Runtime.version()).append("\",\n");
+            json.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            json.append("        \"warmupTime\" : \"").append(iterationMillis).append(" ms\",\n");
+            json.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(iterationMillis).append(" ms\",\n");
+            json.append("        \"primaryMetric\" : ");
+            appendMetric(json, result.opsPerSecond, "ops/s");
+            json.append(",\n        \"secondaryMetrics\" : {");
+            if (result.movesBytes()) {
+                json.append("\n            \"bytes\" : ");
+                appendMetric(json, result.bytesPerSecond, "B/s");
+                json.append("\n        ");
+            }
+            json.append("}\n    }").append(i < results.size() - 1 ? "," : "").append('\n');
+        }
+        json.append("]\n");
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendMetric(StringBuilder json, double[] values, String unit) {
+        json.append("{\"score\" : ").append(number(mean(values)))
+                .append(", \"scoreError\" : ").append(number(error(values)))
+                .append(", \"scoreUnit\" : \"").append(unit).append("\", \"rawData\" : [[");
+        for (int i = 0; i < values.length; i++) {
+            json.append(i > 0 ? ", " : "").append(number(values[i]));
+        }
+        json.append("]]}");
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Reads the primary scores from a results file written by this runner or by JMH
+     *
+     * @return score by benchmark name
+     */
+    static Map<String, Double> readScores(Path file) throws IOException {
+        String json = Files.readString(file);
+        Map<String, Double> scores = new LinkedHashMap<>();
+        Matcher matcher = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\".*?\"primaryMetric\"\\s*:\\s*\\{"
+                + "\\s*\"score\"\\s*:\\s*([-0-9.eE+]+)", Pattern.DOTALL).matcher(json);
+        while (matcher.find()) {
+            scores.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        return scores;
+    }
+}
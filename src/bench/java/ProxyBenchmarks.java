@@ -0,0 +1,267 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the request path of the proxy.
+ * Parsing benchmarks run the request head code alone; relay and tunnel
+ * benchmarks go through a real Proxy whose upstream is a LocalUpstreamProxy
+ * in front of a LocalOriginServer, so the whole chain runs offline on loopback.
+ *
+ * Arguments are key=value pairs:
+ * include=regex warmup=3 iterations=5 millis=2000 threads=1 mode=thread|virtual|nio
+ * out=results.json baseline=previous-results.json
+ */
+public class ProxyBenchmarks {
+
+    /**
+     * Head of a typical browser GET sent to a proxy
+     */
+    private static final byte[] GET_HEAD = ("GET http://proxy-main-entry/index.html?q=benchmark HTTP/1.1\r\n"
+            + "Host: proxy-main-entry\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] CONNECT_HEAD = ("CONNECT proxy-main-entry:443 HTTP/1.1\r\n"
+            + "Host: proxy-main-entry:443\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Written by parsing benchmarks so their work cannot be optimised away
+     */
+    static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        Pattern include = Pattern.compile(options.getOrDefault("include", ""));
+        MicroBenchmarkRunner runner = new MicroBenchmarkRunner(
+                Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")),
+                Long.parseLong(options.getOrDefault("millis", "2000")),
+                Integer.parseInt(options.getOrDefault("threads", "1")));
+        Path out = Path.of(options.getOrDefault("out", "bench-results.json"));
+        Map<String, Double> baseline = options.containsKey("baseline")
+                ? MicroBenchmarkRunner.readScores(Path.of(options.get("baseline"))) : Collections.emptyMap();
+
+        // The proxy logs every request, keep the results readable
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (LocalOriginServer origin = new LocalOriginServer();
+             LocalUpstreamProxy upstream = new LocalUpstreamProxy(origin.getAddress())) {
+            // Must be set before the proxy classes read their configuration
+            System.setProperty("proxy.console", "false");
+            System.setProperty("proxy.admin.port", "-1");
+            // Every benchmark connection comes from the same loopback address
+            System.setProperty("proxy.admission.maxConnectionsPerClient", "0");
+            System.setProperty("proxy.accesslog.enabled", "false");
+            System.setProperty("proxy.upstreams", "127.0.0.1:" + upstream.getPort());
+            String mode = options.getOrDefault("mode", "thread");
+            System.setProperty("proxy.mode", mode.equals("nio") ? "nio" : "thread");
+            System.setProperty("proxy.executor.virtual", String.valueOf(mode.equals("virtual")));
+
+            Proxy proxy = new Proxy(0);
+            Thread listener = new Thread(proxy::listen, "bench-listener");
+            listener.setDaemon(true);
+            listener.start();
+            int port = proxy.getPort();
+
+            runner.add("parse.getHead", () -> parseHead(GET_HEAD));
+            runner.add("parse.connectHead", () -> parseHead(CONNECT_HEAD));
+            runner.add("relay.get1k", () -> new GetRelay(port, 1024));
+            runner.add("relay.get64k", () -> new GetRelay(port, 64 * 1024));
+            runner.add("relay.get1m", () -> new GetRelay(port, 1024 * 1024));
+            runner.add("tunnel.handshake", () -> () -> {
+                new TunnelEcho(port, 1).close();
+                return 0;
+            });
+            runner.add("tunnel.echo16k", () -> new TunnelEcho(port, 16 * 1024));
+
+            List<MicroBenchmarkRunner.Result> measured = runner.run(include, results);
+            proxy.close();
+            results.println();
+            MicroBenchmarkRunner.report(measured, baseline, results);
+            runner.writeJson(measured, out);
+            results.println("Results written to " + out.toAbsolutePath());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Parses a request head the way RequestHandler does, with one parser reused
+     * for every operation like the parser of a kept-alive connection
+     *
+     * @return bytes parsed
+     */
+    private static MicroBenchmarkRunner.Workload parseHead(byte[] head) {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream in = new ByteArrayInputStream(head);
+        return () -> {
+            in.reset();
+            parser.next();
+            parser.read(in);
+            if (parser.parse() != HttpRequestParser.Status.COMPLETE) {
+                throw new IOException("Benchmark head did not parse");
+            }
+            RequestLine request = parser.toRequestLine();
+            sink = request.urlString.length() + (parser.wantsKeepAlive() ? 1 : 0);
+            parser.takeBuffered();
+            return head.length;
+        };
+    }
+
+    /**
+     * One kept-alive client connection sending GETs through the proxy
+     */
+    private static final class GetRelay implements MicroBenchmarkRunner.Workload {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] request;
+        private final byte[] body = new byte[64 * 1024];
+
+        GetRelay(int port, int size) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+            request = ("GET http://proxy-main-entry/bytes/" + size + " HTTP/1.1\r\n"
+                    + "Host: proxy-main-entry\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public long run() throws IOException {
+            out.write(request);
+            out.flush();
+            long length = -1;
+            String line = readLine(in);
+            if (line == null || !line.startsWith("HTTP/1.1 200")) {
+                throw new IOException("Unexpected response: " + line);
+            }
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Long.parseLong(line.substring(15).trim());
+                }
+            }
+            if (length < 0) {
+                throw new IOException("Response without Content-Length, cannot keep the connection");
+            }
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(body, 0, (int) Math.min(body.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-body");
+                }
+                remaining -= read;
+            }
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A CONNECT tunnel through the proxy to the echoing upstream stand-in
+     */
+    private static final class TunnelEcho implements MicroBenchmarkRunner.Workload {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] payload;
+        private final byte[] received;
+
+        TunnelEcho(int port, int size) throws IOException {
+            payload = new byte[size];
+            received = new byte[size];
+            socket = new Socket("127.0.0.1", port);
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(10000);
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+                out.write(CONNECT_HEAD);
+                out.flush();
+                String line = readLine(in);
+                if (line == null || !line.contains(" 200")) {
+                    throw new IOException("Tunnel refused: " + line);
+                }
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    // Skip the rest of the head
+                }
+                run();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sends the payload and waits for all of it to come back
+         */
+        @Override
+        public long run() throws IOException {
+            out.write(payload);
+            out.flush();
+            int total = 0;
+            while (total < received.length) {
+                int read = in.read(received, total, received.length - total);
+                if (read < 0) {
+                    throw new IOException("Tunnel closed early");
+                }
+                total += read;
+            }
+            return payload.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the next line without its line ending, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.append((char) b);
+        }
+        if (b < 0 && line.length() == 0) {
+            return null;
+        }
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+            line.setLength(end - 1);
+        }
+        return line.toString();
+    }
+}
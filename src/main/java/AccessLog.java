@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log with one JSON line per request or tunnel.
+ * Request threads copy their record into a preallocated slot of a ring buffer,
+ * claiming the slot with a single compare-and-set, and never wait for I/O.
+ * A background thread formats published records and writes them to the log
+ * file in batches, rotating it once it reaches proxy.accesslog.maxBytes.
+ * When the writer falls behind and the ring is full, records are dropped and
+ * counted rather than slowing requests down.
+ */
+public final class AccessLog {
+
+    private static final AccessLog shared = new AccessLog();
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.accesslog.enabled", true);
+    private final Path file = Paths.get(ProxyConfig.get("proxy.accesslog.file", "access.log"));
+    private final long maxBytes = ProxyConfig.getLong("proxy.accesslog.maxBytes", 64L * 1024 * 1024);
+    private final int maxFiles = ProxyConfig.getInt("proxy.accesslog.maxFiles", 5);
+
+    /**
+     * Most records formatted before they are written out together
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * How long the writer sleeps when there is nothing to write
+     */
+    private static final long IDLE_PARK_NANOS = 2_000_000;
+
+    private final Record[] slots;
+    private final int mask;
+
+    /**
+     * Next sequence number to hand to a producer
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * Next sequence number the writer will read, slots before it are free again
+     */
+    private volatile long consumed;
+
+    final LongAdder written = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder rotations = new LongAdder();
+
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 256);
+    private FileChannel channel;
+    private long fileSize;
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    private AccessLog() {
+        int capacity = Integer.highestOneBit(Math.max(2, ProxyConfig.getInt("proxy.accesslog.bufferSize", 8192)) * 2 - 1);
+        slots = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Record();
+            slots[i].sequence = -1;
+        }
+        mask = capacity - 1;
+
+        if (enabled) {
+            try {
+                openFile();
+            } catch (IOException e) {
+                System.out.println("Could not open access log " + file + ", access logging disabled");
+                running = false;
+            }
+        } else {
+            running = false;
+        }
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_access_log_written_total", "Access log records written", written::sum);
+        metrics.counter("proxy_access_log_dropped_total", "Access log records dropped because the ring was full",
+                dropped::sum);
+
+        writer = new Thread(this::writeLoop, "access-log-writer");
+        writer.setDaemon(true);
+        if (running) {
+            writer.start();
+        }
+    }
+
+    public static AccessLog getShared() {
+        return shared;
+    }
+
+    /**
+     * What is known about one request or tunnel. RequestHandler reuses one per
+     * connection, the log copies it into a ring slot so it can be reused straight away.
+     */
+    static final class Record {
+        long startMillis;
+        long startNanos;
+        String client;
+        String method;
+
+        /**
+         * Requested URL, or host:port for CONNECT
+         */
+        String target;
+        String upstream;
+        int failover;
+        int status;
+
+        /**
+         * HIT, MISS, REVALIDATED, SHARED when served from another request's fetch,
+         * or null when the cache was not consulted
+         */
+        String cache;
+        long bytesIn;
+        long bytesOut;
+        long upstreamNanos;
+        long totalNanos;
+
+        /**
+         * Sequence number of the record held by a ring slot, published last
+         */
+        volatile long sequence;
+
+        /**
+         * Clears the record for a new request starting now
+         */
+        void begin(String client) {
+            startMillis = System.currentTimeMillis();
+            startNanos = System.nanoTime();
+            this.client = client;
+            method = null;
+            target = null;
+            upstream = null;
+            failover = 0;
+            status = 0;
+            cache = null;
+            bytesIn = 0;
+            bytesOut = 0;
+            upstreamNanos = 0;
+            totalNanos = 0;
+        }
+
+        private void copyFrom(Record record) {
+            startMillis = record.startMillis;
+            client = record.client;
+            method = record.method;
+            target = record.target;
+            upstream = record.upstream;
+            failover = record.failover;
+            status = record.status;
+            cache = record.cache;
+            bytesIn = record.bytesIn;
+            bytesOut = record.bytesOut;
+            upstreamNanos = record.upstreamNanos;
+            totalNanos = record.totalNanos;
+        }
+    }
+
+    /**
+     * Queues a finished record for writing, never blocks
+     *
+     * @param record record to log, may be reused as soon as this returns
+     * @return false if the record was dropped because the ring is full or logging is off
+     */
+    public boolean log(Record record) {
+        record.totalNanos = System.nanoTime() - record.startNanos;
+        // Every finished request comes through here, so this is also where it is counted
+        Metrics.getShared().requestFinished(record);
+        if (!running) {
+            return false;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Record slot = slots[(int) sequence & mask];
+        slot.copyFrom(record);
+        // Publishing the sequence hands the slot to the writer
+        slot.sequence = sequence;
+        return true;
+    }
+
+    private void writeLoop() {
+        while (running || slots[(int) consumed & mask].sequence == consumed) {
+            int count = drain();
+            if (count > 0) {
+                write();
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Formats published records into the batch, stopping at the first slot not yet published
+     *
+     * @return number of records formatted
+     */
+    private int drain() {
+        int count = 0;
+        long next = consumed;
+        while (count < BATCH_SIZE) {
+            Record slot = slots[(int) next & mask];
+            if (slot.sequence != next) {
+                break;
+            }
+            format(slot);
+            // Drop references so finished requests can be collected
+            slot.client = null;
+            slot.target = null;
+            slot.upstream = null;
+            next++;
+            consumed = next;
+            count++;
+        }
+        written.add(count);
+        return count;
+    }
+
+    private void format(Record record) {
+        batch.append("{\"ts\":\"").append(Instant.ofEpochMilli(record.startMillis)).append('"');
+        appendString("client", record.client);
+        appendString("method", record.method);
+        appendString("host", hostOf(record.target));
+        appendString("target", record.target);
+        appendString("upstream", record.upstream);
+        batch.append(",\"failover\":").append(record.failover);
+        batch.append(",\"status\":").append(record.status);
+        appendString("cache", record.cache);
+        batch.append(",\"bytes_in\":").append(record.bytesIn);
+        batch.append(",\"bytes_out\":").append(record.bytesOut);
+        appendMillis("upstream_ms", record.upstreamNanos);
+        appendMillis("total_ms", record.totalNanos);
+        batch.append("}\n");
+    }
+
+    private void appendString(String name, String value) {
+        batch.append(",\"").append(name).append("\":");
+        if (value == null) {
+            batch.append("null");
+            return;
+        }
+        batch.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            } else if (c < 0x20) {
+                batch.append(String.format("\\u%04x", (int) c));
+            } else {
+                batch.append(c);
+            }
+        }
+        batch.append('"');
+    }
+
+    private void appendMillis(String name, long nanos) {
+        // Microsecond precision without going through floating point formatting
+        long micros = nanos / 1000;
+        batch.append(",\"").append(name).append("\":").append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            batch.append('0');
+        }
+        if (fraction < 10) {
+            batch.append('0');
+        }
+        batch.append(fraction);
+    }
+
+    /**
+     * @return the host part of a URL or host:port target
+     */
+    static String hostOf(String target) {
+        if (target == null) {
+            return null;
+        }
+        int start = target.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        if (end < target.length() && target.charAt(end) == '[') {
+            // IPv6 literal, keep the brackets
+            end = target.indexOf(']', end) + 1;
+            if (end == 0) {
+                end = target.length();
+            }
+        } else {
+            while (end < target.length() && target.charAt(end) != ':' && target.charAt(end) != '/'
+                    && target.charAt(end) != '?') {
+                end++;
+            }
+        }
+        return target.substring(start, end);
+    }
+
+    /**
+     * Writes the formatted batch to the file, rotating first if it would grow too large
+     */
+    private void write() {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        batch.setLength(0);
+        try {
+            if (fileSize > 0 && fileSize + bytes.length > maxBytes) {
+                rotate();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            System.out.println("Could not write access log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Shifts access.log to access.log.1, access.log.1 to access.log.2 and so on,
+     * deleting the oldest, then starts a new file
+     */
+    private void rotate() throws IOException {
+        closeFile();
+        Files.deleteIfExists(rotated(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path from = rotated(i);
+            if (Files.exists(from)) {
+                Files.move(from, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        openFile();
+        rotations.increment();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stops accepting records and waits for the writer to flush those already queued
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return counters of the access log, as shown by the "accesslog" console command
+     */
+    public String describe() {
+        if (!enabled) {
+            return "Access log disabled\n";
+        }
+        long queued = claimed.get() - consumed;
+        return "Access log " + file.toAbsolutePath() + ": " + written.sum() + " written, " + dropped.sum()
+                + " dropped, " + queued + " queued of " + slots.length + ", " + rotations.sum() + " rotations\n";
+    }
+}
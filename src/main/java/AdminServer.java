@@ -0,0 +1,99 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Small HTTP endpoint for operating the proxy, bound to the loopback interface.
+ * It only starts when proxy.admin.port is set.
+ * GET /metrics returns every metric in the Prometheus text format and
+ * /metrics.json the same as JSON. Every console command is also available by
+ * name, e.g. GET /cached; commands that change state, like close, must be sent
+ * with POST. There is no authentication, anyone who can reach the port can
+ * close the proxy, so keep proxy.admin.host on a loopback address. Requests
+ * with an Origin header are refused, so a web page open in a browser on the
+ * same machine cannot send commands to it.
+ */
+public class AdminServer {
+
+    private final Proxy proxy;
+    private final HttpServer server;
+
+    /**
+     * @param proxy proxy the commands act on
+     * @param host  address to bind to
+     * @param port  port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public AdminServer(Proxy proxy, String host, int port) throws IOException {
+        this.proxy = proxy;
+        server = HttpServer.create(new InetSocketAddress(host, port), 16);
+        server.createContext("/", this::handle);
+        // One thread is plenty, and keeps admin traffic from competing with the proxy
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admin-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Admin endpoint on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                // Browsers send Origin with cross-site requests, scrapers and curl do not
+                respond(exchange, 403, "text/plain; charset=utf-8", "Requests from web pages are not accepted\n");
+            } else if (path.equals("/metrics")) {
+                respond(exchange, 200, "text/plain; version=0.0.4", Metrics.getShared().prometheus());
+            } else if (path.equals("/metrics.json")) {
+                respond(exchange, 200, "application/json; charset=utf-8", Metrics.getShared().json());
+            } else if (path.equals("/close")) {
+                if (!method.equals("POST")) {
+                    respond(exchange, 405, "text/plain; charset=utf-8", "Use POST to close the server\n");
+                    return;
+                }
+                respond(exchange, 200, "text/plain; charset=utf-8", "Closing server\n");
+                // Closing waits for requests in progress, do it off the admin thread
+                new Thread(proxy::close, "admin-close").start();
+            } else {
+                String output = proxy.runCommand(path.substring(1));
+                if (output == null) {
+                    respond(exchange, 404, "text/plain; charset=utf-8", "Unknown command " + path + "\n");
+                } else {
+                    respond(exchange, 200, "text/plain; charset=utf-8", output);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
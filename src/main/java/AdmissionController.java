@@ -0,0 +1,351 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which connections and requests the proxy takes on.
+ * Each client address may hold proxy.admission.maxConnectionsPerClient
+ * connections and send proxy.admission.clientRequestsPerSecond requests, with
+ * bursts of up to proxy.admission.clientBurst, beyond which it is told 429.
+ * Across all clients, the number of requests waiting for their first response
+ * byte is held under a limit that adapts to latency: it grows by one for every
+ * limit's worth of requests answered within proxy.admission.latencyThresholdMillis
+ * while the limit is in use, and shrinks by a tenth when answers are slower or
+ * upstreams fail, additive increase and multiplicative decrease as in TCP.
+ * A request over the limit waits up to proxy.admission.maxWaitMillis in a
+ * queue of at most proxy.admission.queueSize before it is told 503.
+ */
+public final class AdmissionController {
+
+    private static final AdmissionController shared = new AdmissionController();
+
+    /**
+     * The limit is kept in 1/1024ths so additive increase can add fractions
+     */
+    private static final int SCALE = 1024;
+
+    /**
+     * Shortest time between two decreases, so a burst of slow answers to requests
+     * admitted under the same limit only shrinks it once
+     */
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Shortest time between two sweeps of the clients no longer worth tracking
+     */
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.admission.enabled", true);
+    private final int minLimit = Math.max(1, ProxyConfig.getInt("proxy.admission.minLimit", 8));
+    private final int maxLimit = Math.max(minLimit, ProxyConfig.getInt("proxy.admission.maxLimit", 1024));
+    private final long latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+            ProxyConfig.getLong("proxy.admission.latencyThresholdMillis", 2000));
+    private final int queueSize = ProxyConfig.getInt("proxy.admission.queueSize", 64);
+    private final long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(
+            ProxyConfig.getLong("proxy.admission.maxWaitMillis", 50));
+    private final int retryAfterSeconds = ProxyConfig.getInt("proxy.admission.retryAfterSeconds", 1);
+    private final int maxConnectionsPerClient = ProxyConfig.getInt("proxy.admission.maxConnectionsPerClient", 256);
+
+    /**
+     * Time between two requests of one client at the sustained rate, 0 when unlimited
+     */
+    private final long requestIntervalNanos;
+
+    /**
+     * How far a client may get ahead of the sustained rate, the size of its bucket
+     */
+    private final long burstNanos;
+
+    private final AtomicLong scaledLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime() - DECREASE_INTERVAL_NANOS);
+
+    /**
+     * Signalled when a permit is released or the limit grows, only while requests wait
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    final LongAdder admitted = new LongAdder();
+    final LongAdder queued = new LongAdder();
+    final LongAdder rejectedQueueFull = new LongAdder();
+    final LongAdder rejectedTimeout = new LongAdder();
+    final LongAdder rejectedClientConnections = new LongAdder();
+    final LongAdder rejectedClientRate = new LongAdder();
+    private final LatencyHistogram queueWait;
+
+    /**
+     * What is known about one client address
+     */
+    private static final class Client {
+        final AtomicInteger connections = new AtomicInteger();
+
+        /**
+         * When the client's bucket is full again. The bucket is a token bucket kept
+         * as a single time, as in the generic cell rate algorithm: a request takes
+         * a token by moving this time one interval on, which is refused when it would
+         * end up more than the burst ahead of now.
+         */
+        final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        boolean isFull(long now) {
+            long full = fullAt.get();
+            return full == Long.MIN_VALUE || now - full >= 0;
+        }
+
+        /**
+         * @return whether forgetting the client changes nothing: no connections and a full bucket
+         */
+        boolean isIdle(long now) {
+            return connections.get() <= 0 && isFull(now);
+        }
+    }
+
+    private AdmissionController() {
+        int perSecond = ProxyConfig.getInt("proxy.admission.clientRequestsPerSecond", 0);
+        requestIntervalNanos = perSecond > 0 ? 1_000_000_000L / perSecond : 0;
+        int burst = Math.max(1, ProxyConfig.getInt("proxy.admission.clientBurst", perSecond * 2));
+        burstNanos = requestIntervalNanos * burst;
+        int initialLimit = Math.min(maxLimit, Math.max(minLimit, ProxyConfig.getInt("proxy.admission.initialLimit", 256)));
+        scaledLimit = new AtomicLong((long) initialLimit * SCALE);
+
+        Metrics metrics = Metrics.getShared();
+        metrics.gauge("proxy_admission_limit", "Requests allowed to wait for their first response byte at once",
+                this::getLimit);
+        metrics.gauge("proxy_admission_in_flight", "Admitted requests still waiting for their first response byte",
+                inFlight::get);
+        metrics.gauge("proxy_admission_waiting", "Requests queued for admission", waiting::get);
+        metrics.counter("proxy_admission_admitted_total", "Requests admitted", admitted::sum);
+        metrics.counter("proxy_admission_queued_total", "Requests that had to wait to be admitted", queued::sum);
+        metrics.counter("proxy_admission_rejected_total{reason=\"queue_full\"}", "Connections and requests turned away",
+                rejectedQueueFull::sum);
+        metrics.counter("proxy_admission_rejected_total{reason=\"timeout\"}", "Connections and requests turned away",
+                rejectedTimeout::sum);
+        metrics.counter("proxy_admission_rejected_total{reason=\"client_connections\"}",
+                "Connections and requests turned away", rejectedClientConnections::sum);
+        metrics.counter("proxy_admission_rejected_total{reason=\"client_rate\"}", "Connections and requests turned away",
+                rejectedClientRate::sum);
+        queueWait = metrics.histogram("proxy_admission_queue_wait_seconds", "Time queued requests waited for admission");
+        metrics.gauge("proxy_admission_clients", "Client addresses being tracked", clients::size);
+    }
+
+    public static AdmissionController getShared() {
+        return shared;
+    }
+
+    public int getLimit() {
+        return (int) (scaledLimit.get() / SCALE);
+    }
+
+    /**
+     * @return seconds a turned away client is asked to wait before trying again
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Counts a new connection from a client
+     *
+     * @param client client address
+     * @return false if the client already has as many connections as it may, the connection is then not counted
+     */
+    public boolean connectionOpened(String client) {
+        if (!enabled) {
+            return true;
+        }
+        boolean[] accepted = {true};
+        clients.compute(client, (address, state) -> {
+            if (state == null) {
+                state = new Client();
+            }
+            if (maxConnectionsPerClient > 0 && state.connections.get() >= maxConnectionsPerClient) {
+                accepted[0] = false;
+            } else {
+                state.connections.incrementAndGet();
+            }
+            return state;
+        });
+        if (!accepted[0]) {
+            rejectedClientConnections.increment();
+        }
+        return accepted[0];
+    }
+
+    /**
+     * Counts a connection accepted by connectionOpened() as closed, and forgets
+     * a client with no connections left whose bucket has filled up again.
+     * A client whose bucket was still filling is forgotten by a later sweep.
+     */
+    public void connectionClosed(String client) {
+        if (!enabled || client == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        clients.computeIfPresent(client, (address, state) -> {
+            state.connections.decrementAndGet();
+            return state.isIdle(now) ? null : state;
+        });
+        sweep(now);
+    }
+
+    /**
+     * Forgets every idle client, at most once a sweep interval and on whichever thread gets there first
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (String client : clients.keySet()) {
+            clients.computeIfPresent(client, (address, state) -> state.isIdle(now) ? null : state);
+        }
+    }
+
+    /**
+     * Takes a token from the client's bucket
+     *
+     * @param client client address
+     * @return 0 if the request may go ahead, otherwise the seconds until the client may send another
+     */
+    public long checkRate(String client) {
+        if (!enabled || requestIntervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        sweep(now);
+        Client state = clients.computeIfAbsent(client, address -> new Client());
+        while (true) {
+            long fullAt = state.fullAt.get();
+            long start = fullAt == Long.MIN_VALUE || now - fullAt > 0 ? now : fullAt;
+            long next = start + requestIntervalNanos;
+            if (next - now > burstNanos) {
+                rejectedClientRate.increment();
+                return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(next - burstNanos - now + 999_999_999));
+            }
+            if (state.fullAt.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Admits a request under the global limit, waiting in the queue if need be
+     *
+     * @return whether the request was admitted, in which case release() must follow
+     */
+    public boolean acquire() {
+        if (tryAcquire(false)) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            rejectedQueueFull.increment();
+            return false;
+        }
+        queued.increment();
+        long started = System.nanoTime();
+        lock.lock();
+        try {
+            long remaining = maxWaitNanos;
+            while (!tryAcquire(false)) {
+                if (remaining <= 0) {
+                    rejectedTimeout.increment();
+                    return false;
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejectedTimeout.increment();
+            return false;
+        } finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+            queueWait.recordNanos(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Admits a request under the global limit if there is room right now, never waiting
+     *
+     * @param countRejection whether a refusal is counted, false when the caller may still queue
+     * @return whether the request was admitted, in which case release() must follow
+     */
+    public boolean tryAcquire(boolean countRejection) {
+        int limit = enabled ? getLimit() : Integer.MAX_VALUE;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                if (countRejection) {
+                    rejectedQueueFull.increment();
+                }
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends an admitted request's hold on the limit and adjusts the limit
+     *
+     * @param latencyNanos time from admission to the first response byte
+     * @param failed       whether the upstream failed or timed out
+     */
+    public void release(long latencyNanos, boolean failed) {
+        int before = inFlight.getAndDecrement();
+        if (enabled) {
+            if (failed || latencyNanos > latencyThresholdNanos) {
+                decrease();
+            } else if (before * 2 >= getLimit()) {
+                // Only grow a limit that is actually being used
+                scaledLimit.accumulateAndGet(0, (scaled, ignored) ->
+                        Math.min((long) maxLimit * SCALE, scaled + (long) SCALE * SCALE / Math.max(SCALE, scaled)));
+            }
+        }
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        long last = lastDecrease.get();
+        if (now - last < DECREASE_INTERVAL_NANOS || !lastDecrease.compareAndSet(last, now)) {
+            return;
+        }
+        scaledLimit.accumulateAndGet(0, (scaled, ignored) -> Math.max((long) minLimit * SCALE, scaled * 9 / 10));
+    }
+
+    /**
+     * @return summary of admission for the console
+     */
+    public String describe() {
+        if (!enabled) {
+            return "Admission control disabled\n";
+        }
+        return "Admission limit " + getLimit() + ", " + inFlight.get() + " in flight, " + waiting.get() + " waiting; "
+                + admitted.sum() + " admitted, " + queued.sum() + " queued, rejected: " + rejectedQueueFull.sum()
+                + " queue full, " + rejectedTimeout.sum() + " timed out, " + rejectedClientConnections.sum()
+                + " client connections, " + rejectedClientRate.sum() + " client rate; " + clients.size()
+                + " clients tracked\n";
+    }
+}
@@ -0,0 +1,863 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hosts the proxy refuses to forward requests to.
+ * Rules are read from proxy.blocklist.file, one per line, with # starting a comment:
+ * "example.com" blocks that host, "*.example.com" blocks its subdomains,
+ * ".example.com" blocks both, and "10.0.0.0/8", "2001:db8::/32" or a single
+ * address block hosts given as IP literals. Host names are never resolved to
+ * be checked against networks, the check runs before any DNS lookup.
+ *
+ * Names are matched in a trie of their labels in reverse order, flattened into
+ * arrays, and addresses by binary search over sorted ranges, so a lookup takes
+ * no locks and allocates nothing. All rules live in an immutable snapshot which
+ * reloads and console edits replace as a whole, the file being checked for
+ * changes every proxy.blocklist.reloadMillis.
+ */
+public final class Blocklist {
+
+    private static final Blocklist shared = new Blocklist();
+
+    /**
+     * Most rules listed by describe()
+     */
+    private static final int DESCRIBE_LIMIT = 100;
+
+    private final Path file = Paths.get(ProxyConfig.get("proxy.blocklist.file", "blocklist.txt"));
+
+    private volatile Snapshot snapshot = Snapshot.build(Collections.emptyList());
+
+    /**
+     * Serialises reloads and edits, lookups never take it
+     */
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private FileTime loadedModified;
+    private long loadedSize = -1;
+
+    final LongAdder blocked = new LongAdder();
+
+    private Blocklist() {
+        reloadIfChanged();
+        Metrics metrics = Metrics.getShared();
+        metrics.gauge("proxy_blocklist_rules", "Rules in the blocklist", () -> snapshot.rules.size());
+        metrics.counter("proxy_blocked_requests_total", "Requests refused because their host is blocked",
+                blocked::sum);
+
+        long interval = ProxyConfig.getLong("proxy.blocklist.reloadMillis", 2000);
+        if (interval > 0) {
+            Thread reloader = new Thread(() -> reloadLoop(interval), "blocklist-reload");
+            reloader.setDaemon(true);
+            reloader.start();
+        }
+    }
+
+    public static Blocklist getShared() {
+        return shared;
+    }
+
+    /**
+     * Checks whether a request goes to a blocked host, counting it if so
+     *
+     * @param request parsed request line
+     * @return whether the request must be refused
+     */
+    public boolean isBlocked(RequestLine request) {
+        boolean match;
+        if (request.isConnect()) {
+            match = isBlockedHost(request.host, 0, request.host.length());
+        } else {
+            String url = request.urlString;
+            int from = url.indexOf("://");
+            from = from < 0 ? 0 : from + 3;
+            int to = from;
+            while (to < url.length() && url.charAt(to) != '/' && url.charAt(to) != '?' && url.charAt(to) != '#') {
+                to++;
+            }
+            for (int i = to - 1; i >= from; i--) {
+                if (url.charAt(i) == '@') {
+                    from = i + 1;
+                    break;
+                }
+            }
+            // The port follows the first colon, or the closing bracket of an IPv6 literal
+            char portAfter = from < to && url.charAt(from) == '[' ? ']' : ':';
+            for (int i = from; i < to; i++) {
+                if (url.charAt(i) == portAfter) {
+                    to = portAfter == ']' ? i + 1 : i;
+                    break;
+                }
+            }
+            match = isBlockedHost(url, from, to);
+        }
+        if (match) {
+            blocked.increment();
+        }
+        return match;
+    }
+
+    /**
+     * @param host  text holding a host name or IP literal, possibly in brackets
+     * @param start index of the first character of the host
+     * @param end   index after the last character of the host
+     * @return whether a rule blocks the host
+     */
+    public boolean isBlockedHost(CharSequence host, int start, int end) {
+        return snapshot.blocks(host, start, end);
+    }
+
+    /**
+     * Adds a rule and appends it to the rules file
+     *
+     * @param rule host, wildcard or network as written in the rules file, or a URL
+     * @return message for the console
+     */
+    public String block(String rule) {
+        String normalized = normalize(rule);
+        if (normalized == null) {
+            return "Not a host, wildcard or network: " + rule + "\n";
+        }
+        updateLock.lock();
+        try {
+            if (snapshot.rules.contains(normalized)) {
+                return normalized + " is already blocked\n";
+            }
+            try {
+                Files.write(file, (normalized + System.lineSeparator()).getBytes(StandardCharsets.ISO_8859_1),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                rememberFile();
+            } catch (IOException e) {
+                System.out.println("Could not save blocklist rule to " + file + ", it lasts until the next reload");
+            }
+            List<String> rules = new ArrayList<>(snapshot.rules);
+            rules.add(normalized);
+            snapshot = Snapshot.build(rules);
+            return "Blocked " + normalized + "\n";
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a rule and every line of the rules file that holds it
+     *
+     * @param rule rule as given to block()
+     * @return message for the console
+     */
+    public String unblock(String rule) {
+        String normalized = normalize(rule);
+        updateLock.lock();
+        try {
+            if (normalized == null || !snapshot.rules.contains(normalized)) {
+                return rule + " is not blocked\n";
+            }
+            try {
+                List<String> kept = new ArrayList<>();
+                for (String line : Files.readAllLines(file, StandardCharsets.ISO_8859_1)) {
+                    if (!normalized.equals(normalize(stripComment(line)))) {
+                        kept.add(line);
+                    }
+                }
+                Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(temporary, kept, StandardCharsets.ISO_8859_1);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                rememberFile();
+            } catch (IOException e) {
+                System.out.println("Could not remove blocklist rule from " + file + ", it returns on the next reload");
+            }
+            List<String> rules = new ArrayList<>(snapshot.rules);
+            rules.removeIf(normalized::equals);
+            snapshot = Snapshot.build(rules);
+            return "Unblocked " + normalized + "\n";
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * @return summary of the blocklist followed by its first rules, for the console
+     */
+    public String describe() {
+        List<String> rules = snapshot.rules;
+        if (rules.isEmpty()) {
+            return "No sites blocked\n";
+        }
+        StringBuilder description = new StringBuilder();
+        description.append(rules.size()).append(" rules from ").append(file.toAbsolutePath()).append(", ")
+                .append(blocked.sum()).append(" requests blocked\n");
+        for (int i = 0; i < rules.size() && i < DESCRIBE_LIMIT; i++) {
+            description.append(rules.get(i)).append('\n');
+        }
+        if (rules.size() > DESCRIBE_LIMIT) {
+            description.append("... and ").append(rules.size() - DESCRIBE_LIMIT).append(" more\n");
+        }
+        return description.toString();
+    }
+
+    private void reloadLoop(long interval) {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reloadIfChanged();
+        }
+    }
+
+    /**
+     * Reads the rules file again if it changed since it was last read, and
+     * swaps the new rules in. Requests being checked carry on with the old ones.
+     */
+    private void reloadIfChanged() {
+        updateLock.lock();
+        try {
+            FileTime modified = null;
+            long size = -1;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                modified = attributes.lastModifiedTime();
+                size = attributes.size();
+            } catch (IOException e) {
+                // No rules file, nothing is blocked
+            }
+            if (size == loadedSize && (modified == null || modified.equals(loadedModified))) {
+                return;
+            }
+            List<String> rules = new ArrayList<>();
+            int invalid = 0;
+            if (modified != null) {
+                Set<String> seen = new HashSet<>();
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = stripComment(line);
+                        if (line.isEmpty()) {
+                            continue;
+                        }
+                        String rule = normalize(line);
+                        if (rule == null) {
+                            invalid++;
+                        } else if (seen.add(rule)) {
+                            rules.add(rule);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // Removed since its attributes were read
+                } catch (IOException e) {
+                    System.out.println("Could not read blocklist " + file + ", keeping the current rules");
+                    return;
+                }
+            }
+            snapshot = Snapshot.build(rules);
+            loadedModified = modified;
+            loadedSize = size;
+            if (modified != null) {
+                System.out.println("Loaded " + rules.size() + " blocklist rules from " + file
+                        + (invalid > 0 ? ", ignored " + invalid + " invalid lines" : ""));
+            }
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Records the state of the rules file after writing it, so the change is not read back
+     */
+    private void rememberFile() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        loadedModified = attributes.lastModifiedTime();
+        loadedSize = attributes.size();
+    }
+
+    private static String stripComment(String line) {
+        int hash = line.indexOf('#');
+        return (hash < 0 ? line : line.substring(0, hash)).trim();
+    }
+
+    /**
+     * Brings a rule to the form it is stored and listed in
+     *
+     * @param rule host, *.suffix, .suffix, address or network, or a URL whose host is taken
+     * @return the rule in lower case without scheme, port or path, or null if it is not valid
+     */
+    static String normalize(String rule) {
+        String value = rule.trim().toLowerCase(Locale.ROOT);
+        int scheme = value.indexOf("://");
+        if (scheme >= 0) {
+            value = value.substring(scheme + 3);
+            int end = 0;
+            while (end < value.length() && "/?#".indexOf(value.charAt(end)) < 0) {
+                end++;
+            }
+            value = value.substring(value.lastIndexOf('@', end - 1) + 1, end);
+            int colon = value.lastIndexOf(':');
+            if (colon >= 0 && value.indexOf(']') < colon && value.indexOf(':') == colon) {
+                value = value.substring(0, colon);
+            }
+        }
+        if (value.startsWith("[")) {
+            int close = value.indexOf(']');
+            if (close < 0) {
+                return null;
+            }
+            // A prefix length may follow the brackets, a port is dropped
+            String rest = value.substring(close + 1);
+            value = value.substring(1, close) + (rest.startsWith("/") ? rest : "");
+        }
+        if (value.endsWith(".")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        if (value.isEmpty()) {
+            return null;
+        }
+
+        int slash = value.indexOf('/');
+        int addressEnd = slash < 0 ? value.length() : slash;
+        int maxPrefix = parseIpv4(value, 0, addressEnd) >= 0 ? 32 : isIpv6(value, 0, addressEnd) ? 128 : -1;
+        if (maxPrefix > 0) {
+            if (slash < 0) {
+                return value;
+            }
+            int prefix;
+            try {
+                prefix = Integer.parseInt(value.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return prefix >= 0 && prefix <= maxPrefix ? value.substring(0, slash) + "/" + prefix : null;
+        }
+
+        int name = value.startsWith("*.") ? 2 : value.startsWith(".") ? 1 : 0;
+        if (name == value.length()) {
+            return null;
+        }
+        boolean labelStart = true;
+        for (int i = name; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '.') {
+                if (labelStart) {
+                    return null;
+                }
+                labelStart = true;
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                labelStart = false;
+            } else {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the address as an unsigned 32 bit value, or -1 if the text is not a dotted quad
+     */
+    static long parseIpv4(CharSequence s, int start, int end) {
+        long address = 0;
+        int parts = 0;
+        int i = start;
+        while (parts < 4) {
+            int digits = 0;
+            int part = 0;
+            while (i < end && digits < 4) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                part = part * 10 + c - '0';
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || part > 255) {
+                return -1;
+            }
+            address = address << 8 | part;
+            parts++;
+            if (parts < 4) {
+                if (i >= end || s.charAt(i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        return i == end ? address : -1;
+    }
+
+    /**
+     * @return whether the text is an IPv6 address of hexadecimal groups, with at most one "::"
+     */
+    static boolean isIpv6(CharSequence s, int start, int end) {
+        if (end - start < 2) {
+            return false;
+        }
+        int gap = -1;
+        int groups = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == ':') {
+                if (i + 1 < end && s.charAt(i + 1) == ':') {
+                    if (gap >= 0) {
+                        return false;
+                    }
+                    gap = i;
+                    if (digits > 0) {
+                        groups++;
+                    }
+                    digits = 0;
+                    i++;
+                    continue;
+                }
+                if (digits == 0) {
+                    return false;
+                }
+                groups++;
+                digits = 0;
+            } else if (Character.digit(c, 16) >= 0 && c < 128) {
+                if (++digits > 4) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        if (digits > 0) {
+            groups++;
+        } else if (gap != end - 2) {
+            return false;
+        }
+        return gap >= 0 ? groups < 8 : groups == 8;
+    }
+
+    /**
+     * Reads one half of an IPv6 address, which must have been checked with isIpv6()
+     *
+     * @param high true for the first 64 bits, false for the last 64
+     */
+    static long ipv6Half(CharSequence s, int start, int end, boolean high) {
+        int gap = -1;
+        for (int i = start; i + 1 < end; i++) {
+            if (s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+                gap = i;
+                break;
+            }
+        }
+        if (gap < 0) {
+            return ipv6Groups(s, start, end, 0, high);
+        }
+        long bits = ipv6Groups(s, start, gap, 0, high);
+        int tail = gap + 2;
+        if (tail < end) {
+            int groups = 1;
+            for (int i = tail; i < end; i++) {
+                if (s.charAt(i) == ':') {
+                    groups++;
+                }
+            }
+            bits |= ipv6Groups(s, tail, end, 8 - groups, high);
+        }
+        return bits;
+    }
+
+    /**
+     * @param group index of the first group in the text, counted from the left of the address
+     * @return the groups in the text that fall into the requested half, in place
+     */
+    private static long ipv6Groups(CharSequence s, int start, int end, int group, boolean high) {
+        long bits = 0;
+        int value = 0;
+        for (int i = start; i <= end; i++) {
+            if (i == end || s.charAt(i) == ':') {
+                if (i > start) {
+                    if (high && group < 4) {
+                        bits |= (long) value << (16 * (3 - group));
+                    } else if (!high && group >= 4) {
+                        bits |= (long) value << (16 * (7 - group));
+                    }
+                }
+                group++;
+                value = 0;
+            } else {
+                value = value << 4 | Character.digit(s.charAt(i), 16);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * One immutable set of rules. Names are kept as a trie over their labels,
+     * last label first, flattened breadth first so the children of a node sit
+     * next to each other, sorted by the hash of their label.
+     */
+    static final class Snapshot {
+
+        /**
+         * The node's name is blocked
+         */
+        private static final byte EXACT = 1;
+
+        /**
+         * Names below the node's name are blocked
+         */
+        private static final byte SUBDOMAINS = 2;
+
+        /**
+         * Rules in the order they were added
+         */
+        final List<String> rules;
+
+        /**
+         * Labels of all nodes, the label of node i running from labelStart[i] to labelStart[i + 1]
+         */
+        private final char[] labels;
+        private final int[] labelStart;
+        private final int[] labelHash;
+        private final byte[] flags;
+
+        /**
+         * Children of node i are the nodes from firstChild[i] to firstChild[i + 1]
+         */
+        private final int[] firstChild;
+
+        /**
+         * Merged, sorted IPv4 ranges, inclusive
+         */
+        private final long[] ipv4Start;
+        private final long[] ipv4End;
+
+        /**
+         * Merged, sorted IPv6 ranges, inclusive, each address split in two unsigned halves
+         */
+        private final long[] ipv6StartHigh;
+        private final long[] ipv6StartLow;
+        private final long[] ipv6EndHigh;
+        private final long[] ipv6EndLow;
+
+        private Snapshot(List<String> rules, char[] labels, int[] labelStart, int[] labelHash, byte[] flags,
+                         int[] firstChild, List<long[]> ipv4, List<long[]> ipv6) {
+            this.rules = rules;
+            this.labels = labels;
+            this.labelStart = labelStart;
+            this.labelHash = labelHash;
+            this.flags = flags;
+            this.firstChild = firstChild;
+            ipv4Start = new long[ipv4.size()];
+            ipv4End = new long[ipv4.size()];
+            for (int i = 0; i < ipv4.size(); i++) {
+                ipv4Start[i] = ipv4.get(i)[0];
+                ipv4End[i] = ipv4.get(i)[1];
+            }
+            ipv6StartHigh = new long[ipv6.size()];
+            ipv6StartLow = new long[ipv6.size()];
+            ipv6EndHigh = new long[ipv6.size()];
+            ipv6EndLow = new long[ipv6.size()];
+            for (int i = 0; i < ipv6.size(); i++) {
+                long[] range = ipv6.get(i);
+                ipv6StartHigh[i] = range[0];
+                ipv6StartLow[i] = range[1];
+                ipv6EndHigh[i] = range[2];
+                ipv6EndLow[i] = range[3];
+            }
+        }
+
+        /**
+         * Trie node used while building, before the trie is flattened
+         */
+        private static final class Node {
+            final String label;
+            byte flags;
+            Map<String, Node> children;
+
+            Node(String label) {
+                this.label = label;
+            }
+        }
+
+        /**
+         * @param rules normalized rules
+         */
+        static Snapshot build(List<String> rules) {
+            Node root = new Node("");
+            int nodes = 1;
+            int labelChars = 0;
+            List<long[]> ipv4 = new ArrayList<>();
+            List<long[]> ipv6 = new ArrayList<>();
+            for (String rule : rules) {
+                int slash = rule.indexOf('/');
+                int addressEnd = slash < 0 ? rule.length() : slash;
+                long address = parseIpv4(rule, 0, addressEnd);
+                if (address >= 0) {
+                    int prefix = slash < 0 ? 32 : Integer.parseInt(rule.substring(slash + 1));
+                    long mask = prefix == 0 ? 0 : 0xFFFFFFFFL << (32 - prefix) & 0xFFFFFFFFL;
+                    ipv4.add(new long[]{address & mask, address & mask | ~mask & 0xFFFFFFFFL});
+                    continue;
+                }
+                if (isIpv6(rule, 0, addressEnd)) {
+                    int prefix = slash < 0 ? 128 : Integer.parseInt(rule.substring(slash + 1));
+                    long high = ipv6Half(rule, 0, addressEnd, true);
+                    long low = ipv6Half(rule, 0, addressEnd, false);
+                    if (prefix <= 64) {
+                        long mask = prefix == 0 ? 0 : -1L << (64 - prefix);
+                        ipv6.add(new long[]{high & mask, 0, high & mask | ~mask, -1L});
+                    } else {
+                        long mask = -1L << (128 - prefix);
+                        ipv6.add(new long[]{high, low & mask, high, low & mask | ~mask});
+                    }
+                    continue;
+                }
+
+                byte flag = rule.startsWith("*.") ? SUBDOMAINS : rule.startsWith(".") ? (byte) (EXACT | SUBDOMAINS) : EXACT;
+                int nameStart = flag == EXACT ? 0 : flag == SUBDOMAINS ? 2 : 1;
+                Node node = root;
+                int end = rule.length();
+                while (end > nameStart) {
+                    int start = rule.lastIndexOf('.', end - 1) + 1;
+                    if (start < nameStart) {
+                        start = nameStart;
+                    }
+                    String label = rule.substring(start, end);
+                    if (node.children == null) {
+                        node.children = new HashMap<>();
+                    }
+                    Node child = node.children.get(label);
+                    if (child == null) {
+                        child = new Node(label);
+                        node.children.put(label, child);
+                        nodes++;
+                        labelChars += label.length();
+                    }
+                    node = child;
+                    end = start - 1;
+                }
+                node.flags |= flag;
+            }
+
+            // Flatten breadth first, so the children of each node follow those of the node before it
+            char[] labels = new char[labelChars];
+            int[] labelStart = new int[nodes + 1];
+            int[] labelHash = new int[nodes];
+            byte[] flags = new byte[nodes];
+            int[] firstChild = new int[nodes + 1];
+            Node[] order = new Node[nodes];
+            order[0] = root;
+            int added = 1;
+            int chars = 0;
+            for (int i = 0; i < nodes; i++) {
+                Node node = order[i];
+                labelStart[i] = chars;
+                node.label.getChars(0, node.label.length(), labels, chars);
+                chars += node.label.length();
+                labelHash[i] = hash(node.label, 0, node.label.length());
+                flags[i] = node.flags;
+                firstChild[i] = added;
+                if (node.children != null) {
+                    List<Node> children = new ArrayList<>(node.children.values());
+                    children.sort(Comparator.comparingInt(child -> hash(child.label, 0, child.label.length())));
+                    for (Node child : children) {
+                        order[added++] = child;
+                    }
+                }
+                order[i] = null;
+            }
+            labelStart[nodes] = chars;
+            firstChild[nodes] = nodes;
+
+            return new Snapshot(Collections.unmodifiableList(rules), labels, labelStart, labelHash, flags, firstChild,
+                    merge(ipv4, Comparator.comparingLong(range -> range[0]), Snapshot::mergeIpv4),
+                    merge(ipv6, Snapshot::compareIpv6Start, Snapshot::mergeIpv6));
+        }
+
+        private interface Merger {
+            /**
+             * @return whether next overlapped or touched current, which has been extended over it
+             */
+            boolean merge(long[] current, long[] next);
+        }
+
+        private static List<long[]> merge(List<long[]> ranges, Comparator<long[]> order, Merger merger) {
+            ranges.sort(order);
+            List<long[]> merged = new ArrayList<>();
+            for (long[] range : ranges) {
+                if (merged.isEmpty() || !merger.merge(merged.get(merged.size() - 1), range)) {
+                    merged.add(range);
+                }
+            }
+            return merged;
+        }
+
+        private static boolean mergeIpv4(long[] current, long[] next) {
+            if (next[0] > current[1] + 1) {
+                return false;
+            }
+            current[1] = Math.max(current[1], next[1]);
+            return true;
+        }
+
+        private static int compareIpv6Start(long[] a, long[] b) {
+            int high = Long.compareUnsigned(a[0], b[0]);
+            return high != 0 ? high : Long.compareUnsigned(a[1], b[1]);
+        }
+
+        private static boolean mergeIpv6(long[] current, long[] next) {
+            // Ranges touching end to start are left apart, they still match the same addresses
+            if (compareUnsigned128(next[0], next[1], current[2], current[3]) > 0) {
+                return false;
+            }
+            if (compareUnsigned128(next[2], next[3], current[2], current[3]) > 0) {
+                current[2] = next[2];
+                current[3] = next[3];
+            }
+            return true;
+        }
+
+        private static int compareUnsigned128(long aHigh, long aLow, long bHigh, long bLow) {
+            int high = Long.compareUnsigned(aHigh, bHigh);
+            return high != 0 ? high : Long.compareUnsigned(aLow, bLow);
+        }
+
+        /**
+         * String.hashCode of the text in lower case
+         */
+        private static int hash(CharSequence s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + lowerCase(s.charAt(i));
+            }
+            return h;
+        }
+
+        private static char lowerCase(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        }
+
+        /**
+         * @param host  text holding a host name or IP literal, possibly in brackets
+         * @param start index of the first character of the host
+         * @param end   index after the last character of the host
+         * @return whether a rule blocks the host
+         */
+        boolean blocks(CharSequence host, int start, int end) {
+            if (end - start >= 2 && host.charAt(start) == '[' && host.charAt(end - 1) == ']') {
+                start++;
+                end--;
+            }
+            if (end > start && host.charAt(end - 1) == '.') {
+                end--;
+            }
+            long ipv4 = parseIpv4(host, start, end);
+            if (ipv4 >= 0) {
+                return containsIpv4(ipv4);
+            }
+            if (isIpv6(host, start, end)) {
+                return containsIpv6(ipv6Half(host, start, end, true), ipv6Half(host, start, end, false));
+            }
+            return matchesName(host, start, end);
+        }
+
+        /**
+         * Walks the trie from the last label of the name to the first
+         */
+        boolean matchesName(CharSequence host, int start, int end) {
+            int node = 0;
+            int labelEnd = end;
+            while (true) {
+                int labelBegin = labelEnd;
+                while (labelBegin > start && host.charAt(labelBegin - 1) != '.') {
+                    labelBegin--;
+                }
+                node = child(node, host, labelBegin, labelEnd);
+                if (node < 0) {
+                    return false;
+                }
+                if (labelBegin == start) {
+                    return (flags[node] & EXACT) != 0;
+                }
+                if ((flags[node] & SUBDOMAINS) != 0) {
+                    return true;
+                }
+                labelEnd = labelBegin - 1;
+            }
+        }
+
+        /**
+         * @return the child of the node with the given label, or -1
+         */
+        private int child(int node, CharSequence host, int start, int end) {
+            int h = hash(host, start, end);
+            int low = firstChild[node];
+            int high = firstChild[node + 1];
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (labelHash[middle] < h) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < firstChild[node + 1] && labelHash[i] == h; i++) {
+                int length = labelStart[i + 1] - labelStart[i];
+                if (length != end - start) {
+                    continue;
+                }
+                int j = 0;
+                while (j < length && labels[labelStart[i] + j] == lowerCase(host.charAt(start + j))) {
+                    j++;
+                }
+                if (j == length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean containsIpv4(long address) {
+            int low = 0;
+            int high = ipv4Start.length - 1;
+            // Last range starting at or before the address
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (ipv4Start[middle] <= address) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high >= 0 && address <= ipv4End[high];
+        }
+
+        boolean containsIpv6(long addressHigh, long addressLow) {
+            int low = 0;
+            int high = ipv6StartHigh.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (compareUnsigned128(ipv6StartHigh[middle], ipv6StartLow[middle], addressHigh, addressLow) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high >= 0
+                    && compareUnsigned128(addressHigh, addressLow, ipv6EndHigh[high], ipv6EndLow[high]) <= 0;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of direct buffers for relaying bytes between sockets.
+ * Direct buffers let the kernel read into and write from the same native
+ * memory, so relayed data is never copied onto the Java heap. Allocating them
+ * is expensive, hence the pool.
+ */
+public final class BufferPool {
+
+    /**
+     * Size of every pooled buffer
+     */
+    static final int BUFFER_SIZE = ProxyConfig.getInt("proxy.buffer.size", 64 * 1024);
+
+    /**
+     * Most buffers kept idle, anything released beyond this is left to the GC
+     */
+    private static final int MAX_IDLE = ProxyConfig.getInt("proxy.buffer.maxIdle", 1024);
+
+    private static final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a cleared buffer of BUFFER_SIZE bytes
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used by the caller afterwards
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        idle.offer(buffer);
+    }
+
+    public static int getIdleCount() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an HTTP/1.1 chunked body, returning only the data inside the chunks.
+ * Trailers after the last chunk are read and dropped. The underlying stream is
+ * never read past the end of the body, so the connection can carry the next response.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    private final InputStream in;
+
+    /**
+     * Data bytes left in the current chunk
+     */
+    private long chunkRemaining;
+
+    /**
+     * Whether a chunk has ended and its CRLF must be read before the next size line
+     */
+    private boolean chunkEnded;
+
+    private boolean complete;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (complete) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (chunkRemaining == 0) {
+            if (chunkEnded) {
+                requireLine("");
+                chunkEnded = false;
+            }
+            chunkRemaining = readChunkSize();
+            if (chunkRemaining == 0) {
+                // Skip the trailers up to the blank line ending the body
+                String trailer;
+                do {
+                    trailer = UpstreamResponse.readLine(in);
+                    if (trailer == null) {
+                        throw new EOFException("Chunked body ended inside the trailers");
+                    }
+                } while (!trailer.isEmpty());
+                complete = true;
+                return -1;
+            }
+        }
+        int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (read < 0) {
+            throw new EOFException("Chunked body ended inside a chunk");
+        }
+        chunkRemaining -= read;
+        if (chunkRemaining == 0) {
+            chunkEnded = true;
+        }
+        return read;
+    }
+
+    private long readChunkSize() throws IOException {
+        String line = UpstreamResponse.readLine(in);
+        if (line == null) {
+            throw new EOFException("Chunked body ended before the last chunk");
+        }
+        // Chunk extensions follow a semicolon and are ignored
+        int semicolon = line.indexOf(';');
+        String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+        try {
+            long length = Long.parseLong(size, 16);
+            if (length < 0) {
+                throw new NumberFormatException(size);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + line);
+        }
+    }
+
+    private void requireLine(String expected) throws IOException {
+        String line = UpstreamResponse.readLine(in);
+        if (!expected.equals(line)) {
+            throw new IOException("Malformed chunk, missing CRLF after data");
+        }
+    }
+
+    /**
+     * @return whether the whole body, trailers included, has been read
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Does not close the underlying stream, which belongs to the connection
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes everything passed to it as HTTP/1.1 chunks.
+ * finish() writes the terminating chunk without closing the underlying stream.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            // An empty chunk would end the body
+            return;
+        }
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    /**
+     * Ends the chunked body, further writes are not allowed
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            out.write(LAST_CHUNK);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
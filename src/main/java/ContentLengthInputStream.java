@@ -0,0 +1,54 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a body of known length, stopping exactly at its end so the
+ * connection can carry the next response.
+ */
+public class ContentLengthInputStream extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+
+    public ContentLengthInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0) {
+            throw new EOFException("Body ended with " + remaining + " bytes missing");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    /**
+     * @return whether the whole body has been read
+     */
+    public boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /**
+     * Does not close the underlying stream, which belongs to the connection
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,284 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resolves the targets of CONNECT requests, caching answers and failures.
+ * Lookups run on a small pool of resolver threads, so a slow resolver holds up
+ * those threads rather than every request thread, and concurrent lookups of
+ * one name share a single query. Answers are kept for proxy.dns.ttlMillis and
+ * failures for proxy.dns.negativeTtlMillis, as InetAddress does not report
+ * record TTLs. A name used within proxy.dns.refreshAheadMillis of its expiry
+ * is looked up again in the background, so names in constant use never miss.
+ * At most proxy.dns.maxEntries names are kept, expired and least recently used
+ * ones going first. With proxy.dns.resolveLocally false nothing is resolved
+ * here and the upstream proxy is sent the host name.
+ */
+public final class DnsCache {
+
+    private static final DnsCache shared = new DnsCache();
+
+    private final boolean resolveLocally = ProxyConfig.getBoolean("proxy.dns.resolveLocally", true);
+    private final int maxEntries = Math.max(1, ProxyConfig.getInt("proxy.dns.maxEntries", 10000));
+    private final long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ProxyConfig.getLong("proxy.dns.ttlMillis", 60000));
+    private final long negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(
+            ProxyConfig.getLong("proxy.dns.negativeTtlMillis", 10000));
+    private final long refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(
+            ProxyConfig.getLong("proxy.dns.refreshAheadMillis", 10000));
+    private final long timeoutMillis = ProxyConfig.getLong("proxy.dns.timeoutMillis", 5000);
+
+    /**
+     * Cached answers and failures by lower case host name
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Lookups in progress, each shared by every caller asking for the name meanwhile
+     */
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+
+    private final ExecutorService resolvers;
+
+    /**
+     * Held by the one thread trimming the cache, lookups never wait for it
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder negativeHits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram lookupLatency;
+
+    /**
+     * A cached answer, address is null when the name did not resolve
+     */
+    private static final class Entry {
+        final InetAddress address;
+        final long expiresAt;
+        volatile long lastUsed;
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    private DnsCache() {
+        int threads = Math.max(1, ProxyConfig.getInt("proxy.dns.threads", 4));
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(ProxyConfig.getInt("proxy.dns.queueSize", 1024)), task -> {
+            Thread thread = new Thread(task, "dns-resolver-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        resolvers = executor;
+
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_dns_hits_total{result=\"address\"}", "DNS cache hits by cached result", hits::sum);
+        metrics.counter("proxy_dns_hits_total{result=\"failure\"}", "DNS cache hits by cached result",
+                negativeHits::sum);
+        metrics.counter("proxy_dns_misses_total", "Names not in the DNS cache or expired", misses::sum);
+        metrics.counter("proxy_dns_coalesced_total", "Misses that joined a lookup already in progress",
+                coalesced::sum);
+        metrics.counter("proxy_dns_refreshes_total", "Background lookups of names about to expire", refreshes::sum);
+        metrics.counter("proxy_dns_failures_total", "Lookups that found no address", failures::sum);
+        metrics.counter("proxy_dns_evictions_total", "Names dropped to keep the DNS cache bounded", evictions::sum);
+        metrics.gauge("proxy_dns_entries", "Names held by the DNS cache", entries::size);
+        lookupLatency = metrics.histogram("proxy_dns_lookup_seconds", "Time taken by DNS lookups");
+    }
+
+    public static DnsCache getShared() {
+        return shared;
+    }
+
+    /**
+     * @return whether CONNECT targets are resolved by the proxy rather than the upstream proxy
+     */
+    public boolean isResolvingLocally() {
+        return resolveLocally;
+    }
+
+    /**
+     * Resolves a host name, waiting at most proxy.dns.timeoutMillis for a lookup
+     *
+     * @param host name or address literal
+     * @return the address
+     * @throws UnknownHostException if the name does not resolve or the lookup takes too long
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        CompletableFuture<InetAddress> address = resolveAsync(host);
+        try {
+            return address.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw new UnknownHostException(host + ": " + e.getCause());
+        } catch (TimeoutException e) {
+            // The lookup carries on and its answer is cached for the next request
+            throw new UnknownHostException(host + ": lookup timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        }
+    }
+
+    /**
+     * Resolves a host name without blocking the caller
+     *
+     * @param host name or address literal
+     * @return the address, completed straight away on a cache hit, failing
+     * with UnknownHostException if the name does not resolve
+     */
+    public CompletableFuture<InetAddress> resolveAsync(String host) {
+        if (Blocklist.parseIpv4(host, 0, host.length()) >= 0 || Blocklist.isIpv6(host, 0, host.length())) {
+            // Literals are parsed, never looked up
+            try {
+                return CompletableFuture.completedFuture(InetAddress.getByName(host));
+            } catch (UnknownHostException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        String name = host.toLowerCase(Locale.ROOT);
+        Entry entry = entries.get(name);
+        long now = System.nanoTime();
+        if (entry != null && now - entry.expiresAt < 0) {
+            entry.lastUsed = now;
+            if (entry.address == null) {
+                negativeHits.increment();
+                return CompletableFuture.failedFuture(new UnknownHostException(host));
+            }
+            hits.increment();
+            if (entry.expiresAt - now < refreshAheadNanos) {
+                lookup(name, true);
+            }
+            return CompletableFuture.completedFuture(entry.address);
+        }
+        misses.increment();
+        return lookup(name, false).thenCompose(result -> result.address != null
+                ? CompletableFuture.completedFuture(result.address)
+                : CompletableFuture.failedFuture(new UnknownHostException(host)));
+    }
+
+    /**
+     * Starts a lookup of the name unless one is already running
+     *
+     * @param refresh whether a cached answer is being renewed ahead of its expiry
+     * @return the lookup in progress for the name
+     */
+    private CompletableFuture<Entry> lookup(String name, boolean refresh) {
+        CompletableFuture<Entry> started = new CompletableFuture<>();
+        CompletableFuture<Entry> running = lookups.putIfAbsent(name, started);
+        if (running != null) {
+            if (!refresh) {
+                coalesced.increment();
+            }
+            return running;
+        }
+        if (refresh) {
+            refreshes.increment();
+        }
+        try {
+            resolvers.execute(() -> {
+                long begin = System.nanoTime();
+                InetAddress address = null;
+                try {
+                    address = InetAddress.getByName(name);
+                } catch (UnknownHostException | RuntimeException e) {
+                    failures.increment();
+                }
+                long end = System.nanoTime();
+                lookupLatency.recordNanos(end - begin);
+                Entry result = new Entry(address, end + (address != null ? ttlNanos : negativeTtlNanos));
+                Entry cached = entries.get(name);
+                if (address != null || cached == null || cached.address == null || end - cached.expiresAt >= 0) {
+                    store(name, result);
+                }
+                // Cached before the lookup is removed, so no caller finds neither
+                lookups.remove(name, started);
+                started.complete(result);
+            });
+        } catch (RejectedExecutionException e) {
+            // Every resolver is busy and the queue is full, answered as a failure without caching it
+            lookups.remove(name, started);
+            started.complete(new Entry(null, 0));
+        }
+        return started;
+    }
+
+    private void store(String name, Entry entry) {
+        entries.put(name, entry);
+        if (entries.size() > maxEntries && evictionLock.tryLock()) {
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops expired names, then the least recently used down to nine tenths of
+     * the limit so the next few insertions do not each trigger a pass
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        List<Map.Entry<String, Entry>> live = new ArrayList<>();
+        for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+            if (now - cached.getValue().expiresAt >= 0) {
+                if (entries.remove(cached.getKey(), cached.getValue())) {
+                    evictions.increment();
+                }
+            } else {
+                live.add(cached);
+            }
+        }
+        int excess = live.size() - maxEntries * 9 / 10;
+        if (excess <= 0) {
+            return;
+        }
+        live.sort(Comparator.comparingLong(cached -> cached.getValue().lastUsed));
+        for (int i = 0; i < excess; i++) {
+            if (entries.remove(live.get(i).getKey(), live.get(i).getValue())) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return summary of the cache for the console
+     */
+    public String describe() {
+        if (!resolveLocally) {
+            return "CONNECT targets are resolved by the upstream proxies\n";
+        }
+        return "DNS cache: " + entries.size() + " of " + maxEntries + " names, " + hits.sum() + " hits, "
+                + negativeHits.sum() + " cached failures, " + misses.sum() + " misses (" + coalesced.sum()
+                + " coalesced), " + refreshes.sum() + " refreshes, " + lookupLatency.getCount() + " lookups averaging "
+                + (lookupLatency.getCount() == 0 ? 0 : lookupLatency.getSumMicros() / lookupLatency.getCount() / 1000)
+                + " ms\n";
+    }
+}
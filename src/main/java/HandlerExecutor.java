@@ -0,0 +1,103 @@
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs RequestHandlers and tunnel relays.
+ * By default every task gets its own virtual thread when the JVM supports
+ * them (Java 21+). Otherwise, or when proxy.executor.virtual is false, tasks
+ * run on a bounded pool of platform threads. The pool never queues: a task
+ * either starts straight away or is rejected, so a tunnel can never wait for
+ * its second relay direction behind other work.
+ */
+public class HandlerExecutor {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    /**
+     * Threads currently running a task, removed again as each task finishes
+     */
+    private final Set<Thread> liveThreads = ConcurrentHashMap.newKeySet();
+
+    public HandlerExecutor() {
+        ExecutorService virtualExecutor = null;
+        if (ProxyConfig.getBoolean("proxy.executor.virtual", true)) {
+            virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor == null) {
+                System.out.println("Virtual threads unavailable on this JVM, using a thread pool");
+            }
+        }
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtual = true;
+        } else {
+            int poolSize = ProxyConfig.getInt("proxy.executor.poolSize", 512);
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor(0, Math.max(1, poolSize), 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(),
+                    r -> new Thread(r, "handler-" + threadNumber.incrementAndGet()));
+            virtual = false;
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so the
+     * proxy still compiles and runs on JVMs without virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts the task
+     *
+     * @param task work to run
+     * @throws RejectedExecutionException if the pool is saturated or shut down
+     */
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            liveThreads.add(thread);
+            try {
+                task.run();
+            } finally {
+                liveThreads.remove(thread);
+            }
+        });
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return snapshot of the threads running tasks right now
+     */
+    public Set<Thread> getLiveThreads() {
+        return Set.copyOf(liveThreads);
+    }
+
+    public int getActiveCount() {
+        return liveThreads.size();
+    }
+
+    /**
+     * Stops accepting tasks, running tasks are left to finish
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,848 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for the requests clients send to the proxy.
+ * It works on bytes in a buffer it owns and reuses for every request on a
+ * connection. Bytes can be added one read at a time and parsing resumes where
+ * the last call stopped, so a head split across TCP segments is handled the
+ * same way in blocking and non-blocking mode. The head is recorded as offsets
+ * into the buffer rather than as Strings; Strings are only made for the few
+ * values the proxy keeps, such as the target URL.
+ * After the head, the body is framed by its Content-Length or chunked encoding
+ * and can be forwarded exactly, leaving whatever follows it, such as a
+ * pipelined request, in the buffer for the next call to next(). The head stays
+ * in the buffer until then, so its headers can be read however long the body.
+ */
+public final class HttpRequestParser {
+
+    /**
+     * Largest request head accepted, also the size of the buffer
+     */
+    static final int MAX_HEAD_BYTES = ProxyConfig.getInt("proxy.request.maxHeadBytes", 16 * 1024);
+
+    /**
+     * Most header lines accepted in one request
+     */
+    private static final int MAX_HEADERS = 128;
+
+    enum Status {
+        /**
+         * More bytes are needed to finish the head
+         */
+        INCOMPLETE,
+        COMPLETE,
+        /**
+         * The head is malformed, or the body length cannot be determined
+         */
+        BAD_REQUEST,
+        /**
+         * The head does not fit in the buffer or has too many headers
+         */
+        TOO_LARGE
+    }
+
+    /**
+     * Methods returned without creating a String
+     */
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS",
+            "PATCH", "TRACE"};
+
+    private static final byte[] COLON_SPACE = {':', ' '};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final byte[] buffer = new byte[MAX_HEAD_BYTES];
+
+    /**
+     * First byte of the current request
+     */
+    private int start;
+
+    /**
+     * End of the bytes read so far
+     */
+    private int end;
+
+    /**
+     * Next byte of the head to examine
+     */
+    private int scan;
+    private int lineStart;
+
+    /**
+     * Next byte not yet consumed, only used once the head is complete
+     */
+    private int position;
+
+    private int headLength;
+    private long bodyBytes;
+
+    private boolean requestLineSeen;
+    private boolean headComplete;
+    private int requestLineEnd;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private boolean http11;
+
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+    private int headerCount;
+
+    private boolean chunked;
+    private long contentLength = -1;
+
+    /**
+     * Content-Length bytes, or bytes of the current chunk, still to come
+     */
+    private long bodyRemaining;
+    private boolean bodyComplete;
+    private boolean bodyStarted;
+    private int chunkState;
+    private boolean chunkSizeSeen;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXTENSION = 1;
+    private static final int CHUNK_DATA = 2;
+    private static final int CHUNK_DATA_CR = 3;
+    private static final int CHUNK_DATA_LF = 4;
+    private static final int TRAILER_LINE_START = 5;
+    private static final int TRAILER_LINE = 6;
+    private static final int LAST_LF = 7;
+
+    /**
+     * Reads whatever the stream has available into the free end of the buffer
+     *
+     * @return bytes read, -1 at the end of the stream
+     */
+    public int read(InputStream in) throws IOException {
+        makeRoom();
+        if (end == buffer.length) {
+            return 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reads whatever the channel has available into the free end of the buffer
+     *
+     * @return bytes read, 0 if none are ready on a non-blocking channel, -1 at the end of the stream
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        if (end == buffer.length) {
+            return 0;
+        }
+        int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return whether a read can add bytes, false while the buffer is full of bytes not yet consumed
+     */
+    public boolean hasRoom() {
+        return end < buffer.length || (headComplete ? position - headLength : start) > 0;
+    }
+
+    /**
+     * Moves unconsumed bytes to the front of the buffer once its end is reached.
+     * While reading the body the head moves to the front as well, and only the
+     * body bytes already forwarded are dropped.
+     */
+    private void makeRoom() {
+        if (end < buffer.length) {
+            return;
+        }
+        int keep = start;
+        if (headComplete) {
+            int forwarded = position - (start + headLength);
+            if (keep + forwarded == 0) {
+                return;
+            }
+            System.arraycopy(buffer, start, buffer, 0, headLength);
+            System.arraycopy(buffer, position, buffer, headLength, end - position);
+            end -= keep + forwarded;
+            position = headLength;
+        } else {
+            if (keep == 0) {
+                return;
+            }
+            System.arraycopy(buffer, keep, buffer, 0, end - keep);
+            end -= keep;
+        }
+        start -= keep;
+        scan -= keep;
+        lineStart -= keep;
+        requestLineEnd -= keep;
+        methodEnd -= keep;
+        targetStart -= keep;
+        targetEnd -= keep;
+        for (int i = 0; i < headerCount; i++) {
+            nameStart[i] -= keep;
+            nameEnd[i] -= keep;
+            valueStart[i] -= keep;
+            valueEnd[i] -= keep;
+        }
+    }
+
+    /**
+     * Examines the bytes read since the last call
+     *
+     * @return COMPLETE once the whole head has been read, INCOMPLETE if more bytes are needed
+     */
+    public Status parse() {
+        if (headComplete) {
+            return Status.COMPLETE;
+        }
+        while (scan < end) {
+            if (buffer[scan++] != '\n') {
+                continue;
+            }
+            int lineEnd = scan - 1;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (!requestLineSeen) {
+                if (lineEnd == lineStart) {
+                    // Empty lines before a request are allowed and ignored
+                    start = scan;
+                } else if (!parseRequestLine(lineStart, lineEnd)) {
+                    return Status.BAD_REQUEST;
+                }
+            } else if (lineEnd == lineStart) {
+                return finishHead();
+            } else if (headerCount == MAX_HEADERS) {
+                return Status.TOO_LARGE;
+            } else if (!parseHeader(lineStart, lineEnd)) {
+                return Status.BAD_REQUEST;
+            }
+            lineStart = scan;
+        }
+        return start == 0 && end == buffer.length ? Status.TOO_LARGE : Status.INCOMPLETE;
+    }
+
+    /**
+     * Splits "METHOD target HTTP/x.y", a missing version is taken as HTTP/1.0
+     */
+    private boolean parseRequestLine(int from, int to) {
+        int space = indexOf(' ', from, to);
+        if (space <= from) {
+            return false;
+        }
+        for (int i = from; i < space; i++) {
+            if (!isTokenChar(buffer[i])) {
+                return false;
+            }
+        }
+        int targetFrom = space + 1;
+        int targetTo = indexOf(' ', targetFrom, to);
+        if (targetTo < 0) {
+            targetTo = to;
+            http11 = false;
+        } else if (matches(targetTo + 1, to, "HTTP/1.1")) {
+            http11 = true;
+        } else if (matches(targetTo + 1, to, "HTTP/1.0")) {
+            http11 = false;
+        } else {
+            return false;
+        }
+        if (targetTo == targetFrom) {
+            return false;
+        }
+        for (int i = targetFrom; i < targetTo; i++) {
+            if (buffer[i] <= ' ' || buffer[i] == 0x7f) {
+                return false;
+            }
+        }
+        requestLineSeen = true;
+        requestLineEnd = to;
+        methodEnd = space;
+        targetStart = targetFrom;
+        targetEnd = targetTo;
+        return true;
+    }
+
+    private boolean parseHeader(int from, int to) {
+        int colon = indexOf(':', from, to);
+        // Folded lines and whitespace before the colon are rejected, as RFC 7230 requires
+        if (colon <= from) {
+            return false;
+        }
+        for (int i = from; i < colon; i++) {
+            if (!isTokenChar(buffer[i])) {
+                return false;
+            }
+        }
+        int valueFrom = colon + 1;
+        while (valueFrom < to && (buffer[valueFrom] == ' ' || buffer[valueFrom] == '\t')) {
+            valueFrom++;
+        }
+        int valueTo = to;
+        while (valueTo > valueFrom && (buffer[valueTo - 1] == ' ' || buffer[valueTo - 1] == '\t')) {
+            valueTo--;
+        }
+        nameStart[headerCount] = from;
+        nameEnd[headerCount] = colon;
+        valueStart[headerCount] = valueFrom;
+        valueEnd[headerCount] = valueTo;
+        headerCount++;
+        return true;
+    }
+
+    /**
+     * Works out how the body is framed once the blank line ending the head has been read
+     */
+    private Status finishHead() {
+        headComplete = true;
+        position = scan;
+        headLength = position - start;
+        bodyComplete = true;
+        if (isConnect()) {
+            // Whatever follows a CONNECT head belongs to the tunnel
+            return Status.COMPLETE;
+        }
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, "Transfer-Encoding")) {
+                // Chunked must be the final coding, otherwise the length of the body is unknowable
+                if (!lastTokenIs(valueStart[i], valueEnd[i], "chunked")) {
+                    return Status.BAD_REQUEST;
+                }
+                chunked = true;
+            } else if (nameIs(i, "Content-Length")) {
+                long length = parseDecimal(valueStart[i], valueEnd[i]);
+                if (length < 0 || (contentLength >= 0 && length != contentLength)) {
+                    return Status.BAD_REQUEST;
+                }
+                contentLength = length;
+            }
+        }
+        if (chunked) {
+            // Transfer-Encoding overrides Content-Length, which is not forwarded
+            contentLength = -1;
+            bodyComplete = false;
+            chunkState = CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            bodyRemaining = contentLength;
+            bodyComplete = false;
+        }
+        if (!bodyComplete && headLength == buffer.length) {
+            // The head is kept while the body is read, so a body needs room beside it
+            return Status.TOO_LARGE;
+        }
+        return Status.COMPLETE;
+    }
+
+    /**
+     * Prepares for the next request on the connection, keeping any of its bytes already read
+     */
+    public void next() {
+        start = headComplete ? position : start;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        scan = start;
+        lineStart = start;
+        position = start;
+        requestLineSeen = false;
+        headComplete = false;
+        headLength = 0;
+        bodyBytes = 0;
+        requestLineEnd = methodEnd = targetStart = targetEnd = 0;
+        http11 = false;
+        headerCount = 0;
+        chunked = false;
+        contentLength = -1;
+        bodyRemaining = 0;
+        bodyComplete = false;
+        bodyStarted = false;
+        chunkState = CHUNK_SIZE;
+        chunkSizeSeen = false;
+    }
+
+    /**
+     * @return bytes of the head, from the request line to the blank line
+     */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /**
+     * @return bytes of the head and of as much of the body as has been forwarded
+     */
+    public long getRequestBytes() {
+        return headLength + bodyBytes;
+    }
+
+    /**
+     * @return the method, without creating a String for the common ones
+     */
+    public String getMethod() {
+        for (String method : KNOWN_METHODS) {
+            if (matches(start, methodEnd, method)) {
+                return method;
+            }
+        }
+        return new String(buffer, start, methodEnd - start, StandardCharsets.ISO_8859_1);
+    }
+
+    public boolean isConnect() {
+        return matches(start, methodEnd, "CONNECT");
+    }
+
+    public String getTarget() {
+        return new String(buffer, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getVersion() {
+        return http11 ? "HTTP/1.1" : "HTTP/1.0";
+    }
+
+    public boolean isHttp11() {
+        return http11;
+    }
+
+    /**
+     * @return the request line as a RequestLine, or null if its target is not usable
+     */
+    public RequestLine toRequestLine() {
+        return RequestLine.of(getMethod(), getTarget(), getVersion());
+    }
+
+    /**
+     * @return the first value of the named header, or null if absent
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, name)) {
+                return new String(buffer, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether any header with the name lists the token, compared case-insensitively
+     */
+    public boolean hasToken(String name, String token) {
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, name) && listsToken(valueStart[i], valueEnd[i], token, 0, token.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the client wants the connection kept open after this request
+     */
+    public boolean wantsKeepAlive() {
+        return http11
+                ? !hasToken("Connection", "close") && !hasToken("Proxy-Connection", "close")
+                : hasToken("Connection", "keep-alive") || hasToken("Proxy-Connection", "keep-alive");
+    }
+
+    /**
+     * @return whether the client waits for 100 Continue before sending the body
+     */
+    public boolean expectsContinue() {
+        return !bodyComplete && hasToken("Expect", "100-continue");
+    }
+
+    public boolean hasBody() {
+        return chunked || contentLength > 0;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return the declared length of the body, -1 if chunked or absent
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isBodyComplete() {
+        return bodyComplete;
+    }
+
+    /**
+     * @return whether any of the body has been consumed, after which the request cannot be sent again
+     */
+    public boolean isBodyStarted() {
+        return bodyStarted;
+    }
+
+    /**
+     * @return bytes read past the head that have not been consumed, e.g. the start of a tunnel
+     */
+    public int getBufferedCount() {
+        return end - position;
+    }
+
+    /**
+     * Consumes the bytes read past the head, for when the connection becomes a tunnel
+     *
+     * @return those bytes, in a buffer ready to be written
+     */
+    public ByteBuffer takeBuffered() {
+        ByteBuffer buffered = ByteBuffer.wrap(buffer, position, end - position).slice();
+        position = end;
+        return buffered;
+    }
+
+    /**
+     * Writes the request line as received, for relaying to an upstream proxy unchanged
+     */
+    public void writeRequestLine(OutputStream out) throws IOException {
+        out.write(buffer, start, requestLineEnd - start);
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes the headers to forward to an upstream proxy, without the blank line
+     * ending the head. Hop-by-hop headers and those the Connection header names
+     * are left out.
+     *
+     * @param forwardHost     whether to pass on Host, otherwise the caller writes its own
+     * @param skipConditional also leave out If-None-Match and If-Modified-Since,
+     *                        for when the cache sends validators of its own
+     */
+    public void writeHeaders(OutputStream out, boolean forwardHost, boolean skipConditional) throws IOException {
+        writeHeaders(out, forwardHost, skipConditional, false);
+    }
+
+    /**
+     * Writes the headers to forward, as above
+     *
+     * @param skipRange also leave out Range and If-Range, for when the proxy asks for a range of its own
+     */
+    public void writeHeaders(OutputStream out, boolean forwardHost, boolean skipConditional, boolean skipRange)
+            throws IOException {
+        for (int i = 0; i < headerCount; i++) {
+            if (isHopByHop(i) || (!forwardHost && nameIs(i, "Host"))
+                    || (skipConditional && (nameIs(i, "If-None-Match") || nameIs(i, "If-Modified-Since")))
+                    || (skipRange && (nameIs(i, "Range") || nameIs(i, "If-Range")))
+                    || (chunked && nameIs(i, "Content-Length"))) {
+                continue;
+            }
+            out.write(buffer, nameStart[i], nameEnd[i] - nameStart[i]);
+            out.write(COLON_SPACE);
+            out.write(buffer, valueStart[i], valueEnd[i] - valueStart[i]);
+            out.write(CRLF);
+        }
+        if (chunked) {
+            // The chunks are forwarded as they arrive, framing included
+            out.write(CHUNKED_HEADER);
+        }
+    }
+
+    /**
+     * @return most bytes writeRequestLine and writeHeaders can produce, plus room for a few extra headers
+     */
+    public int getForwardedHeadLimit() {
+        return headLength + CHUNKED_HEADER.length + 64;
+    }
+
+    /**
+     * Writes body bytes that are already in the buffer, framing included for chunked bodies
+     *
+     * @param max most bytes to write
+     * @return bytes written
+     * @throws IOException if the chunked framing is malformed or writing fails
+     */
+    public int transferBody(OutputStream out, int max) throws IOException {
+        if (bodyComplete || position == end || max <= 0) {
+            return 0;
+        }
+        int from = position;
+        int to = (int) Math.min(end, from + (long) max);
+        if (chunked) {
+            to = scanChunked(from, to);
+        } else {
+            to = (int) Math.min(to, from + bodyRemaining);
+            bodyRemaining -= to - from;
+            bodyComplete = bodyRemaining == 0;
+        }
+        bodyStarted = true;
+        bodyBytes += to - from;
+        position = to;
+        out.write(buffer, from, to - from);
+        return to - from;
+    }
+
+    /**
+     * Forwards the whole body, reading the rest of it from the client as needed
+     *
+     * @return bytes of body forwarded
+     * @throws EOFException if the client closes the connection before the body ends
+     */
+    public long copyBody(InputStream in, OutputStream out) throws IOException {
+        long copied = 0;
+        while (true) {
+            copied += transferBody(out, Integer.MAX_VALUE);
+            if (bodyComplete) {
+                return copied;
+            }
+            if (read(in) < 0) {
+                throw new EOFException("Client closed the connection inside the request body");
+            }
+        }
+    }
+
+    /**
+     * Follows the chunked framing from one byte to another
+     *
+     * @return where the scan stopped, the end of the body or the end of the range
+     */
+    private int scanChunked(int from, int to) throws IOException {
+        int i = from;
+        while (i < to) {
+            if (chunkState == CHUNK_DATA) {
+                int take = (int) Math.min(bodyRemaining, to - i);
+                i += take;
+                bodyRemaining -= take;
+                if (bodyRemaining == 0) {
+                    chunkState = CHUNK_DATA_CR;
+                }
+                continue;
+            }
+            byte b = buffer[i++];
+            switch (chunkState) {
+                case CHUNK_SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (bodyRemaining > Long.MAX_VALUE >> 4) {
+                            throw new IOException("Chunk size too large");
+                        }
+                        bodyRemaining = bodyRemaining * 16 + digit;
+                        chunkSizeSeen = true;
+                        break;
+                    }
+                    if (!chunkSizeSeen || (b != ';' && b != ' ' && b != '\t' && b != '\r' && b != '\n')) {
+                        throw new IOException("Malformed chunk size in request body");
+                    }
+                    chunkState = CHUNK_EXTENSION;
+                    if (b == '\n') {
+                        endChunkSizeLine();
+                    }
+                    break;
+                case CHUNK_EXTENSION:
+                    if (b == '\n') {
+                        endChunkSizeLine();
+                    }
+                    break;
+                case CHUNK_DATA_CR:
+                    if (b == '\r') {
+                        chunkState = CHUNK_DATA_LF;
+                    } else {
+                        // A bare LF is tolerated
+                        endChunkData(b);
+                    }
+                    break;
+                case CHUNK_DATA_LF:
+                    endChunkData(b);
+                    break;
+                case TRAILER_LINE_START:
+                    if (b == '\n') {
+                        bodyComplete = true;
+                        return i;
+                    }
+                    chunkState = b == '\r' ? LAST_LF : TRAILER_LINE;
+                    break;
+                case TRAILER_LINE:
+                    if (b == '\n') {
+                        chunkState = TRAILER_LINE_START;
+                    }
+                    break;
+                case LAST_LF:
+                    if (b != '\n') {
+                        throw new IOException("Malformed end of chunked request body");
+                    }
+                    bodyComplete = true;
+                    return i;
+                default:
+                    throw new IllegalStateException("Chunk state " + chunkState);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Moves on to the chunk's data, or to the trailer after the last chunk
+     */
+    private void endChunkSizeLine() {
+        chunkSizeSeen = false;
+        chunkState = bodyRemaining == 0 ? TRAILER_LINE_START : CHUNK_DATA;
+    }
+
+    /**
+     * Checks the line break after a chunk's data and moves on to the next chunk's size
+     */
+    private void endChunkData(byte b) throws IOException {
+        if (b != '\n') {
+            throw new IOException("Chunk not followed by a line break in request body");
+        }
+        chunkState = CHUNK_SIZE;
+    }
+
+    /**
+     * @return whether the header only applies to the client connection, including those the Connection header names
+     */
+    private boolean isHopByHop(int header) {
+        int length = nameEnd[header] - nameStart[header];
+        for (int i = 0; i < headerCount; i++) {
+            if (nameIs(i, "Connection")
+                    && listsToken(valueStart[i], valueEnd[i], buffer, nameStart[header], length)) {
+                return true;
+            }
+        }
+        return nameIs(header, "Connection") || nameIs(header, "Keep-Alive") || nameIs(header, "Proxy-Connection")
+                || nameIs(header, "Proxy-Authenticate") || nameIs(header, "Proxy-Authorization")
+                || nameIs(header, "TE") || nameIs(header, "Trailer") || nameIs(header, "Transfer-Encoding")
+                || nameIs(header, "Upgrade");
+    }
+
+    private boolean nameIs(int header, String name) {
+        return equalsIgnoreCase(nameStart[header], nameEnd[header], name, 0, name.length());
+    }
+
+    /**
+     * @return whether the comma separated list in the buffer range contains the token
+     */
+    private boolean listsToken(int from, int to, String token, int tokenFrom, int tokenLength) {
+        return findToken(from, to, token, null, tokenFrom, tokenLength, false);
+    }
+
+    private boolean listsToken(int from, int to, byte[] token, int tokenFrom, int tokenLength) {
+        return findToken(from, to, null, token, tokenFrom, tokenLength, false);
+    }
+
+    private boolean lastTokenIs(int from, int to, String token) {
+        return findToken(from, to, token, null, 0, token.length(), true);
+    }
+
+    private boolean findToken(int from, int to, String text, byte[] bytes, int tokenFrom, int tokenLength,
+                              boolean lastOnly) {
+        int i = from;
+        while (i <= to) {
+            int comma = indexOf(',', i, to);
+            int elementEnd = comma < 0 ? to : comma;
+            int s = i;
+            while (s < elementEnd && (buffer[s] == ' ' || buffer[s] == '\t')) {
+                s++;
+            }
+            int e = elementEnd;
+            while (e > s && (buffer[e - 1] == ' ' || buffer[e - 1] == '\t')) {
+                e--;
+            }
+            boolean match = text != null
+                    ? equalsIgnoreCase(s, e, text, tokenFrom, tokenLength)
+                    : equalsIgnoreCase(s, e, bytes, tokenFrom, tokenLength);
+            if (comma < 0) {
+                return match;
+            }
+            if (match && !lastOnly) {
+                return true;
+            }
+            i = comma + 1;
+        }
+        return false;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, String text, int textFrom, int textLength) {
+        if (to - from != textLength) {
+            return false;
+        }
+        for (int i = 0; i < textLength; i++) {
+            if (toLower(buffer[from + i]) != toLower((byte) text.charAt(textFrom + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int from, int to, byte[] bytes, int bytesFrom, int bytesLength) {
+        if (to - from != bytesLength) {
+            return false;
+        }
+        for (int i = 0; i < bytesLength; i++) {
+            if (toLower(buffer[from + i]) != toLower(bytes[bytesFrom + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the range holds exactly the text, case-sensitively
+     */
+    private boolean matches(int from, int to, String text) {
+        if (to - from != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer[from + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of a non-empty run of digits, -1 if the range holds anything else
+     */
+    private long parseDecimal(int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + buffer[i] - '0';
+        }
+        return value;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    /**
+     * @return whether the byte may appear in a method or header name
+     */
+    private static boolean isTokenChar(byte b) {
+        if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9') {
+            return true;
+        }
+        return b > ' ' && b < 0x7f && "!#$%&'*+-.^_`|~".indexOf(b) >= 0;
+    }
+}
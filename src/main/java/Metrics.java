@@ -0,0 +1,228 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the proxy's counters, gauges and latency histograms.
+ * Counters are LongAdders, striped across cells so request threads do not
+ * contend on them; values are only summed when the metrics are read.
+ * Names follow Prometheus conventions and may carry labels, for example
+ * proxy_responses_total{code="2xx"}. AdminServer renders the registry as
+ * Prometheus text or JSON.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_KEYS = {"p50", "p90", "p99", "p999"};
+
+    private static final Metrics shared = new Metrics();
+
+    /**
+     * Every metric by full name, sorted so metrics of one family are adjacent
+     */
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    final LatencyHistogram firstByte = histogram("proxy_first_byte_seconds",
+            "Time from accepting a connection, or reading a request on a kept-alive one, to the first response byte");
+    final LatencyHistogram upstreamConnect = histogram("proxy_upstream_connect_seconds",
+            "Time to open a TCP connection to an upstream proxy");
+    final LatencyHistogram tunnelDuration = histogram("proxy_tunnel_duration_seconds",
+            "Lifetime of CONNECT tunnels, from request to close");
+    final LatencyHistogram requestDuration = histogram("proxy_request_duration_seconds",
+            "Time to serve a plain HTTP request, from reading it to sending the last byte");
+    final LongAdder activeConnections = new LongAdder();
+    private final LongAdder bytesFromClients = counter("proxy_client_received_bytes_total",
+            "Bytes received from clients, request heads and tunnel data");
+    private final LongAdder bytesToClients = counter("proxy_client_sent_bytes_total",
+            "Bytes sent to clients, responses and tunnel data");
+
+    /**
+     * Responses by status class, index 0 counts requests that got no response
+     */
+    private final LongAdder[] responsesByClass = new LongAdder[6];
+    private final Map<Integer, LongAdder> failoverLevels = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        for (int i = 0; i < responsesByClass.length; i++) {
+            responsesByClass[i] = counter("proxy_responses_total{code=\"" + (i == 0 ? "none" : i + "xx") + "\"}",
+                    "Requests by class of the status sent to the client");
+        }
+        gauge("proxy_active_connections", "Client connections currently open", activeConnections::sum);
+        gauge("jvm_threads", "Live JVM threads, virtual threads excluded",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("proxy_buffer_pool_idle", "Direct relay buffers waiting in the pool", BufferPool::getIdleCount);
+    }
+
+    public static Metrics getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates and registers a counter
+     */
+    public LongAdder counter(String name, String description) {
+        LongAdder adder = new LongAdder();
+        counter(name, description, adder::sum);
+        return adder;
+    }
+
+    /**
+     * Registers a counter kept elsewhere, read when the metrics are rendered
+     */
+    public void counter(String name, String description, DoubleSupplier value) {
+        register(name, description, new Counter(value));
+    }
+
+    public void gauge(String name, String description, DoubleSupplier value) {
+        register(name, description, value);
+    }
+
+    public LatencyHistogram histogram(String name, String description) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        register(name, description, histogram);
+        return histogram;
+    }
+
+    private void register(String name, String description, Object metric) {
+        metrics.put(name, metric);
+        help.putIfAbsent(family(name), description);
+    }
+
+    private static final class Counter {
+        final DoubleSupplier value;
+
+        Counter(DoubleSupplier value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Counts a finished request or tunnel, called for every record passed to the access log
+     */
+    void requestFinished(AccessLog.Record record) {
+        bytesFromClients.add(record.bytesIn);
+        bytesToClients.add(record.bytesOut);
+        if ("CONNECT".equals(record.method)) {
+            if (record.status == 200) {
+                tunnelDuration.recordNanos(record.totalNanos);
+            }
+        } else {
+            requestDuration.recordNanos(record.totalNanos);
+        }
+        int statusClass = record.status / 100;
+        responsesByClass[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        if (record.upstream != null) {
+            LongAdder level = failoverLevels.get(record.failover);
+            if (level == null) {
+                level = failoverLevels.computeIfAbsent(record.failover, failover -> counter(
+                        "proxy_failover_level_total{level=\"" + failover + "\"}",
+                        "Requests by how many upstreams were tried before the one that served them"));
+            }
+            level.increment();
+        }
+    }
+
+    private static String family(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder();
+        String currentFamily = null;
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            String family = family(name);
+            if (!family.equals(currentFamily)) {
+                currentFamily = family;
+                out.append("# HELP ").append(family).append(' ').append(help.get(family)).append('\n');
+                out.append("# TYPE ").append(family).append(' ').append(typeOf(metric)).append('\n');
+            }
+            if (metric instanceof LatencyHistogram) {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                for (double quantile : QUANTILES) {
+                    out.append(withLabel(name, "quantile", String.valueOf(quantile))).append(' ')
+                            .append(seconds(histogram.getQuantileMicros(quantile))).append('\n');
+                }
+                out.append(family).append("_sum").append(name.substring(family.length())).append(' ')
+                        .append(seconds(histogram.getSumMicros())).append('\n');
+                out.append(family).append("_count").append(name.substring(family.length())).append(' ')
+                        .append(histogram.getCount()).append('\n');
+            } else {
+                out.append(name).append(' ').append(format(valueOf(metric))).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return all metrics as one JSON object keyed by metric name, histograms as nested objects
+     */
+    public String json() {
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            out.append("\n  \"").append(entry.getKey().replace("\"", "\\\"")).append("\": ");
+            Object metric = entry.getValue();
+            if (metric instanceof LatencyHistogram) {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                out.append("{\"count\": ").append(histogram.getCount())
+                        .append(", \"sum_seconds\": ").append(seconds(histogram.getSumMicros()))
+                        .append(", \"max_seconds\": ").append(seconds(histogram.getMaxMicros()));
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    out.append(", \"").append(QUANTILE_KEYS[i]).append("_seconds\": ")
+                            .append(seconds(histogram.getQuantileMicros(QUANTILES[i])));
+                }
+                out.append('}');
+            } else {
+                out.append(format(valueOf(metric)));
+            }
+        }
+        return out.append("\n}\n").toString();
+    }
+
+    private static String typeOf(Object metric) {
+        if (metric instanceof LatencyHistogram) {
+            return "summary";
+        }
+        return metric instanceof Counter ? "counter" : "gauge";
+    }
+
+    private static double valueOf(Object metric) {
+        if (metric instanceof Counter) {
+            return ((Counter) metric).value.getAsDouble();
+        }
+        return ((DoubleSupplier) metric).getAsDouble();
+    }
+
+    private static String withLabel(String name, String label, String value) {
+        String pair = label + "=\"" + value + "\"";
+        int brace = name.indexOf('{');
+        if (brace < 0) {
+            return name + "{" + pair + "}";
+        }
+        return name.substring(0, name.length() - 1) + "," + pair + "}";
+    }
+
+    private static String seconds(long micros) {
+        return format(micros / 1e6);
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
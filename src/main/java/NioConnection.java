@@ -0,0 +1,839 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking counterpart of RequestHandler.
+ * A connection moves through reading the request, connecting to an upstream
+ * proxy, the CONNECT handshake with that proxy and finally relaying bytes in
+ * both directions. Each step runs when the owning NioEventLoop reports the
+ * channel ready, so no thread ever waits on this connection.
+ * Tunnels are relayed byte for byte. Other requests pass through an
+ * HttpRequestParser on their way upstream, so each head is forwarded without
+ * hop-by-hop headers and each body by its framing; responses are relayed as received.
+ * Deadlines on the timing wheel bound the request head, reaching an upstream
+ * and the first response byte; once relaying, the connection is closed after
+ * the idle timeout passes with nothing read from either side.
+ */
+public class NioConnection implements NioEventLoop.Handler {
+
+    enum State {
+        READING_REQUEST,
+        CONNECTING,
+        UPSTREAM_HANDSHAKE,
+        RELAYING,
+        CLOSED
+    }
+
+    private static final byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CONNECTION_ESTABLISHED = ("HTTP/1.0 200 Connection established\r\n" +
+            "Proxy-Agent: ProxyBridge/1.0\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final NioEventLoop loop;
+    private final SocketChannel clientChannel;
+    private SocketChannel upstreamChannel;
+    private SelectionKey clientKey;
+    private SelectionKey upstreamKey;
+
+    /**
+     * Bytes read from the client waiting to be written upstream, kept in fill mode
+     */
+    private ByteBuffer clientToUpstream = BufferPool.acquire();
+
+    /**
+     * Reads the client's requests, null once the connection is a tunnel or takes no more requests
+     */
+    private HttpRequestParser parser = new HttpRequestParser();
+
+    /**
+     * Whether the head of the request being read by the parser has gone into clientToUpstream
+     */
+    private boolean headForwarded;
+
+    /**
+     * Lets the parser write straight into clientToUpstream
+     */
+    private final OutputStream toUpstream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            clientToUpstream.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            clientToUpstream.put(b, off, len);
+        }
+    };
+
+    /**
+     * Bytes read from upstream waiting to be written to the client, kept in fill mode
+     */
+    private ByteBuffer upstreamToClient = BufferPool.acquire();
+
+    /**
+     * CONNECT request still to be sent to the upstream proxy
+     */
+    private ByteBuffer handshake;
+
+    /**
+     * Our reply to the client's CONNECT, sent ahead of upstreamToClient, null once written
+     */
+    private ByteBuffer established;
+
+    private State state = State.READING_REQUEST;
+    private RequestLine request;
+
+    /**
+     * Address the CONNECT target resolved to, null when the upstream proxy resolves it
+     */
+    private String targetHost;
+    private final List<Upstream> tried = new ArrayList<>();
+    private Upstream upstream;
+    private long upstreamStarted;
+
+    /**
+     * Whether the attempt on the current upstream has yet to be reported to it
+     */
+    private boolean attemptPending;
+    private int proxyLevel = 0;
+
+    /**
+     * Access log record, written when the connection closes
+     */
+    private final AccessLog.Record record = new AccessLog.Record();
+
+    /**
+     * When the acceptor took the connection, the start of its time to first byte
+     */
+    private final long acceptedAt;
+    private boolean firstByteSent;
+
+    /**
+     * Address of the client, its connection counted by the AdmissionController
+     */
+    private final String client;
+
+    /**
+     * When the request was admitted, -1 when it holds no admission permit
+     */
+    private long admittedAt = -1;
+
+    /**
+     * Deadline of the current phase, null when none is running
+     */
+    private TimingWheel.Timeout deadline;
+    private TimingWheel.Timeout idle;
+
+    /**
+     * Limits how long a tunnel stays open, null for other connections
+     */
+    private TimingWheel.Timeout lifetime;
+
+    private boolean clientEof;
+    private boolean upstreamEof;
+    private boolean clientOutputShut;
+    private boolean upstreamOutputShut;
+
+    public NioConnection(NioEventLoop loop, SocketChannel clientChannel, long acceptedAt, String client) {
+        this.loop = loop;
+        this.clientChannel = clientChannel;
+        this.acceptedAt = acceptedAt;
+        this.client = client;
+    }
+
+    /**
+     * Registers the client channel with the loop, must run on the loop thread
+     */
+    public void start() {
+        Metrics.getShared().activeConnections.increment();
+        try {
+            record.begin(client);
+            startDeadline("headers", RequestHandler.HEADERS_TIMEOUT);
+            clientChannel.configureBlocking(false);
+            clientKey = clientChannel.register(loop.selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key == clientKey) {
+            if (key.isReadable()) {
+                onClientReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                onClientWritable();
+            }
+        } else {
+            try {
+                if (key.isConnectable()) {
+                    onUpstreamConnectable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onUpstreamReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    onUpstreamWritable();
+                }
+            } catch (IOException e) {
+                if (state != State.CONNECTING && state != State.UPSTREAM_HANDSHAKE) {
+                    throw e;
+                }
+                // Nothing has reached the client yet, so the next upstream can still take over
+                System.out.println("Connecting through " + upstream + " failed: " + e.getMessage());
+                retryNextProxy();
+            }
+        }
+    }
+
+    private void onClientReadable() throws IOException {
+        int read = parser != null ? parser.read(clientChannel) : clientChannel.read(clientToUpstream);
+        if (read < 0) {
+            clientEof = true;
+        } else {
+            record.bytesIn += read;
+        }
+        if (idle != null) {
+            idle.touch();
+        }
+        if (parser != null) {
+            pumpRequests();
+        }
+        if (state == State.RELAYING) {
+            flush(upstreamChannel, clientToUpstream);
+            updateInterest();
+        }
+    }
+
+    private void onClientWritable() throws IOException {
+        flushToClient();
+        updateInterest();
+    }
+
+    private void onUpstreamReadable() throws IOException {
+        int read = upstreamChannel.read(upstreamToClient);
+        if (read < 0) {
+            upstreamEof = true;
+        } else if (state == State.RELAYING) {
+            record.bytesOut += read;
+            if (record.status == 0) {
+                record.status = peekStatus(upstreamToClient);
+            }
+            if (idle == null) {
+                // The response has started, from now on only silence ends the connection
+                cancelDeadline();
+                idle = TimingWheel.getShared().scheduleIdle("idle", RequestHandler.IDLE_TIMEOUT,
+                        () -> loop.execute(this::close));
+            }
+            idle.touch();
+        }
+        if (state == State.UPSTREAM_HANDSHAKE) {
+            readHandshakeResponse();
+        } else if (state == State.RELAYING) {
+            flushToClient();
+            updateInterest();
+        }
+    }
+
+    private void flushToClient() throws IOException {
+        int written = 0;
+        if (established != null) {
+            written += clientChannel.write(established);
+            if (!established.hasRemaining()) {
+                established = null;
+            }
+        }
+        if (established == null) {
+            int before = upstreamToClient.position();
+            flush(clientChannel, upstreamToClient);
+            written += before - upstreamToClient.position();
+        }
+        if (!firstByteSent && written > 0) {
+            firstByteSent = true;
+            Metrics.getShared().firstByte.recordNanos(System.nanoTime() - acceptedAt);
+            releaseAdmission(false);
+        }
+    }
+
+    private void onUpstreamWritable() throws IOException {
+        if (state == State.UPSTREAM_HANDSHAKE) {
+            upstreamChannel.write(handshake);
+            if (!handshake.hasRemaining()) {
+                upstreamKey.interestOps(SelectionKey.OP_READ);
+            }
+        } else {
+            flush(upstreamChannel, clientToUpstream);
+            if (parser != null) {
+                // Room has been made for requests the parser is holding back
+                pumpRequests();
+                flush(upstreamChannel, clientToUpstream);
+            }
+            updateInterest();
+        }
+    }
+
+    /**
+     * Moves parsed requests into clientToUpstream, each head rewritten for the
+     * upstream and each body as framed by the client, as far as there is room.
+     * The first complete head starts the connection to an upstream proxy.
+     */
+    private void pumpRequests() throws IOException {
+        while (parser != null && state != State.CLOSED) {
+            if (!headForwarded) {
+                HttpRequestParser.Status status = parser.parse();
+                if (status == HttpRequestParser.Status.INCOMPLETE) {
+                    if (state == State.READING_REQUEST && clientEof) {
+                        // Client went away before sending a whole request
+                        close();
+                    }
+                    return;
+                }
+                if (status != HttpRequestParser.Status.COMPLETE) {
+                    System.out.println("Rejected request from client: " + status);
+                    rejectRequest(status == HttpRequestParser.Status.TOO_LARGE
+                            ? "431 Request Header Fields Too Large" : "400 Bad Request");
+                    return;
+                }
+                if (state == State.READING_REQUEST && !startRequest()) {
+                    return;
+                }
+                if (state != State.READING_REQUEST && isBlocked(parser.toRequestLine())) {
+                    // A refusal cannot be slotted in between relayed responses, instead
+                    // the earlier responses are finished and the connection closed
+                    parser = null;
+                    clientEof = true;
+                    return;
+                }
+                if (clientToUpstream.remaining() < parser.getForwardedHeadLimit()) {
+                    // Wait for the upstream to take what is already queued
+                    return;
+                }
+                forwardHead();
+            }
+            parser.transferBody(toUpstream, clientToUpstream.remaining());
+            if (!parser.isBodyComplete()) {
+                return;
+            }
+            parser.next();
+            headForwarded = false;
+        }
+    }
+
+    /**
+     * Looks at the first request on the connection and starts connecting upstream
+     *
+     * @return whether the request goes on through the parser, false for tunnels and rejected requests
+     */
+    private boolean startRequest() throws IOException {
+        cancelDeadline();
+        request = parser.toRequestLine();
+        if (request == null) {
+            rejectRequest("400 Bad Request");
+            return false;
+        }
+        record.method = request.method;
+        record.target = request.isConnect() ? request.host + ":" + request.port : request.urlString;
+        if (isBlocked(request)) {
+            rejectRequest("403 Forbidden");
+            return false;
+        }
+        // Only the first request is admitted, the rest of the connection follows it to the same upstream
+        AdmissionController admission = AdmissionController.getShared();
+        long retryAfter = admission.checkRate(client);
+        if (retryAfter > 0) {
+            rejectRequest("429 Too Many Requests", retryAfter);
+            return false;
+        }
+        // An event loop cannot wait in the admission queue
+        if (!admission.tryAcquire(true)) {
+            rejectRequest("503 Service Unavailable", admission.getRetryAfterSeconds());
+            return false;
+        }
+        admittedAt = System.nanoTime();
+        clientKey.interestOps(0);
+        if (request.isConnect()) {
+            // The CONNECT head is consumed here, anything after it belongs to the tunnel
+            clientToUpstream.put(parser.takeBuffered());
+            parser = null;
+            resolveTarget();
+            return false;
+        }
+        connectUpstream();
+        return state != State.CLOSED;
+    }
+
+    private static boolean isBlocked(RequestLine request) {
+        return request != null && Blocklist.getShared().isBlocked(request);
+    }
+
+    /**
+     * Writes the head of the parsed request into clientToUpstream. Responses are
+     * relayed as received, so the upstream is told to keep the connection open
+     * exactly when the client wants it kept open.
+     */
+    private void forwardHead() throws IOException {
+        parser.writeRequestLine(toUpstream);
+        parser.writeHeaders(toUpstream, true, false);
+        if (!parser.wantsKeepAlive()) {
+            clientToUpstream.put(CONNECTION_CLOSE);
+        } else if (!parser.isHttp11()) {
+            clientToUpstream.put(CONNECTION_KEEP_ALIVE);
+        }
+        clientToUpstream.put(CRLF);
+        headForwarded = true;
+    }
+
+    /**
+     * Answers the client with an error and closes the connection
+     *
+     * @param statusLine status code and reason, e.g. "400 Bad Request"
+     */
+    private void rejectRequest(String statusLine) throws IOException {
+        rejectRequest(statusLine, 0);
+    }
+
+    /**
+     * Answers the client with an error and closes the connection
+     *
+     * @param statusLine status code and reason, e.g. "429 Too Many Requests"
+     * @param retryAfter seconds the client should wait before trying again, 0 for none
+     */
+    private void rejectRequest(String statusLine, long retryAfter) throws IOException {
+        if (state != State.READING_REQUEST) {
+            // Responses to earlier requests may still be on their way, an error cannot be slotted in
+            close();
+            return;
+        }
+        if (record.method == null) {
+            record.method = "-";
+        }
+        record.status = Integer.parseInt(statusLine.substring(0, 3));
+        state = State.CLOSED;
+        clientChannel.write(ByteBuffer.wrap(("HTTP/1.1 " + statusLine + "\r\n" +
+                "Proxy-agent: ProxyBridge/1.0\r\n" +
+                (retryAfter > 0 ? "Retry-After: " + retryAfter + "\r\n" : "") +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        close();
+    }
+
+    /**
+     * Resolves the CONNECT target before connecting upstream, continuing on the
+     * loop thread once the lookup is done so the loop never waits for DNS
+     */
+    private void resolveTarget() throws IOException {
+        DnsCache dns = DnsCache.getShared();
+        if (!dns.isResolvingLocally()) {
+            connectUpstream();
+            return;
+        }
+        CompletableFuture<InetAddress> address = dns.resolveAsync(request.host);
+        if (address.isDone()) {
+            onTargetResolved(address);
+        } else {
+            address.whenComplete((result, failure) -> loop.execute(() -> {
+                try {
+                    onTargetResolved(address);
+                } catch (IOException e) {
+                    close();
+                }
+            }));
+        }
+    }
+
+    private void onTargetResolved(CompletableFuture<InetAddress> address) throws IOException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        try {
+            targetHost = address.join().getHostAddress();
+        } catch (CompletionException e) {
+            System.out.println("Could not resolve " + request.host + ": " + e.getCause().getMessage());
+            failRequest();
+            return;
+        }
+        connectUpstream();
+    }
+
+    /**
+     * Starts a non-blocking connect to the next upstream proxy picked by the registry
+     */
+    private void connectUpstream() throws IOException {
+        SocketAddress address = null;
+        while (address == null) {
+            upstream = UpstreamRegistry.getShared().select(tried);
+            if (upstream == null) {
+                System.out.println("No more proxies left to try for " + request);
+                failRequest();
+                return;
+            }
+            tried.add(upstream);
+            attemptPending = true;
+            upstreamStarted = System.nanoTime();
+            record.upstream = upstream.toString();
+            record.failover = proxyLevel;
+            address = upstream.getProxy().address();
+            if (((InetSocketAddress) address).isUnresolved()) {
+                finishAttempt(false);
+                address = null;
+            }
+        }
+
+        state = State.CONNECTING;
+        startDeadline("connect", UpstreamConnectionPool.CONNECT_TIMEOUT);
+        try {
+            upstreamChannel = SocketChannel.open();
+            SocketSettings.apply(upstreamChannel);
+            upstreamChannel.configureBlocking(false);
+            upstreamKey = upstreamChannel.register(loop.selector, 0, this);
+            if (upstreamChannel.connect(address)) {
+                onUpstreamConnected();
+            } else {
+                upstreamKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            if (state != State.CONNECTING) {
+                throw e;
+            }
+            System.out.println("Connecting through " + upstream + " failed: " + e.getMessage());
+            retryNextProxy();
+        }
+    }
+
+    /**
+     * Tells the current upstream how its attempt went, once per attempt
+     */
+    private void finishAttempt(boolean success) {
+        if (attemptPending) {
+            attemptPending = false;
+            upstream.finished(tried, success, System.nanoTime() - upstreamStarted);
+        }
+    }
+
+    private void onUpstreamConnectable() throws IOException {
+        try {
+            upstreamChannel.finishConnect();
+        } catch (IOException e) {
+            retryNextProxy();
+            return;
+        }
+        onUpstreamConnected();
+    }
+
+    private void onUpstreamConnected() throws IOException {
+        Metrics.getShared().upstreamConnect.recordNanos(System.nanoTime() - upstreamStarted);
+        if (request.isConnect()) {
+            state = State.UPSTREAM_HANDSHAKE;
+            String host = targetHost != null ? targetHost : request.host;
+            String authority = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + request.port;
+            handshake = ByteBuffer.wrap(("CONNECT " + authority + " HTTP/1.1\r\n" +
+                    "Host: " + authority + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            upstreamKey.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            // Requests are relayed as-is, so reaching the upstream is all we learn about it
+            record.upstreamNanos = System.nanoTime() - upstreamStarted;
+            finishAttempt(true);
+            state = State.RELAYING;
+            startDeadline("first_byte", UpstreamHttpClient.FIRST_BYTE_TIMEOUT);
+            updateInterest();
+        }
+    }
+
+    /**
+     * Reads the upstream proxy's reply to CONNECT and opens the tunnel on success
+     */
+    private void readHandshakeResponse() throws IOException {
+        int headEnd = indexOf(upstreamToClient, HEAD_END);
+        if (headEnd < 0) {
+            if (upstreamEof || !upstreamToClient.hasRemaining()) {
+                retryNextProxy();
+            }
+            return;
+        }
+        int lineEnd = indexOf(upstreamToClient, new byte[]{'\r', '\n'});
+        byte[] statusLine = new byte[lineEnd];
+        upstreamToClient.get(0, statusLine);
+        String status = new String(statusLine, StandardCharsets.ISO_8859_1);
+        if (!isSuccess(status)) {
+            System.out.println("Upstream refused CONNECT: " + status);
+            retryNextProxy();
+            return;
+        }
+        record.upstreamNanos = System.nanoTime() - upstreamStarted;
+        record.status = 200;
+        finishAttempt(true);
+
+        // Drop the upstream reply, keeping any tunnel bytes that followed it; ours goes out ahead of them
+        upstreamToClient.flip();
+        upstreamToClient.position(headEnd + HEAD_END.length);
+        upstreamToClient.compact();
+        record.bytesOut += upstreamToClient.position();
+        established = ByteBuffer.wrap(CONNECTION_ESTABLISHED);
+
+        state = State.RELAYING;
+        cancelDeadline();
+        TimingWheel wheel = TimingWheel.getShared();
+        idle = wheel.scheduleIdle("tunnel_idle", TunnelRelay.TUNNEL_IDLE_TIMEOUT, () -> loop.execute(this::close));
+        if (TunnelRelay.TUNNEL_MAX_LIFETIME > 0) {
+            lifetime = wheel.schedule("tunnel_lifetime", TunnelRelay.TUNNEL_MAX_LIFETIME,
+                    () -> loop.execute(this::close));
+        }
+        updateInterest();
+    }
+
+    /**
+     * Reads the status code of a relayed response from the start of the buffer, for the access log
+     *
+     * @return the status, or 0 if not enough has arrived yet
+     */
+    private static int peekStatus(ByteBuffer buffer) {
+        // "HTTP/1.1 200"
+        if (buffer.position() < 12) {
+            return 0;
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            byte digit = buffer.get(i);
+            if (digit < '0' || digit > '9') {
+                return 0;
+            }
+            status = status * 10 + digit - '0';
+        }
+        return status;
+    }
+
+    private static boolean isSuccess(String statusLine) {
+        int space = statusLine.indexOf(' ');
+        return space > 0 && statusLine.startsWith("2", space + 1);
+    }
+
+    private void retryNextProxy() throws IOException {
+        finishAttempt(false);
+        closeUpstream();
+        upstreamEof = false;
+        upstreamToClient.clear();
+        proxyLevel++;
+        connectUpstream();
+    }
+
+    /**
+     * Starts the deadline of a phase in place of the last one. When it passes,
+     * the loop is handed onDeadline(), which finds it still current.
+     */
+    private void startDeadline(String phase, long delayMillis) {
+        cancelDeadline();
+        deadline = TimingWheel.getShared().schedule(phase, delayMillis, () -> loop.execute(() -> {
+            try {
+                onDeadline();
+            } catch (IOException e) {
+                close();
+            }
+        }));
+    }
+
+    private void cancelDeadline() {
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+    }
+
+    /**
+     * Ends the phase whose deadline has passed: a slow client is answered 408, a
+     * slow upstream proxy is given up for the next one, and a request whose response
+     * has not started is answered 504
+     */
+    private void onDeadline() throws IOException {
+        if (state == State.CLOSED || deadline == null || !deadline.isExpired()) {
+            // Finished, or a later phase started, before the loop got to this
+            return;
+        }
+        deadline = null;
+        switch (state) {
+            case READING_REQUEST:
+                rejectRequest("408 Request Timeout");
+                break;
+            case CONNECTING:
+            case UPSTREAM_HANDSHAKE:
+                System.out.println("No connection through " + upstream + " within "
+                        + UpstreamConnectionPool.CONNECT_TIMEOUT + " ms");
+                retryNextProxy();
+                break;
+            default:
+                System.out.println("No response to " + request + " within "
+                        + UpstreamHttpClient.FIRST_BYTE_TIMEOUT + " ms");
+                record.status = 504;
+                if (!firstByteSent && upstreamToClient.position() == 0) {
+                    clientChannel.write(ByteBuffer.wrap(("HTTP/1.1 504 Gateway Timeout\r\n" +
+                            "Proxy-agent: ProxyBridge/1.0\r\n" +
+                            "Content-Length: 0\r\n" +
+                            "Connection: close\r\n" +
+                            "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                }
+                close();
+                break;
+        }
+    }
+
+    /**
+     * Tells the client no upstream could be reached and closes the connection
+     */
+    private void failRequest() throws IOException {
+        record.status = 502;
+        state = State.CLOSED;
+        clientChannel.write(ByteBuffer.wrap(("HTTP/1.0 502 Bad Gateway\r\n" +
+                "Proxy-agent: ProxyBridge/1.0\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        close();
+    }
+
+    /**
+     * Gives back the admission permit of the request, once its first response byte is on its way
+     *
+     * @param failed whether the upstream failed or timed out
+     */
+    private void releaseAdmission(boolean failed) {
+        if (admittedAt >= 0) {
+            AdmissionController.getShared().release(System.nanoTime() - admittedAt, failed);
+            admittedAt = -1;
+        }
+    }
+
+    /**
+     * Writes as much buffered data as the destination accepts
+     */
+    private static void flush(SocketChannel destination, ByteBuffer buffer) throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        destination.write(buffer);
+        buffer.compact();
+    }
+
+    /**
+     * Recomputes which events each side waits for. A side is only read while
+     * the buffer it feeds has room, which gives backpressure between the two,
+     * and an end of stream is passed on as a half-close once the buffer drains.
+     */
+    private void updateInterest() throws IOException {
+        if (clientEof && clientToUpstream.position() == 0 && !upstreamOutputShut) {
+            upstreamOutputShut = true;
+            upstreamChannel.shutdownOutput();
+        }
+        if (upstreamEof && established == null && upstreamToClient.position() == 0 && !clientOutputShut) {
+            clientOutputShut = true;
+            clientChannel.shutdownOutput();
+        }
+        if (clientOutputShut && upstreamOutputShut) {
+            close();
+            return;
+        }
+
+        int clientOps = 0;
+        int upstreamOps = 0;
+        if (!clientEof && (parser != null ? parser.hasRoom() : clientToUpstream.hasRemaining())) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (established != null || upstreamToClient.position() > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        if (!upstreamEof && upstreamToClient.hasRemaining()) {
+            upstreamOps |= SelectionKey.OP_READ;
+        }
+        if (clientToUpstream.position() > 0) {
+            upstreamOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+        upstreamKey.interestOps(upstreamOps);
+    }
+
+    /**
+     * Finds a byte sequence in the filled part of a buffer in fill mode
+     *
+     * @return index of the first byte of the match, or -1
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        int limit = buffer.position() - pattern.length;
+        outer:
+        for (int i = 0; i <= limit; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void closeUpstream() {
+        if (upstreamKey != null) {
+            upstreamKey.cancel();
+        }
+        if (upstreamChannel != null) {
+            try {
+                upstreamChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        upstreamChannel = null;
+        upstreamKey = null;
+    }
+
+    @Override
+    public void close() {
+        if (state == State.CLOSED && clientToUpstream == null) {
+            return;
+        }
+        state = State.CLOSED;
+        cancelDeadline();
+        if (attemptPending) {
+            // The client went away or the connection failed before the upstream was reached
+            attemptPending = false;
+            upstream.cancelled(tried, System.nanoTime() - upstreamStarted);
+        }
+        if (idle != null) {
+            idle.cancel();
+        }
+        if (lifetime != null) {
+            lifetime.cancel();
+        }
+        releaseAdmission(record.status == 502 || record.status == 504);
+        AdmissionController.getShared().connectionClosed(client);
+        if (record.method != null) {
+            AccessLog.getShared().log(record);
+        }
+        Metrics.getShared().activeConnections.decrement();
+        if (clientKey != null) {
+            clientKey.cancel();
+        }
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) {
+        }
+        closeUpstream();
+        BufferPool.release(clientToUpstream);
+        BufferPool.release(upstreamToClient);
+        clientToUpstream = null;
+        upstreamToClient = null;
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single selector thread that owns a set of channels.
+ * Every channel registered with a loop is only ever touched by that loop's
+ * thread, so connection state needs no locking. Other threads hand work to a
+ * loop through execute().
+ */
+public class NioEventLoop implements Runnable {
+
+    /**
+     * Receives readiness events for a channel registered with the loop
+     */
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final String name;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread
+     *
+     * @param task work touching channels owned by this loop
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("Selector failed on " + name);
+                e.printStackTrace();
+                break;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    handler.close();
+                }
+            }
+        }
+
+        // Close everything this loop still owns
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on a listening channel and spreads them
+     * round-robin across a group of loops.
+     */
+    static class Acceptor implements Handler {
+        private final ServerSocketChannel serverChannel;
+        private final NioEventLoop[] loops;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Acceptor(ServerSocketChannel serverChannel, NioEventLoop[] loops) {
+            this.serverChannel = serverChannel;
+            this.loops = loops;
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    long acceptedAt = System.nanoTime();
+                    String client;
+                    try {
+                        client = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                    } catch (IOException e) {
+                        // Already gone
+                        channel.close();
+                        continue;
+                    }
+                    if (!AdmissionController.getShared().connectionOpened(client)) {
+                        // Best effort, a connection turned away gets no more than the socket buffer takes
+                        try (SocketChannel rejected = channel) {
+                            rejected.configureBlocking(false);
+                            rejected.write(ByteBuffer.wrap(Proxy.rejection("429 Too Many Requests")));
+                        } catch (IOException ignored) {
+                        }
+                        continue;
+                    }
+                    try {
+                        SocketSettings.apply(channel);
+                    } catch (IOException e) {
+                        channel.close();
+                        continue;
+                    }
+                    NioEventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+                    SocketChannel accepted = channel;
+                    loop.execute(() -> new NioConnection(loop, accepted, acceptedAt, client).start());
+                }
+            } catch (IOException e) {
+                // Keep listening, e.g. when out of file descriptors
+                System.out.println("Error accepting connection: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,87 +1,232 @@
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Proxy implements Runnable {
     /**
-     * ArrayList of threads that are currently running and servicing requests.
-     * This list is required in order to join all threads on closing of server
+     * Runs RequestHandlers and keeps track of the threads currently servicing requests.
+     * This is required in order to join all threads on closing of server
      */
-    static ArrayList<Thread> servicingThreads;
+    private final HandlerExecutor servicingThreads;
     private volatile boolean running = true;
-    private ServerSocket serverSocket;
+
+    /**
+     * The addresses connections are accepted on, see ProxyListener
+     */
+    private final List<ProxyListener> listeners;
+
+    /**
+     * Selector threads servicing connections when proxy.mode is "nio"
+     */
+    private NioEventLoop[] eventLoops;
+
+    /**
+     * Local HTTP endpoint for metrics and console commands, null when disabled
+     */
+    private AdminServer adminServer;
 
     public static void main(String[] args) {
-        Proxy myProxy = new Proxy(8085);
+        Proxy myProxy = new Proxy(ProxyConfig.getInt("proxy.port", 8085));
         myProxy.listen();
     }
 
     public Proxy(int port) {
-        // Create array list to hold servicing threads
-        servicingThreads = new ArrayList<>();
+        // Create executor to run servicing threads
+        servicingThreads = new HandlerExecutor();
+        Metrics.getShared().gauge("proxy_handler_threads", "Threads currently servicing connections",
+                servicingThreads::getActiveCount);
+        // Read the blocklist now rather than on the first request
+        Blocklist.getShared();
 
         // Start dynamic manager on a separate thread.
-        new Thread(this).start();	// Starts overriden run() method at bottom
+        if (ProxyConfig.getBoolean("proxy.console", true)) {
+            new Thread(this).start();	// Starts overriden run() method at bottom
+        }
 
-        try {
-            // Create the Server Socket for the Proxy
-            serverSocket = new ServerSocket(port);
+        // Listening sockets are channels so they can also be used non-blocking
+        listeners = ProxyListener.fromConfig(port);
 
-            // Set the timeout
-            serverSocket.setSoTimeout(100000);	// debug
-            System.out.println("Waiting for client on port " + serverSocket.getLocalPort() + "..");
-            running = true;
+        // Off unless a port is configured, it has no authentication
+        int adminPort = ProxyConfig.getInt("proxy.admin.port", -1);
+        if (adminPort >= 0) {
+            try {
+                adminServer = new AdminServer(this, ProxyConfig.get("proxy.admin.host", "127.0.0.1"), adminPort);
+                adminServer.start();
+            } catch (IOException e) {
+                System.out.println("Could not start admin endpoint on port " + adminPort + ": " + e.getMessage());
+                adminServer = null;
+            }
         }
+    }
 
-        // Catch exceptions associated with opening socket
-        catch (SocketException se) {
-            System.out.println("Socket Exception when connecting to client");
-            se.printStackTrace();
+    /**
+     * Accepts connections until the server closes, on one thread per listening
+     * socket, or on the event loops in nio mode
+     */
+    public void listen(){
+        if (listeners.isEmpty()) {
+            System.out.println("No address to listen on, see proxy.listen");
+            return;
         }
-        catch (SocketTimeoutException ste) {
-            System.out.println("Timeout occured while connecting to client");
+        if (ProxyConfig.get("proxy.mode", "thread").equals("nio")) {
+            listenNonBlocking();
+            return;
         }
-        catch (IOException io) {
-            System.out.println("IO exception when connecting to client");
+        List<Thread> acceptors = new ArrayList<>();
+        for (ProxyListener listener : listeners) {
+            List<ServerSocketChannel> channels = listener.getChannels();
+            for (int i = 0; i < channels.size(); i++) {
+                ServerSocketChannel channel = channels.get(i);
+                Thread acceptor = new Thread(() -> accept(channel), "acceptor-" + listener.getPort() + "-" + i);
+                acceptor.start();
+                acceptors.add(acceptor);
+            }
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
-    public void listen(){
+    /**
+     * Accepts connections on one listening socket and hands each to a RequestHandler
+     */
+    private void accept(ServerSocketChannel channel) {
         while(running) {
             try {
-                // serverSocket.accpet() Blocks until a connection is made
-                Socket socket = serverSocket.accept();
-
-                // Create new Thread and pass it Runnable RequestHandler
-                Thread thread = new Thread(new RequestHandler(socket));
+                // Blocks until a connection is made
+                Socket socket = channel.accept().socket();
+                String client = socket.getInetAddress().getHostAddress();
+                AdmissionController admission = AdmissionController.getShared();
+                if (!admission.connectionOpened(client)) {
+                    rejectConnection(socket, "429 Too Many Requests");
+                    continue;
+                }
 
-                // Key a reference to each thread so they can be joined later if necessary
-                servicingThreads.add(thread);
+                try {
+                    SocketSettings.apply(socket);
+                } catch (IOException e) {
+                    // Already reset by the client
+                    socket.close();
+                    continue;
+                }
 
-                thread.start();
-            } catch (SocketException e) {
-                // Socket exception is triggered by management system to shut down the proxy
-                System.out.println("Server closed");
-            } catch (SocketTimeoutException e) {
-                System.out.println("Timeout");
+                // Service the connection on its own (virtual) thread
+                try {
+                    servicingThreads.execute(new RequestHandler(socket, servicingThreads));
+                } catch (RejectedExecutionException e) {
+                    admission.connectionClosed(client);
+                    rejectConnection(socket, "503 Service Unavailable");
+                }
+            } catch (ClosedChannelException e) {
+                // Closed by the management system to shut down the proxy
+                if (running) {
+                    System.out.println("Server closed");
+                }
+                return;
             } catch (IOException e) {
-                e.printStackTrace();
+                // e.g. out of file descriptors, which only freeing some will fix, so do not spin
+                System.out.println("Error accepting connection: " + e.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_ERROR_PAUSE_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
             }
         }
     }
 
+    /**
+     * How long an acceptor waits after a failed accept before trying again
+     */
+    private static final long ACCEPT_ERROR_PAUSE_MILLIS = 100;
+
+    /**
+     * Turns away a connection when no thread is available to service it or
+     * its client already holds too many connections
+     *
+     * @param socket     connection that was just accepted
+     * @param statusLine status code and reason, e.g. "503 Service Unavailable"
+     */
+    private void rejectConnection(Socket socket, String statusLine) {
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write(rejection(statusLine));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return response turning away a connection, asking the client to come back after a while
+     */
+    static byte[] rejection(String statusLine) {
+        return ("HTTP/1.0 " + statusLine + "\r\n" +
+                "Proxy-agent: ProxyBridge/1.0\r\n" +
+                "Retry-After: " + AdmissionController.getShared().getRetryAfterSeconds() + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Services all connections from a fixed set of selector threads, one per core
+     * by default, instead of a thread per connection. Blocks until the server closes.
+     */
+    private void listenNonBlocking() {
+        int threads = ProxyConfig.getInt("proxy.nio.threads", Runtime.getRuntime().availableProcessors());
+        try {
+            eventLoops = new NioEventLoop[Math.max(1, threads)];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop("nio-loop-" + i);
+            }
+            // Listening sockets are spread over the loops, each acceptor still sharing connections among all of them
+            int next = 0;
+            for (ProxyListener listener : listeners) {
+                for (ServerSocketChannel channel : listener.getChannels()) {
+                    NioEventLoop loop = eventLoops[next++ % eventLoops.length];
+                    channel.configureBlocking(false);
+                    NioEventLoop.Acceptor acceptor = new NioEventLoop.Acceptor(channel, eventLoops);
+                    loop.execute(() -> {
+                        try {
+                            channel.register(loop.selector, SelectionKey.OP_ACCEPT, acceptor);
+                        } catch (IOException e) {
+                            System.out.println("Could not register server socket");
+                            e.printStackTrace();
+                        }
+                    });
+                }
+            }
+            for (NioEventLoop loop : eventLoops) {
+                loop.start();
+            }
+            System.out.println("Servicing connections on " + eventLoops.length + " event loops");
+            for (NioEventLoop loop : eventLoops) {
+                loop.join();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not start event loops");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void closeServer(){
         System.out.println("\nClosing Server..");
         running = false;
 
         try{
             // Close all servicing threads
-            for(Thread thread : servicingThreads){
+            servicingThreads.shutdown();
+            for(Thread thread : servicingThreads.getLiveThreads()){
                 if(thread.isAlive()){
                     System.out.print("Waiting on "+  thread.getId()+" to close..");
                     thread.join();
@@ -92,15 +237,78 @@ public class Proxy implements Runnable {
             e.printStackTrace();
         }
 
-        // Close Server Socket
-        try{
-            System.out.println("Terminating Connection");
-            serverSocket.close();
-        } catch (Exception e) {
-            System.out.println("Exception closing proxy's server socket");
-            e.printStackTrace();
+        // Stop event loops, closing the connections they own
+        if (eventLoops != null) {
+            for (NioEventLoop loop : eventLoops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+
+        // Close Server Sockets
+        System.out.println("Terminating Connection");
+        for (ProxyListener listener : listeners) {
+            listener.close();
+        }
+
+        if (adminServer != null) {
+            adminServer.stop();
         }
 
+        // Write out whatever is still queued for the access log
+        AccessLog.getShared().close();
+
+    }
+
+    /**
+     * Stops the server, waiting for requests in progress to finish
+     */
+    public void close() {
+        running = false;
+        closeServer();
+    }
+
+    /**
+     * @return port the first listening address is bound to, -1 if none could be bound
+     */
+    public int getPort() {
+        return listeners.isEmpty() ? -1 : listeners.get(0).getPort();
+    }
+
+    /**
+     * Runs a console command that only reports on the proxy
+     *
+     * @param command command name, e.g. "cached"
+     * @return the command's output, or null if there is no such command
+     */
+    public String runCommand(String command) {
+        switch (command.toLowerCase()) {
+            case "blocked":
+                return Blocklist.getShared().describe();
+            case "cached":
+                return ResponseCache.getShared().describe();
+            case "upstreams":
+                return UpstreamRegistry.getShared().describe();
+            case "admission":
+                return AdmissionController.getShared().describe();
+            case "dns":
+                return DnsCache.getShared().describe();
+            case "coalesced":
+                return RequestCoalescer.getShared().describe();
+            case "hedging":
+                return RequestHedger.getShared().describe();
+            case "timeouts":
+                return TimingWheel.getShared().describe();
+            case "compression":
+                return ResponseCompressor.getShared().describe();
+            case "accesslog":
+                return AccessLog.getShared().describe();
+            case "metrics":
+                return Metrics.getShared().prometheus();
+            default:
+                return null;
+        }
     }
 
     @Override
@@ -109,11 +317,21 @@ public class Proxy implements Runnable {
 
         String command;
         while(running){
-            System.out.println("Enter new site to block, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, or \"close\" to close server.");
+            System.out.println("Enter new site to block, \"unblock\" and a site to unblock it, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, or \"close\" to close server.");
             command = scanner.nextLine();
             if(command.toLowerCase().equals("close")){
                 running = false;
                 closeServer();
+            } else {
+                String output = runCommand(command);
+                if (output == null && command.toLowerCase().startsWith("unblock ")) {
+                    output = Blocklist.getShared().unblock(command.substring("unblock ".length()));
+                } else if (output == null && !command.trim().isEmpty()) {
+                    output = Blocklist.getShared().block(command);
+                }
+                if (output != null) {
+                    System.out.print(output);
+                }
             }
         }
         scanner.close();
@@ -0,0 +1,79 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Runtime settings for the proxy.
+ * Values are read from the file named by the "proxy.config" system property
+ * (proxy.properties in the working directory by default) and any key can be
+ * overridden on the command line with -Dkey=value.
+ */
+public final class ProxyConfig {
+
+    /**
+     * Settings loaded from the config file, if one was found
+     */
+    private static final Properties fileProperties = load();
+
+    private ProxyConfig() {
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties();
+        String path = System.getProperty("proxy.config", "proxy.properties");
+        try (InputStream in = new FileInputStream(path)) {
+            properties.load(in);
+            System.out.println("Loaded configuration from " + path);
+        } catch (IOException e) {
+            // No config file, defaults and system properties apply
+        }
+        return properties;
+    }
+
+    /**
+     * Looks up a setting, system properties taking precedence over the config file
+     *
+     * @param key          name of the setting
+     * @param defaultValue value returned when the setting is absent
+     * @return the configured value or defaultValue
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = fileProperties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The listening sockets for one address the proxy accepts connections on.
+ * Addresses come from proxy.listen, a comma separated list of host:port,
+ * [ipv6]:port or a bare port for all interfaces. Each address gets
+ * proxy.listen.acceptors accept threads, or selector registrations in nio
+ * mode. Where SO_REUSEPORT is supported every acceptor has a socket of its
+ * own bound to the same port and the kernel spreads new connections across
+ * them, so accepting never funnels through one lock; elsewhere one socket is
+ * bound and its single acceptor hands each connection on to the workers.
+ * The accept queue holds up to proxy.listen.backlog connections.
+ */
+public final class ProxyListener implements Closeable {
+
+    private final InetSocketAddress address;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private final boolean reusePort;
+
+    /**
+     * Binds the sockets for an address
+     *
+     * @param address   address to listen on, port 0 for any free port
+     * @param acceptors acceptors wanted for the address
+     * @param backlog   length of each socket's accept queue
+     * @throws IOException if the address cannot be bound
+     */
+    ProxyListener(InetSocketAddress address, int acceptors, int backlog) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            bind(first, address, backlog);
+        } catch (IOException e) {
+            first.close();
+            throw e;
+        }
+        channels.add(first);
+        // Bound once so a port of 0 is resolved before the other sockets join it
+        this.address = (InetSocketAddress) first.getLocalAddress();
+        if (reusePort) {
+            try {
+                for (int i = 1; i < acceptors; i++) {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    bind(channel, this.address, backlog);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    private void bind(ServerSocketChannel channel, InetSocketAddress address, int backlog) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        // Accepted connections inherit the buffer size, which must be set before the handshake to take effect
+        if (SocketSettings.getReceiveBuffer() > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SocketSettings.getReceiveBuffer());
+        }
+        channel.bind(address, backlog);
+    }
+
+    /**
+     * Binds every address in proxy.listen
+     *
+     * @param defaultPort port listened on, on all interfaces, when proxy.listen is not set
+     * @return the listeners, without those whose address could not be bound
+     */
+    static List<ProxyListener> fromConfig(int defaultPort) {
+        int acceptors = Math.max(1, ProxyConfig.getInt("proxy.listen.acceptors", 1));
+        int backlog = ProxyConfig.getInt("proxy.listen.backlog", 1024);
+        List<ProxyListener> listeners = new ArrayList<>();
+        for (String entry : ProxyConfig.get("proxy.listen", String.valueOf(defaultPort)).split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            InetSocketAddress address;
+            try {
+                address = parseAddress(entry);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Ignoring invalid listen address " + entry);
+                continue;
+            }
+            try {
+                ProxyListener listener = new ProxyListener(address, acceptors, backlog);
+                listeners.add(listener);
+                System.out.println("Waiting for client on " + listener + (listener.reusePort
+                        ? " with " + listener.channels.size() + " acceptors" : "") + "..");
+            } catch (IOException e) {
+                System.out.println("Could not listen on " + entry + ": " + e.getMessage());
+            }
+        }
+        return listeners;
+    }
+
+    /**
+     * @param entry host:port, [ipv6]:port or port
+     */
+    static InetSocketAddress parseAddress(String entry) {
+        int colon = entry.lastIndexOf(':');
+        if (colon < 0 || (entry.startsWith("[") && colon < entry.indexOf(']'))) {
+            return new InetSocketAddress(Integer.parseInt(entry));
+        }
+        String host = entry.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = Integer.parseInt(entry.substring(colon + 1));
+        return host.isEmpty() || host.equals("*") ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @return one socket per acceptor with SO_REUSEPORT, otherwise the single socket
+     */
+    List<ServerSocketChannel> getChannels() {
+        return channels;
+    }
+
+    public int getPort() {
+        return address.getPort();
+    }
+
+    @Override
+    public void close() {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (address.getAddress().isAnyLocalAddress() ? "*" : address.getHostString()) + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,733 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets concurrent identical GETs share one upstream fetch.
+ * Requests are matched on their normalized URL and the headers responses
+ * commonly vary on; the first one fetches and the others attach to its flight
+ * until the response is complete. The body is kept in a shared list of chunks,
+ * each subscriber reading it at its own pace. There is no dedicated reader:
+ * whichever subscriber has caught up with the data reads the next chunk from
+ * upstream, so the fastest client sets the pace and a slow one only falls
+ * behind. A flight keeps up to proxy.coalesce.bufferBytes so late requests can
+ * join from the start; once more than that is held, chunks every subscriber has
+ * read are dropped and no one can join any more. A subscriber still further
+ * behind leaves the flight and fetches the rest of the body on its own with a
+ * range request, rather than holding the others back; when the response cannot
+ * be continued that way the others wait for it instead. Requests carrying
+ * credentials, ranges or conditions, and responses that set cookies, are
+ * private or vary on other headers, are never shared.
+ */
+public final class RequestCoalescer {
+
+    private static final RequestCoalescer shared = new RequestCoalescer();
+
+    /**
+     * Size of the chunks read from upstream
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Returned by Flight.next() to a subscriber that fell too far behind
+     */
+    private static final int CUT_OFF = -2;
+
+    /**
+     * Request headers that make up the key besides the URL, the ones responses usually vary on
+     */
+    private static final String[] KEY_HEADERS = {"Accept", "Accept-Encoding", "Accept-Language"};
+
+    /**
+     * Request headers carrying the client's credentials, which make a response personal to the client
+     */
+    private static final String[] CREDENTIAL_HEADERS = {"Authorization", "Cookie"};
+
+    /**
+     * Request headers whose presence makes a response only partly useful to others
+     */
+    private static final String[] PARTIAL_HEADERS = {"Range", "If-Range", "If-Match", "If-None-Match",
+            "If-Modified-Since", "If-Unmodified-Since"};
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.coalesce.enabled", true);
+    private final long bufferBytes = Math.max(CHUNK_SIZE, ProxyConfig.getLong("proxy.coalesce.bufferBytes", 1024 * 1024));
+    private final long maxBufferedBytes = ProxyConfig.getLong("proxy.coalesce.maxBufferedBytes", 64L * 1024 * 1024);
+
+    /**
+     * Flights that can still be joined, by key
+     */
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Body bytes held by all flights
+     */
+    private final AtomicLong buffered = new AtomicLong();
+
+    final LongAdder leaders = new LongAdder();
+    final LongAdder followers = new LongAdder();
+    final LongAdder unshared = new LongAdder();
+    final LongAdder cutOff = new LongAdder();
+
+    private RequestCoalescer() {
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_coalesce_requests_total{role=\"leader\"}", "Requests that could share an upstream fetch",
+                leaders::sum);
+        metrics.counter("proxy_coalesce_requests_total{role=\"follower\"}",
+                "Requests that could share an upstream fetch", followers::sum);
+        metrics.counter("proxy_coalesce_unshared_total", "Fetches whose response could not be shared after all",
+                unshared::sum);
+        metrics.counter("proxy_coalesce_cut_off_total",
+                "Subscribers that fell too far behind and fetched the rest of the body on their own",
+                cutOff::sum);
+        metrics.gauge("proxy_coalesce_flights", "Upstream fetches open to other requests", flights::size);
+        metrics.gauge("proxy_coalesce_buffered_bytes", "Response bytes held for subscribers", buffered::get);
+    }
+
+    public static RequestCoalescer getShared() {
+        return shared;
+    }
+
+    /**
+     * @param request request line of a request
+     * @param parser  parser holding the request's headers
+     * @return the key of requests the response may be shared with, or null if it may not be shared
+     */
+    public String key(RequestLine request, HttpRequestParser parser) {
+        if (!enabled || !request.method.equals("GET") || parser.hasBody() || isPersonal(parser)) {
+            return null;
+        }
+        for (String name : PARTIAL_HEADERS) {
+            if (parser.getHeader(name) != null) {
+                return null;
+            }
+        }
+        String url = normalize(request.urlString);
+        if (url == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(url);
+        for (String name : KEY_HEADERS) {
+            String value = parser.getHeader(name);
+            key.append('\n').append(value != null ? value.trim() : "");
+        }
+        return key.toString();
+    }
+
+    /**
+     * Lower cases the scheme and host and drops the default port and any fragment
+     *
+     * @return the normalized URL, or null if it carries credentials
+     */
+    static String normalize(String url) {
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return url;
+        }
+        int authority = scheme + 3;
+        int path = authority;
+        while (path < url.length() && url.charAt(path) != '/' && url.charAt(path) != '?') {
+            path++;
+        }
+        String host = url.substring(authority, path).toLowerCase(Locale.ROOT);
+        if (host.indexOf('@') >= 0) {
+            return null;
+        }
+        if (host.endsWith(":80")) {
+            host = host.substring(0, host.length() - 3);
+        }
+        return url.substring(0, scheme).toLowerCase(Locale.ROOT) + "://" + host
+                + (path < url.length() ? url.substring(path) : "/");
+    }
+
+    /**
+     * Attaches a request to the flight for its key, starting one if there is none to join
+     *
+     * @param key key from key()
+     * @return the request's subscription, which leads the flight if the request must fetch the response
+     */
+    public Subscription subscribe(String key) {
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight(key);
+                Subscription leader = flight.join();
+                if (flights.putIfAbsent(key, flight) == null) {
+                    leaders.increment();
+                    return leader;
+                }
+                continue;
+            }
+            Subscription follower = flight.join();
+            if (follower != null) {
+                followers.increment();
+                return follower;
+            }
+            // The flight is past joining, make way for a new one
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return whether the request carries credentials, so its response must not be handed to other clients
+     */
+    static boolean isPersonal(HttpRequestParser parser) {
+        for (String name : CREDENTIAL_HEADERS) {
+            if (parser.getHeader(name) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a response may be handed to requests other than the one it answers
+     */
+    static boolean isShareable(UpstreamResponse response) {
+        if (response.status == 206 || response.getHeader("Set-Cookie") != null) {
+            return false;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase(Locale.ROOT);
+            if (directives.contains("private") || directives.contains("no-store")) {
+                return false;
+            }
+        }
+        String vary = response.getHeader("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                boolean keyed = false;
+                for (String keyHeader : KEY_HEADERS) {
+                    keyed |= keyHeader.equalsIgnoreCase(name);
+                }
+                if (!keyed) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the rest of a shared body for a subscriber that fell too far behind
+     */
+    public interface Continuation {
+        /**
+         * @param position offset in the body of the first byte wanted
+         * @return the body from there on
+         * @throws IOException if the rest cannot be fetched
+         */
+        InputStream from(long position) throws IOException;
+    }
+
+    /**
+     * One request's place in a flight
+     */
+    public final class Subscription {
+        private final Flight flight;
+        private final boolean leader;
+
+        /**
+         * Offset of the next body byte the subscriber reads
+         */
+        private long position;
+        private boolean left;
+        private boolean cut;
+        private Continuation continuation;
+
+        /**
+         * Rest of the body fetched by this subscriber alone, once it has been cut off
+         */
+        private InputStream own;
+
+        /**
+         * Chunk holding the bytes returned by the last next()
+         */
+        byte[] data;
+        int offset;
+
+        Subscription(Flight flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        /**
+         * @return whether this request fetches the response for the flight
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Hands the leader's response to the flight, which from then on owns it
+         * and the cache writer, closing both once the body has been read
+         *
+         * @param response    upstream response, its body not yet read
+         * @param body        stream the body is read from, the response's own or one wrapping it
+         * @param cacheWriter writer storing the response in the cache, or null
+         * @param upstream    upstream the response came through, for the access log
+         */
+        public void publish(UpstreamResponse response, InputStream body, ResponseCache.Writer cacheWriter,
+                            String upstream) {
+            flight.publish(response, body, cacheWriter, upstream);
+        }
+
+        /**
+         * Tells followers the leader got no shareable response, so each must fetch its own
+         */
+        public void abandon() {
+            flight.abandon(false);
+        }
+
+        /**
+         * Tells followers the leader found no upstream able to answer
+         */
+        public void fail() {
+            flight.abandon(true);
+        }
+
+        /**
+         * Waits for the leader's response
+         *
+         * @return the response, or null if it is not shared and the request must be fetched on its own
+         * @throws IOException if the leader found no upstream able to answer
+         */
+        public UpstreamResponse awaitResponse() throws IOException {
+            return flight.awaitResponse();
+        }
+
+        /**
+         * @return upstream the shared response came through
+         */
+        public String getUpstream() {
+            return flight.upstream;
+        }
+
+        /**
+         * Sets how the rest of the body is fetched should this subscriber fall too far behind the others
+         */
+        public void continueWith(Continuation continuation) {
+            this.continuation = continuation;
+        }
+
+        /**
+         * Makes the next body bytes available in data from offset, reading them
+         * from upstream if this subscriber is the first to need them, or through
+         * its continuation once it has fallen too far behind
+         *
+         * @return number of bytes available, or -1 at the end of the body
+         * @throws IOException if the upstream fails, or the subscriber fell too far behind and cannot continue
+         */
+        public int next() throws IOException {
+            if (own == null) {
+                int read = flight.next(this);
+                if (read != CUT_OFF) {
+                    return read;
+                }
+                if (continuation == null) {
+                    throw new IOException("Fell too far behind the shared response");
+                }
+                own = continuation.from(position);
+                data = new byte[CHUNK_SIZE];
+                offset = 0;
+            }
+            int read = own.read(data, 0, data.length);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        /**
+         * Leaves the flight, the last subscriber to leave closes the upstream response
+         */
+        public void leave() {
+            flight.leave(this);
+            if (own != null) {
+                try {
+                    own.close();
+                } catch (IOException ignored) {
+                }
+                own = null;
+            }
+        }
+    }
+
+    /**
+     * A chunk of body bytes and its offset in the body
+     */
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final long start;
+
+        Chunk(byte[] data, int length, long start) {
+            this.data = data;
+            this.length = length;
+            this.start = start;
+        }
+    }
+
+    /**
+     * One upstream fetch and the requests sharing it
+     */
+    private final class Flight {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signalled when the response arrives or the flight is abandoned, and when chunks are added
+         */
+        private final Condition changed = lock.newCondition();
+
+        private final List<Subscription> subscribers = new ArrayList<>();
+        private final List<Chunk> chunks = new ArrayList<>();
+
+        private UpstreamResponse response;
+        private ResponseCache.Writer cacheWriter;
+        private InputStream body;
+        private volatile String upstream;
+
+        /**
+         * Offset of the first chunk still held and the end of the body read so far
+         */
+        private long base;
+        private long end;
+
+        private boolean published;
+        private boolean abandoned;
+        private boolean failed;
+        private boolean reading;
+        private boolean complete;
+        private IOException error;
+        private boolean joinable = true;
+
+        /**
+         * Whether a subscriber that falls too far behind can fetch the rest on its own
+         */
+        private boolean continuable;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return a new subscription, or null if the flight can no longer be joined
+         */
+        Subscription join() {
+            lock.lock();
+            try {
+                if (!joinable) {
+                    return null;
+                }
+                Subscription subscription = new Subscription(this, subscribers.isEmpty());
+                subscribers.add(subscription);
+                return subscription;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void publish(UpstreamResponse response, InputStream body, ResponseCache.Writer cacheWriter, String upstream) {
+            lock.lock();
+            try {
+                this.response = response;
+                this.cacheWriter = cacheWriter;
+                this.upstream = upstream;
+                this.body = response.hasBody() ? body : null;
+                continuable = ResumableBody.canContinue(response);
+                complete = this.body == null;
+                joinable = !complete;
+                published = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (complete) {
+                finish();
+            }
+        }
+
+        void abandon(boolean failed) {
+            lock.lock();
+            try {
+                abandoned = true;
+                this.failed = failed;
+                joinable = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            flights.remove(key, this);
+            if (!failed) {
+                unshared.increment();
+            }
+        }
+
+        UpstreamResponse awaitResponse() throws IOException {
+            lock.lock();
+            try {
+                while (!published && !abandoned) {
+                    changed.awaitUninterruptibly();
+                }
+                if (failed) {
+                    throw new IOException("No upstream answered the shared request");
+                }
+                return published ? response : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int next(Subscription subscription) throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    if (subscription.cut) {
+                        return CUT_OFF;
+                    }
+                    if (subscription.position < end) {
+                        Chunk chunk = chunkAt(subscription.position);
+                        int from = (int) (subscription.position - chunk.start);
+                        subscription.data = chunk.data;
+                        subscription.offset = from;
+                        subscription.position += chunk.length - from;
+                        trim();
+                        return chunk.length - from;
+                    }
+                    if (complete) {
+                        return -1;
+                    }
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (reading || (!continuable && end - base > bufferBytes)) {
+                        // Another subscriber is reading, or the slowest must catch up before more is read
+                        changed.awaitUninterruptibly();
+                        continue;
+                    }
+                    reading = true;
+                    lock.unlock();
+                    try {
+                        readChunk();
+                    } finally {
+                        lock.lock();
+                        reading = false;
+                        changed.signalAll();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the next chunk from upstream, called outside the lock by the one subscriber reading
+         */
+        private void readChunk() {
+            byte[] data = new byte[CHUNK_SIZE];
+            int read;
+            IOException failure = null;
+            try {
+                read = body.read(data);
+                if (read > 0 && cacheWriter != null) {
+                    cacheWriter.write(data, 0, read);
+                }
+            } catch (IOException e) {
+                read = -1;
+                failure = e;
+            }
+            boolean done = false;
+            lock.lock();
+            try {
+                if (failure != null) {
+                    error = failure;
+                    done = true;
+                } else if (read < 0) {
+                    complete = true;
+                    done = true;
+                    // A finished response is not handed to requests that arrive after it
+                    joinable = false;
+                } else if (read > 0) {
+                    chunks.add(new Chunk(data, read, end));
+                    end += read;
+                    buffered.addAndGet(read);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (done) {
+                finish();
+            }
+        }
+
+        /**
+         * @return the held chunk containing the offset
+         */
+        private Chunk chunkAt(long position) {
+            int low = 0;
+            int high = chunks.size() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (chunks.get(middle).start <= position) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return chunks.get(low);
+        }
+
+        /**
+         * Drops chunks every subscriber has read once more than the buffer size is
+         * held, or all flights together hold more than proxy.coalesce.maxBufferedBytes,
+         * cutting off subscribers that are more than the buffer size behind if they
+         * can continue on their own
+         */
+        private void trim() {
+            if (end - base <= bufferBytes && buffered.get() <= maxBufferedBytes) {
+                return;
+            }
+            if (joinable) {
+                joinable = false;
+                flights.remove(key, this);
+            }
+            long keepFrom = continuable ? end - bufferBytes : Long.MIN_VALUE;
+            long slowest = end;
+            for (Subscription subscriber : subscribers) {
+                if (subscriber.position < keepFrom) {
+                    subscriber.cut = true;
+                    cutOff.increment();
+                } else {
+                    slowest = Math.min(slowest, subscriber.position);
+                }
+            }
+            subscribers.removeIf(subscriber -> subscriber.cut);
+            drop(slowest);
+        }
+
+        /**
+         * Drops every chunk that ends at or before the offset
+         */
+        private void drop(long until) {
+            int dropped = 0;
+            while (dropped < chunks.size()) {
+                Chunk chunk = chunks.get(dropped);
+                if (chunk.start + chunk.length > until) {
+                    break;
+                }
+                buffered.addAndGet(-chunk.length);
+                base = chunk.start + chunk.length;
+                dropped++;
+            }
+            chunks.subList(0, dropped).clear();
+            if (dropped > 0) {
+                // Subscribers waiting for room may read on
+                changed.signalAll();
+            }
+        }
+
+        void leave(Subscription subscription) {
+            boolean last;
+            boolean orphaned;
+            lock.lock();
+            try {
+                if (subscription.left) {
+                    return;
+                }
+                subscription.left = true;
+                subscribers.remove(subscription);
+                last = subscribers.isEmpty();
+                if (last) {
+                    // Nobody is left to read the rest, so the flight cannot be joined either
+                    joinable = false;
+                    drop(Long.MAX_VALUE);
+                } else {
+                    trim();
+                }
+                orphaned = subscription.leader && !published && !abandoned;
+            } finally {
+                lock.unlock();
+            }
+            if (orphaned) {
+                // The leader left before it got a response, followers must not wait for one
+                abandon(false);
+            }
+            if (last) {
+                flights.remove(key, this);
+                finish();
+            }
+        }
+
+        /**
+         * Ends the fetch once the body is complete, has failed or nobody wants it:
+         * caches a complete body and gives the upstream connection back
+         */
+        private void finish() {
+            UpstreamResponse closing;
+            InputStream closingBody;
+            ResponseCache.Writer writer;
+            boolean cache;
+            lock.lock();
+            try {
+                if (response == null) {
+                    return;
+                }
+                joinable = false;
+                closing = response;
+                closingBody = body;
+                writer = cacheWriter;
+                cache = complete;
+                response = null;
+                cacheWriter = null;
+            } finally {
+                lock.unlock();
+            }
+            flights.remove(key, this);
+            if (writer != null) {
+                if (cache) {
+                    writer.commit();
+                } else {
+                    // Only complete responses are cached
+                    writer.abort();
+                }
+            }
+            if (closingBody != null) {
+                try {
+                    closingBody.close();
+                } catch (IOException ignored) {
+                }
+            }
+            // Closing before the body has been read discards the connection rather than pooling it
+            closing.close();
+        }
+    }
+
+    /**
+     * @return summary of coalescing for the console
+     */
+    public String describe() {
+        if (!enabled) {
+            return "Request coalescing disabled\n";
+        }
+        return "Coalescing: " + flights.size() + " open flights holding " + buffered.get() / 1024 + " KB; "
+                + leaders.sum() + " fetches, " + followers.sum() + " requests served by another's fetch, "
+                + unshared.sum() + " responses not shareable, " + cutOff.sum() + " subscribers cut off\n";
+    }
+}
@@ -1,15 +1,16 @@
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.*;
-import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import javax.imageio.ImageIO;
+import java.util.concurrent.RejectedExecutionException;
 
 public class RequestHandler implements Runnable {
 
@@ -19,26 +20,85 @@ public class RequestHandler implements Runnable {
     Socket clientSocket;
 
     /**
-     * Read data client sends to proxy
+     * Reads requests from the client, its buffer reused for every request on the connection
      */
-    BufferedReader proxyToClientBr;
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    /**
+     * Stream the client's requests are read from
+     */
+    private InputStream clientIn;
 
     /**
      * Send data from proxy to client
      */
     BufferedWriter proxyToClientBw;
 
+    /**
+     * Runs the second relay direction of HTTPS tunnels
+     */
+    private final HandlerExecutor executor;
+
+    /**
+     * Set once the connection has been handed to a TunnelRelay, which then owns it
+     */
+    private boolean tunnelled;
+
+    /**
+     * Access log record of the request being served, reused for each request on the connection
+     */
+    private final AccessLog.Record record = new AccessLog.Record();
+
+    /**
+     * When the connection was accepted, the start of the first request's time to first byte
+     */
+    private final long acceptedAt = System.nanoTime();
+
+    /**
+     * Start of the time to first byte of the request being served
+     */
+    private long requestStartNanos;
+
+    /**
+     * Address of the client, for the access log and admission control
+     */
+    private final String clientAddress;
+
+    /**
+     * When the request being served was admitted, -1 when it holds no admission permit
+     */
+    private long admittedAt = -1;
+
+    /**
+     * Prints every response body passing through, for debugging only
+     */
+    private static final boolean DEBUG_BODIES = ProxyConfig.getBoolean("proxy.debug.bodies", false);
+
+    /**
+     * Longest a client may take over a request head, from connecting or from the
+     * first byte of a request on a kept-alive connection
+     */
+    static final long HEADERS_TIMEOUT = ProxyConfig.getLong("proxy.timeout.headersMillis", 10000);
+
+    /**
+     * Longest a client connection may sit silent, waiting for the next request or in the middle of a body
+     */
+    static final int IDLE_TIMEOUT = ProxyConfig.getInt("proxy.timeout.idleMillis", 20000);
 
     /**
      * Creates a RequestHandler object capable of servicing HTTP(S) GET requests
      *
      * @param clientSocket socket connected to the client
+     * @param executor     executor to start the HTTPS client to server relay on
      */
-    public RequestHandler(Socket clientSocket) {
+    public RequestHandler(Socket clientSocket, HandlerExecutor executor) {
         this.clientSocket = clientSocket;
+        this.executor = executor;
+        this.clientAddress = clientSocket.getInetAddress().getHostAddress();
         try {
-            this.clientSocket.setSoTimeout(20000);
-            proxyToClientBr = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            // Each blocking read waits at most the idle time, the head as a whole is held to its deadline on the timing wheel
+            this.clientSocket.setSoTimeout(IDLE_TIMEOUT);
+            clientIn = clientSocket.getInputStream();
             proxyToClientBw = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
         } catch (IOException e) {
             e.printStackTrace();
@@ -47,212 +107,750 @@ public class RequestHandler implements Runnable {
 
 
     /**
-     * Reads and examines the requestString and calls the appropriate method based
-     * on the request type.
+     * Serves requests from the client until it closes the connection, asks for
+     * it to be closed or switches it to an HTTPS tunnel. HTTP/1.1 connections
+     * stay open between requests, HTTP/1.0 ones only when the client asks.
      */
     @Override
     public void run() {
+        Metrics.getShared().activeConnections.increment();
+        try {
+            int served = 0;
+            while (handleRequest(served)) {
+                served++;
+            }
+        } finally {
+            if (!tunnelled) {
+                // A tunnel closes the socket itself once both directions are done
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {
+                }
+                Metrics.getShared().activeConnections.decrement();
+                AdmissionController.getShared().connectionClosed(clientAddress);
+            }
+        }
+    }
+
+    /**
+     * Reads and examines the next request and calls the appropriate method based
+     * on the request type.
+     *
+     * @param served requests already answered on this connection
+     * @return whether the connection stays open for another request
+     */
+    private boolean handleRequest(int served) {
 
         // Get Request from client
-        String requestString;
+        parser.next();
+        HttpRequestParser.Status status;
+        // A kept-alive connection may wait idle for its next request, the deadline starts with its first byte
+        TimingWheel.Timeout headersDeadline = served == 0 ? scheduleHeadersDeadline() : null;
         try {
-            requestString = proxyToClientBr.readLine();
+            while ((status = parser.parse()) == HttpRequestParser.Status.INCOMPLETE) {
+                if (parser.read(clientIn) < 0) {
+                    // Client closed the connection
+                    return false;
+                }
+                if (headersDeadline == null) {
+                    headersDeadline = scheduleHeadersDeadline();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // An idle keep-alive connection timing out is the normal way for it to end
+            if (served == 0) {
+                System.out.println("Timed out waiting for request from client");
+            }
+            return false;
         } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Error reading request from client");
-            return;
+            if (headersDeadline != null && headersDeadline.isExpired()) {
+                System.out.println("Client took longer than " + HEADERS_TIMEOUT + " ms to send a request head");
+            } else if (served == 0) {
+                e.printStackTrace();
+                System.out.println("Error reading request from client");
+            }
+            return false;
+        } finally {
+            if (headersDeadline != null) {
+                headersDeadline.cancel();
+            }
         }
+        record.begin(clientAddress);
+        requestStartNanos = served == 0 ? acceptedAt : record.startNanos;
+        if (status != HttpRequestParser.Status.COMPLETE) {
+            System.out.println("Rejected request from client: " + status);
+            rejectRequest(status == HttpRequestParser.Status.TOO_LARGE
+                    ? "431 Request Header Fields Too Large" : "400 Bad Request");
+            return false;
+        }
+        record.bytesIn = parser.getHeadLength();
 
         // Parse out URL
+        RequestLine request = parser.toRequestLine();
+        if (request == null) {
+            System.out.println("Malformed request from client: " + parser.getMethod() + " " + parser.getTarget());
+            rejectRequest("400 Bad Request");
+            return false;
+        }
+        record.method = request.method;
+        record.target = request.isConnect() ? request.host + ":" + request.port : request.urlString;
 
-        System.out.println("Request Received " + requestString);
-        // Get the Request type
-        String request = requestString.substring(0, requestString.indexOf(' '));
+        // Refused before anything is looked up or connected
+        if (Blocklist.getShared().isBlocked(request)) {
+            rejectRequest("403 Forbidden");
+            return false;
+        }
+        AdmissionController admission = AdmissionController.getShared();
+        long retryAfter = admission.checkRate(clientAddress);
+        if (retryAfter > 0) {
+            rejectRequest("429 Too Many Requests", retryAfter);
+            return false;
+        }
+        if (!admission.acquire()) {
+            rejectRequest("503 Service Unavailable", admission.getRetryAfterSeconds());
+            return false;
+        }
+        admittedAt = System.nanoTime();
+        try {
+            return serveRequest(request);
+        } finally {
+            // Normally released with the first response byte, this covers requests that never got one
+            releaseAdmission(record.status == 502 || record.status == 504);
+        }
+    }
 
-        // remove request type and space
-        String urlString;
-        urlString = requestString.substring(requestString.indexOf(' ') + 1);
+    /**
+     * Starts the deadline for the request head, past which the client socket is
+     * closed and the blocked read fails
+     */
+    private TimingWheel.Timeout scheduleHeadersDeadline() {
+        return TimingWheel.getShared().schedule("headers", HEADERS_TIMEOUT, () -> {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
 
-        // Remove everything past next space
-        urlString = urlString.substring(0, urlString.indexOf(' '));
+    /**
+     * Serves an admitted request
+     *
+     * @param request the request's parsed request line
+     * @return whether the connection stays open for another request
+     */
+    private boolean serveRequest(RequestLine request) {
+        // Check request type
+        if (request.isConnect()) {
+            // Everything after the CONNECT headers belongs to the tunnel
+            handleHTTPSRequest(request);
+            return false;
+        }
 
-        // Prepend http:// if necessary to create correct URL
-        if (!urlString.startsWith("http")) {
-            String temp = "http://";
-            urlString = temp + urlString;
+        boolean keepAlive = parser.wantsKeepAlive();
+        if (parser.expectsContinue()) {
+            // Answered here rather than by the upstream, so the body is already on its way when it is needed
+            try {
+                clientSocket.getOutputStream().write(CONTINUE);
+            } catch (IOException e) {
+                return false;
+            }
         }
 
-        // Check request type
-        if (request.equals("CONNECT")) {
-            System.out.println("HTTPS Request for : " + urlString + "\n");
-            handleHTTPSRequest(urlString);
-        } else {
-            // Check if we have a cached copy
-            System.out.println("HTTP GET for : " + urlString + "\n");
-            sendNonCachedToClient(urlString);
+        // Check if we have a cached copy, requests with a body always go upstream and so do
+        // ranges, which the cache would answer with the whole body, and requests with
+        // credentials, whose responses are personal to the client
+        ResponseCache.CacheEntry cached = request.method.equals("GET") && !parser.hasBody()
+                && parser.getHeader("Range") == null && !RequestCoalescer.isPersonal(parser)
+                ? ResponseCache.getShared().lookup(request.urlString) : null;
+        boolean open;
+        try {
+            if (cached != null && cached.isFresh()) {
+                record.cache = "HIT";
+                open = sendCachedToClient(request, cached, keepAlive);
+            } else {
+                open = sendNonCachedToClient(request, cached, keepAlive);
+            }
+        } finally {
+            if (cached != null) {
+                ResponseCache.getShared().release(cached);
+            }
         }
+        record.bytesIn = parser.getRequestBytes();
+        AccessLog.getShared().log(record);
+        // Without the whole body read, the next request cannot be found
+        return open && parser.isBodyComplete();
     }
 
+    /**
+     * Interim response sent to clients that wait before sending a request body
+     */
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
 
     /**
-     * Sends the contents of the file specified by the urlString to the client
+     * Answers a request that cannot be served with an error, after which the connection is closed
      *
-     * @param urlString URL of the file requested
+     * @param statusLine status code and reason, e.g. "400 Bad Request"
      */
-    private void sendNonCachedToClient(String urlString) {
+    private void rejectRequest(String statusLine) {
+        rejectRequest(statusLine, 0);
+    }
+
+    /**
+     * Answers a request that cannot be served with an error, after which the connection is closed
+     *
+     * @param statusLine status code and reason, e.g. "429 Too Many Requests"
+     * @param retryAfter seconds the client should wait before trying again, 0 for none
+     */
+    private void rejectRequest(String statusLine, long retryAfter) {
+        if (record.method == null) {
+            record.method = "-";
+        }
+        record.status = Integer.parseInt(statusLine.substring(0, 3));
+        firstByteSent();
         try {
-            // Compute a logical file name as per schema
-            // This allows the files on stored on disk to resemble that of the URL it was taken from
-            int fileExtensionIndex = urlString.lastIndexOf(".");
-            String fileExtension;
-
-            // Get the type of file
-            fileExtension = urlString.substring(fileExtensionIndex);
-
-            // Get the initial file name
-            String fileName = urlString.substring(0, fileExtensionIndex);
-
-
-            // Trim off http://www. as no need for it in file name
-            fileName = fileName.substring(fileName.indexOf('.') + 1);
-
-            // Remove any illegal characters from file name
-            fileName = fileName.replace("/", "__");
-            fileName = fileName.replace('.', '_');
-
-            // Trailing / result in index.html of that directory being fetched
-            if (fileExtension.contains("/")) {
-                fileExtension = fileExtension.replace("/", "__");
-                fileExtension = fileExtension.replace('.', '_');
-                fileExtension += ".html";
-            }
-
-            fileName = fileName + fileExtension;
-
-            // Check if file is an image
-            if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
-                    fileExtension.contains(".jpeg") || fileExtension.contains(".gif")) {
-                // Create the URL
-                URL remoteURL = new URL(urlString);
-                BufferedImage image = ImageIO.read(remoteURL);
-
-                if (image != null) {
-                    // Send response code to client
-                    String line = "HTTP/1.0 200 OK\n" +
-                            "Proxy-agent: ProxyBridge/1.0\n" +
-                            "\r\n";
-                    proxyToClientBw.write(line);
-                    proxyToClientBw.flush();
-
-                    // Send them the image data
-                    ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
-
-                    // No image received from remote server
-                } else {
-                    System.out.println("Sending 404 to client as image wasn't received from server"
-                            + fileName);
-                    String error = "HTTP/1.0 404 NOT FOUND\n" +
-                            "Proxy-agent: ProxyBridge/1.0\n" +
-                            "\r\n";
-                    proxyToClientBw.write(error);
-                    proxyToClientBw.flush();
-                    return;
-                }
-            } else {
-                int proxyLevel = 0;
-                Proxy[] proxies = getProxyList();
-                System.out.println("Using proxy: " + proxies[proxyLevel].toString());
-                URL remoteURL = new URL(urlString);
-                HttpURLConnection proxyToServerCon = (HttpURLConnection) remoteURL.openConnection(proxies[0]);
-                proxyToServerCon.setRequestProperty("Content-Type",
-                        "application/x-www-form-urlencoded");
-                proxyToServerCon.setRequestProperty("Content-Language", "en-US");
-                proxyToServerCon.setRequestProperty("User-Agent", getRandomUserAgent());
-                proxyToServerCon.setUseCaches(false);
-                proxyToServerCon.setDoOutput(true);
-
-
-                boolean connFailed = false;
-                BufferedReader proxyToServerBR = null;
-                while (!connFailed) {
-                    try {
-                        proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerCon.getInputStream()));
-                    } catch (IOException e) {
-                        int responseCode = proxyToServerCon.getResponseCode();
-                        if (responseCode != 200) {
-                            System.out.println("Proxy Level: " + proxyLevel);
-                            System.out.println("Retries Left: " + (proxies.length - 1));
-                            if (proxyLevel == proxies.length - 1) {
-                                System.out.println("No more proxies left to try");
-                                proxyToClientBw.write("Connection: close");
-                                proxyToClientBw.close();
-                                return;
-                            }
-                            System.out.println("Retrying with next proxy");
-                            proxyToServerCon = (HttpURLConnection) remoteURL.openConnection(proxies[proxyLevel + 1]);
-                            proxyToServerCon.setRequestProperty("Content-Type",
-                                    "application/x-www-form-urlencoded");
-                            proxyToServerCon.setRequestProperty("Content-Language", "en-US");
-                            proxyToServerCon.setRequestProperty("User-Agent", getRandomUserAgent());
-                            proxyToServerCon.setUseCaches(false);
-                            proxyToServerCon.setDoOutput(true);
-                            proxyLevel++;
-                        }
-                    }
-                    if (proxyToServerCon.getResponseCode() == 200) {
-                        connFailed = true;
-                        break;
-                    }
+            proxyToClientBw.write("HTTP/1.1 " + statusLine + "\r\n" +
+                    "Proxy-agent: ProxyBridge/1.0\r\n" +
+                    (retryAfter > 0 ? "Retry-After: " + retryAfter + "\r\n" : "") +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n");
+            proxyToClientBw.flush();
+        } catch (IOException ignored) {
+        }
+        AccessLog.getShared().log(record);
+    }
+
+
+    /**
+     * Size of the buffer used to copy a response body to the client
+     */
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Sends a cached response to the client, compressed when the client accepts
+     * it: from the stored compressed variant if there is one, otherwise
+     * compressed now and the variant stored for the next hit
+     *
+     * @param request   request from the client
+     * @param cached    fresh cache entry for the requested URL
+     * @param keepAlive whether the client wants the connection kept open
+     * @return whether the connection stays open for another request
+     */
+    private boolean sendCachedToClient(RequestLine request, ResponseCache.CacheEntry cached, boolean keepAlive) {
+        ResponseCache cache = ResponseCache.getShared();
+        ResponseCompressor compressor = ResponseCompressor.getShared();
+        record.status = 200;
+        firstByteSent();
+        ResponseCache.CacheEntry variant = null;
+        try {
+            String encoding = compressor.encodingFor(parser, 200, cached.headers, cached.size);
+            if (encoding != null) {
+                variant = cache.variant(cached, encoding);
+                if (variant != null) {
+                    compressor.variantHits.increment();
+                } else if (!compressor.isBusy()) {
+                    return sendCompressedFromCache(request, cached, encoding, keepAlive);
                 }
+            }
+            record.bytesOut += cache.serve(variant != null ? variant : cached, clientSocket.getChannel(), keepAlive);
+            return keepAlive;
+        } catch (IOException e) {
+            System.out.println("Error sending cached file to client: " + e.getMessage());
+            return false;
+        } finally {
+            if (variant != null) {
+                cache.release(variant);
+            }
+        }
+    }
 
-                int total = 0;
-                StringBuilder requestData = new StringBuilder();
-                String line = "HTTP/1.0 200 OK\n" +
-                        "Proxy-agent: ProxyBridge/1.0\n" +
-                        "\r\n";
-                proxyToClientBw.write(line);
-                total += line.length();
-                requestData.append(line);
+    /**
+     * Compresses a cached response on its way to the client and stores the result as a variant of the entry
+     *
+     * @return whether the connection stays open for another request
+     */
+    private boolean sendCompressedFromCache(RequestLine request, ResponseCache.CacheEntry cached, String encoding,
+                                            boolean keepAlive) throws IOException {
+        ResponseCompressor compressor = ResponseCompressor.getShared();
+        // Mapped before anything is sent, the entry's file stays until serveRequest() releases it
+        ByteBuffer body = ResponseCache.getShared().body(cached);
+        boolean chunked = request.isHttp11();
+        if (!chunked) {
+            keepAlive = false;
+        }
+        List<String[]> headers = compressor.encodedHeaders(cached.headers, encoding);
+        ResponseCache.Writer variant = ResponseCache.getShared().storeVariant(cached.version, cached.url, encoding,
+                headers);
+        headers = new ArrayList<>(headers);
+        headers.add(new String[]{"X-Cache", "HIT"});
+        OutputStream clientOut = new BufferedOutputStream(clientSocket.getOutputStream(), RESPONSE_BUFFER_SIZE);
+        byte[] head = responseHead(200, "OK", headers, chunked, keepAlive);
+        clientOut.write(head);
+        record.bytesOut = head.length;
+        ChunkedOutputStream chunkedOut = chunked ? new ChunkedOutputStream(clientOut) : null;
+        ResponseCompressor.Encoder encoder = compressor.start(encoding, chunked ? chunkedOut : clientOut, variant);
+        try {
+            byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+            while (body.hasRemaining()) {
+                int length = Math.min(buffer.length, body.remaining());
+                body.get(buffer, 0, length);
+                encoder.write(buffer, 0, length);
+            }
+            encoder.finish();
+            record.bytesOut += encoder.getBytesWritten();
+        } finally {
+            encoder.close();
+        }
+        if (chunked) {
+            chunkedOut.finish();
+        }
+        clientOut.flush();
+        return keepAlive;
+    }
 
-                // Read from input stream between proxy and remote server
+    /**
+     * Sends the contents of the file specified by the request to the client.
+     * The upstream response is streamed through byte for byte with a single
+     * fixed-size buffer, whatever its size or content type, and stored in the
+     * cache on the way through when it may be cached. The upstream connection
+     * goes back to its pool once the whole response has been relayed.
+     * Concurrent identical GETs share one fetch through the RequestCoalescer.
+     *
+     * @param request   request from the client, forwarded with its headers and body
+     * @param stale     expired cache entry to revalidate, or null
+     * @param keepAlive whether the client wants the connection kept open
+     * @return whether the connection stays open for another request
+     */
+    private boolean sendNonCachedToClient(RequestLine request, ResponseCache.CacheEntry stale, boolean keepAlive) {
+        String urlString = request.urlString;
+        ResponseCache cache = ResponseCache.getShared();
+        boolean revalidate = stale != null && stale.canRevalidate();
+        String method = request.method;
+        UpstreamResponse response = null;
+        InputStream body = null;
+        ResponseCache.Writer cacheWriter = null;
+        ResponseCompressor.Encoder encoder = null;
+        // A revalidation is answered for this request's stale entry alone
+        String key = revalidate ? null : RequestCoalescer.getShared().key(request, parser);
+        RequestCoalescer.Subscription subscription = key != null ? RequestCoalescer.getShared().subscribe(key) : null;
+        try {
+            if (subscription != null && !subscription.isLeader()) {
+                UpstreamResponse shared;
                 try {
-                    while ((line = proxyToServerBR.readLine()) != null) {
-                        proxyToClientBw.write(line);
-                        total += line.length();
-                        requestData.append(line);
-                    }
+                    shared = subscription.awaitResponse();
                 } catch (IOException e) {
-                    proxyToServerBR.close();
-                    proxyToClientBw.close();
-                    proxyToServerCon.disconnect();
+                    return sendBadGateway(urlString);
+                }
+                if (shared != null) {
+                    return sendSharedToClient(request, subscription, shared, keepAlive, -1);
                 }
+                // The response could not be shared, fetch it alone
+                subscription.leave();
+                subscription = null;
+            }
 
-                proxyToClientBw.flush();
+            URL remoteURL = new URL(urlString);
+            List<String[]> requestHeaders = new ArrayList<>();
+            if (parser.getHeader("User-Agent") == null) {
+                requestHeaders.add(new String[]{"User-Agent", getRandomUserAgent()});
+            }
+            if (revalidate) {
+                cache.addConditionalHeaders(stale, requestHeaders);
+            }
 
-                System.out.println("Total Recv: " + total);
-                System.out.println("Data Received:");
-                System.out.println(requestData);
+            if (method.equals("GET") && cache.isEnabled()) {
+                record.cache = "MISS";
+            }
 
-                if (proxyToServerBR != null) {
-                    proxyToServerBR.close();
+            UpstreamRegistry upstreams = UpstreamRegistry.getShared();
+            RequestHedger hedger = RequestHedger.getShared();
+            boolean hedged = hedger.canHedge(method, parser);
+            List<Upstream> tried = new ArrayList<>();
+            Upstream served = null;
+            for (int proxyLevel = 0; proxyLevel < upstreams.size(); proxyLevel++) {
+                Upstream upstream = upstreams.select(tried);
+                if (upstream == null) {
+                    break;
+                }
+                tried.add(upstream);
+                record.upstream = upstream.toString();
+                record.failover = proxyLevel;
+                long started = System.nanoTime();
+                if (hedged) {
+                    // The hedger tells the upstreams it used how they did
+                    RequestHedger.Attempt answered = hedger.execute(upstream, tried, executor, method, remoteURL,
+                            requestHeaders, parser);
+                    record.upstreamNanos = System.nanoTime() - started;
+                    if (answered != null) {
+                        served = answered.getUpstream();
+                        record.upstream = served.toString();
+                        response = answered.getResponse();
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    response = UpstreamHttpClient.execute(upstream, method, remoteURL, requestHeaders,
+                            parser, clientIn);
+                } catch (IOException e) {
+                    System.out.println("Request via " + upstream + " failed: " + e.getMessage());
+                }
+                // Connection failures and gateway errors are blamed on the upstream proxy
+                boolean upstreamOk = RequestHedger.isUpstreamOk(response);
+                record.upstreamNanos = System.nanoTime() - started;
+                upstream.finished(tried, upstreamOk, record.upstreamNanos);
+                if (upstreamOk) {
+                    served = upstream;
+                    break;
+                }
+                if (response != null) {
+                    response.close();
+                    response = null;
+                }
+                if (parser.isBodyStarted()) {
+                    // The body cannot be read from the client a second time
+                    break;
                 }
             }
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+            if (response == null) {
+                if (subscription != null) {
+                    subscription.fail();
+                }
+                return sendBadGateway(urlString);
+            }
+
+            if (revalidate && response.status == 304) {
+                record.cache = "REVALIDATED";
+                cache.revalidated(stale, response);
+                response.close();
+                response = null;
+                return sendCachedToClient(request, stale, keepAlive);
+            }
+            if (method.equals("GET") && response.status == 200 && !RequestCoalescer.isPersonal(parser)) {
+                cacheWriter = cache.store(urlString, response);
+            }
+            // A body that breaks off is continued from another upstream where possible
+            body = method.equals("GET") && !parser.hasBody()
+                    ? ResumableBody.of(response, served, tried, remoteURL, requestHeaders, parser)
+                    : response.getBody();
+            long cacheVersion = cacheWriter != null ? cacheWriter.getVersion() : -1;
+            if (subscription != null) {
+                if (RequestCoalescer.isShareable(response)) {
+                    // The flight now owns the response, its body and the cache writer
+                    UpstreamResponse shared = response;
+                    subscription.publish(shared, body, cacheWriter, record.upstream);
+                    response = null;
+                    body = null;
+                    cacheWriter = null;
+                    return sendSharedToClient(request, subscription, shared, keepAlive, cacheVersion);
+                }
+                subscription.abandon();
+            }
+
+            String encoding = encodingFor(response);
+            boolean chunked = sendsChunked(request, response, encoding);
+            if (response.hasBody() && (response.isCloseDelimited() || encoding != null) && !chunked) {
+                keepAlive = false;
+            }
+            record.status = response.status;
+            OutputStream clientOut = new BufferedOutputStream(clientSocket.getOutputStream(), RESPONSE_BUFFER_SIZE);
+            byte[] head = responseHead(response, encoding, chunked, keepAlive);
+            clientOut.write(head);
+            firstByteSent();
+            record.bytesOut = head.length;
+
+            if (response.hasBody()) {
+                if (DEBUG_BODIES) {
+                    System.out.println("Data Received from " + urlString + ":");
+                }
+                ChunkedOutputStream chunkedOut = chunked ? new ChunkedOutputStream(clientOut) : null;
+                OutputStream bodyOut = chunked ? chunkedOut : clientOut;
+                if (encoding != null) {
+                    encoder = startEncoding(urlString, response, encoding, bodyOut, cacheVersion);
+                    bodyOut = encoder;
+                }
+                byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer)) >= 0) {
+                    bodyOut.write(buffer, 0, read);
+                    if (cacheWriter != null) {
+                        cacheWriter.write(buffer, 0, read);
+                    }
+                    if (DEBUG_BODIES) {
+                        System.out.print(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+                    }
+                    if (encoder == null) {
+                        record.bytesOut += read;
+                    }
+                }
+                if (encoder != null) {
+                    encoder.finish();
+                    record.bytesOut += encoder.getBytesWritten();
+                }
+                if (chunked) {
+                    chunkedOut.finish();
+                }
             }
+            if (cacheWriter != null) {
+                cacheWriter.commit();
+                cacheWriter = null;
+            }
+            // The whole response has been read, the upstream connection can serve someone else
+            if (body != null) {
+                body.close();
+                body = null;
+            }
+            response.close();
+            response = null;
+            clientOut.flush();
+            return keepAlive;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
+        } finally {
+            if (cacheWriter != null) {
+                // Only complete responses are cached
+                cacheWriter.abort();
+            }
+            if (encoder != null) {
+                encoder.close();
+            }
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (response != null) {
+                response.close();
+            }
+            if (subscription != null) {
+                subscription.leave();
+            }
         }
     }
 
-    public Proxy[] getProxyList() {
-        Proxy[] proxies = new Proxy[4];
-        proxies[0] = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy-main-entry", 8085));
-        proxies[1] = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy-main-entry", 8086));
-        proxies[2] = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy-main-entry", 8087));
-        proxies[3] = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy-main-entry", 8089));
+    /**
+     * Sends the client a response fetched for a flight of identical requests,
+     * reading the body at the client's own pace
+     *
+     * @param request      request from the client
+     * @param subscription the request's place in the flight
+     * @param response     the flight's upstream response, whose body is read through the subscription
+     * @param keepAlive    whether the client wants the connection kept open
+     * @param cacheVersion version the response is being cached as, so a compressed copy can be
+     *                     stored with it, or -1
+     * @return whether the connection stays open for another request
+     */
+    private boolean sendSharedToClient(RequestLine request, RequestCoalescer.Subscription subscription,
+                                       UpstreamResponse response, boolean keepAlive, long cacheVersion) {
+        if (!subscription.isLeader()) {
+            record.cache = "SHARED";
+            record.upstream = subscription.getUpstream();
+        }
+        // Every subscriber sent the same Accept-Encoding, but each compresses its own copy
+        String encoding = encodingFor(response);
+        boolean chunked = sendsChunked(request, response, encoding);
+        if (response.hasBody() && (response.isCloseDelimited() || encoding != null) && !chunked) {
+            keepAlive = false;
+        }
+        record.status = response.status;
+        // Falling too far behind the others, this client fetches the rest of the body alone
+        subscription.continueWith(position -> {
+            List<String[]> headers = new ArrayList<>();
+            if (parser.getHeader("User-Agent") == null) {
+                headers.add(new String[]{"User-Agent", getRandomUserAgent()});
+            }
+            return ResumableBody.continueFrom(response, position, new URL(request.urlString), headers, parser);
+        });
+        ResponseCompressor.Encoder encoder = null;
+        try {
+            OutputStream clientOut = new BufferedOutputStream(clientSocket.getOutputStream(), RESPONSE_BUFFER_SIZE);
+            byte[] head = responseHead(response, encoding, chunked, keepAlive);
+            clientOut.write(head);
+            firstByteSent();
+            record.bytesOut = head.length;
+            if (response.hasBody()) {
+                ChunkedOutputStream chunkedOut = chunked ? new ChunkedOutputStream(clientOut) : null;
+                OutputStream bodyOut = chunked ? chunkedOut : clientOut;
+                if (encoding != null) {
+                    encoder = startEncoding(request.urlString, response, encoding, bodyOut, cacheVersion);
+                    bodyOut = encoder;
+                }
+                int read;
+                while ((read = subscription.next()) >= 0) {
+                    bodyOut.write(subscription.data, subscription.offset, read);
+                    if (encoder == null) {
+                        record.bytesOut += read;
+                    }
+                }
+                if (encoder != null) {
+                    encoder.finish();
+                    record.bytesOut += encoder.getBytesWritten();
+                }
+                if (chunked) {
+                    chunkedOut.finish();
+                }
+            }
+            clientOut.flush();
+            return keepAlive;
+        } catch (IOException e) {
+            System.out.println("Error sending shared response for " + request.urlString + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (encoder != null) {
+                encoder.close();
+            }
+            subscription.leave();
+        }
+    }
 
-        return proxies;
+    /**
+     * A body without a length ends when the connection does, HTTP/1.1 clients get it
+     * chunked instead, as they do a compressed body whose length is not known up front
+     *
+     * @param encoding encoding the body is compressed with, or null
+     * @return whether the response body is sent to the client with chunked encoding
+     */
+    private static boolean sendsChunked(RequestLine request, UpstreamResponse response, String encoding) {
+        return response.hasBody() && (response.isChunked()
+                || ((response.isCloseDelimited() || encoding != null) && request.isHttp11()));
+    }
+
+    /**
+     * @return the encoding to compress an upstream response's body with, or null to relay it as it is
+     */
+    private String encodingFor(UpstreamResponse response) {
+        if (!response.hasBody()) {
+            return null;
+        }
+        ResponseCompressor compressor = ResponseCompressor.getShared();
+        String encoding = compressor.encodingFor(parser, response.status, response.headers,
+                response.getContentLength());
+        return encoding != null && !compressor.isBusy() ? encoding : null;
+    }
+
+    /**
+     * Starts compressing an upstream response's body, storing the compressed copy
+     * alongside the response when the response is being cached
+     *
+     * @param cacheVersion version the response is being cached as, or -1 if it is not
+     */
+    private ResponseCompressor.Encoder startEncoding(String urlString, UpstreamResponse response, String encoding,
+                                                     OutputStream out, long cacheVersion) {
+        ResponseCompressor compressor = ResponseCompressor.getShared();
+        ResponseCache.Writer variant = cacheVersion >= 0 ? ResponseCache.getShared().storeVariant(cacheVersion,
+                urlString, encoding, compressor.encodedHeaders(response.headers, encoding)) : null;
+        return compressor.start(encoding, out, variant);
+    }
+
+    /**
+     * Tells the client no upstream could answer, after which the connection is closed
+     *
+     * @return false, the connection does not stay open
+     */
+    private boolean sendBadGateway(String urlString) throws IOException {
+        System.out.println("No more proxies left to try for " + urlString);
+        record.status = 502;
+        firstByteSent();
+        proxyToClientBw.write("HTTP/1.0 502 Bad Gateway\r\n" +
+                "Proxy-agent: ProxyBridge/1.0\r\n" +
+                "\r\n");
+        proxyToClientBw.close();
+        return false;
+    }
+
+    private void firstByteSent() {
+        Metrics.getShared().firstByte.recordNanos(System.nanoTime() - requestStartNanos);
+        releaseAdmission(record.status == 502 || record.status == 504);
+    }
+
+    /**
+     * Gives back the admission permit of the request being served, once its
+     * first response byte is on its way or it ends without one
+     *
+     * @param failed whether the upstream failed or timed out
+     */
+    private void releaseAdmission(boolean failed) {
+        if (admittedAt >= 0) {
+            AdmissionController.getShared().release(System.nanoTime() - admittedAt, failed);
+            admittedAt = -1;
+        }
+    }
+
+    /**
+     * Builds the status line and headers sent to the client for an upstream response.
+     * Upstream headers are passed on apart from those describing the upstream connection.
+     *
+     * @param response  upstream response
+     * @param encoding  encoding the body is compressed with, or null
+     * @param chunked   whether the body will be sent with chunked encoding
+     * @param keepAlive whether the client connection stays open after this response
+     * @return the head, ready to be written
+     */
+    private static byte[] responseHead(UpstreamResponse response, String encoding, boolean chunked,
+                                       boolean keepAlive) {
+        List<String[]> headers = encoding != null
+                ? ResponseCompressor.getShared().encodedHeaders(response.headers, encoding) : response.headers;
+        return responseHead(response.status, response.reason, headers, chunked, keepAlive);
+    }
+
+    private static byte[] responseHead(int status, String reason, List<String[]> headers, boolean chunked,
+                                       boolean keepAlive) {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (String[] header : headers) {
+            if (isHopByHopHeader(header[0])) {
+                continue;
+            }
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("Proxy-agent: ProxyBridge/1.0\r\n");
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return whether the header only applies to a single connection and must not be forwarded
+     */
+    static boolean isHopByHopHeader(String name) {
+        return name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive")
+                || name.equalsIgnoreCase("Proxy-Connection") || name.equalsIgnoreCase("Proxy-Authenticate")
+                || name.equalsIgnoreCase("Proxy-Authorization") || name.equalsIgnoreCase("TE")
+                || name.equalsIgnoreCase("Trailer") || name.equalsIgnoreCase("Transfer-Encoding")
+                || name.equalsIgnoreCase("Upgrade");
+    }
+
+    /**
+     * @return the first value of the named header, or null if absent
+     */
+    static String header(List<String[]> headers, String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether any header with the name lists the token, compared case-insensitively
+     */
+    static boolean hasToken(List<String[]> headers, String name, String token) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                for (String value : header[1].split(",")) {
+                    if (value.trim().equalsIgnoreCase(token)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
     public String getRandomUserAgent() {
@@ -267,39 +865,57 @@ public class RequestHandler implements Runnable {
     }
 
     /**
-     * Handles HTTPS requests between client and remote server
+     * Handles HTTPS requests between client and remote server by opening a tunnel
+     * through the upstream proxy and relaying it with TunnelRelay
      *
-     * @param urlString desired file to be transmitted over https
-     */
-    private void handleHTTPSRequest(String urlString) {
-        long count = urlString.chars().filter(ch -> ch == ':').count();
-        String[] pieces;
-        String url;
-        if (count == 1) {
-            pieces = urlString.split(":");
-            url = pieces[0];
-        } else {
-            url = urlString.substring(7);
-            pieces = url.split(":");
-            url = pieces[0];
-        }
-        int port = Integer.parseInt(pieces[1]);
+     * @param request CONNECT request naming the host and port to tunnel to
+     */
+    private void handleHTTPSRequest(RequestLine request) {
+        String urlString = request.urlString;
+        String url = request.host;
+        int port = request.port;
 
         try {
-            int proxyLevel = 0;
-            Proxy[] proxies = getProxyList();
-            System.out.println("Using proxy: " + proxies[proxyLevel].toString());
-            InetAddress address = InetAddress.getByName(url);
-            System.out.println("Connecting to "+address.toString());
-            Socket proxyToServerSocket = new Socket(proxies[0]);
-            SocketAddress socketAddress = new InetSocketAddress(address, port);
-            try {
-                proxyToServerSocket.connect(socketAddress);
-            } catch (IOException e) {
-                e.printStackTrace();
+            // The upstream proxy is sent an address it can connect to straight away, unless told to resolve it itself
+            String target = url;
+            DnsCache dns = DnsCache.getShared();
+            if (dns.isResolvingLocally()) {
+                target = dns.resolve(url).getHostAddress();
             }
 
-            proxyToServerSocket.setSoTimeout(5000);
+            UpstreamRegistry upstreams = UpstreamRegistry.getShared();
+            List<Upstream> tried = new ArrayList<>();
+            UpstreamConnector.Tunnel tunnel = null;
+            for (int proxyLevel = 0; tunnel == null && proxyLevel < upstreams.size(); proxyLevel++) {
+                Upstream upstream = upstreams.select(tried);
+                if (upstream == null) {
+                    break;
+                }
+                tried.add(upstream);
+                record.upstream = upstream.toString();
+                record.failover = proxyLevel;
+                long started = System.nanoTime();
+                try {
+                    tunnel = UpstreamConnector.connect(upstream.getProxy(), target, port);
+                    record.upstreamNanos = System.nanoTime() - started;
+                    upstream.finished(tried, true, record.upstreamNanos);
+                } catch (IOException e) {
+                    upstream.finished(tried, false, System.nanoTime() - started);
+                    System.out.println("Could not open tunnel to " + urlString + " via " + upstream + ": "
+                            + e.getMessage());
+                }
+            }
+            if (tunnel == null) {
+                System.out.println("No more proxies left to try for " + urlString);
+                record.status = 502;
+                firstByteSent();
+                AccessLog.getShared().log(record);
+                proxyToClientBw.write("HTTP/1.0 502 Bad Gateway\r\n" +
+                        "Proxy-Agent: ProxyBridge/1.0\r\n" +
+                        "\r\n");
+                proxyToClientBw.close();
+                return;
+            }
 
             String line = "HTTP/1.0 200 Connection established\r\n" +
                     "Proxy-Agent: ProxyBridge/1.0\r\n" +
@@ -307,49 +923,44 @@ public class RequestHandler implements Runnable {
 
             proxyToClientBw.write(line);
             proxyToClientBw.flush();
-            BufferedWriter proxyToServerBW = new BufferedWriter(new OutputStreamWriter(proxyToServerSocket.getOutputStream()));
-            BufferedReader proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerSocket.getInputStream()));
-            ClientToServerHttpsTransmit clientToServerHttps =
-                    new ClientToServerHttpsTransmit(clientSocket.getInputStream(), proxyToServerSocket.getOutputStream());
-
-            System.out.println("Starting new thread to handle client server communication.");
-            Thread httpsClientToServer = new Thread(clientToServerHttps);
-            httpsClientToServer.start();
-
-            try {
-                byte[] buffer = new byte[4096];
-                int read;
-                int total = 0;
-                do {
-                    read = proxyToServerSocket.getInputStream().read(buffer);
-                    if (read > 0) {
-                        total += read;
-                        clientSocket.getOutputStream().write(buffer, 0, read);
-                        if (proxyToServerSocket.getInputStream().available() < 1) {
-                            clientSocket.getOutputStream().flush();
-                        }
-                    }
-                } while (read >= 0);
-                System.out.println("Total Recv: " + total);
-            } catch (SocketTimeoutException ignored) {
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            if (proxyToServerSocket != null) {
-                proxyToServerSocket.close();
-            }
-            if (proxyToServerBR != null) {
-                proxyToServerBR.close();
+            firstByteSent();
+
+            record.status = 200;
+            if (parser.getBufferedCount() > 0) {
+                // The client did not wait for our reply before starting the tunnel
+                ByteBuffer early = parser.takeBuffered();
+                record.bytesIn += early.remaining();
+                while (early.hasRemaining()) {
+                    tunnel.channel.write(early);
+                }
             }
-            if (proxyToServerBW != null) {
-                proxyToServerBW.close();
+            tunnelled = true;
+            TunnelRelay relay = new TunnelRelay(clientSocket.getChannel(), tunnel.channel, record);
+            try {
+                relay.run(executor, tunnel.pending);
+            } catch (RejectedExecutionException e) {
+                System.out.println("No thread available to relay HTTPS for " + urlString);
+                record.status = 503;
+                AccessLog.getShared().log(record);
+                tunnel.channel.close();
+                // The relay never started, so the socket is closed here after all
+                tunnelled = false;
             }
-            if (proxyToClientBw != null) {
-                proxyToClientBw.close();
+        } catch (UnknownHostException e) {
+            System.out.println("Could not resolve " + url + ": " + e.getMessage());
+            record.status = 502;
+            firstByteSent();
+            AccessLog.getShared().log(record);
+            try {
+                proxyToClientBw.write("HTTP/1.0 502 Bad Gateway\r\n" +
+                        "Proxy-Agent: ProxyBridge/1.0\r\n" +
+                        "\r\n");
+                proxyToClientBw.flush();
+            } catch (IOException ignored) {
             }
         } catch (SocketTimeoutException e) {
+            record.status = 504;
+            AccessLog.getShared().log(record);
             String line = "HTTP/1.0 504 Timeout Occurred after 10s\n" +
                     "User-Agent: ProxyBridge/1.0\n" +
                     "\r\n";
@@ -362,59 +973,9 @@ public class RequestHandler implements Runnable {
         } catch (Exception e) {
             System.out.println("Error on HTTPS : " + urlString);
             e.printStackTrace();
-        }
-    }
-
-    /**
-     * Listen to data from client and transmits it to server.
-     * This is done on a separate thread as must be done
-     * asynchronously to reading data from server and transmitting
-     * that data to the client.
-     */
-    static class ClientToServerHttpsTransmit implements Runnable {
-        InputStream proxyToClientIS;
-        OutputStream proxyToServerOS;
-
-        /**
-         * Creates Object to Listen to Client and Transmit that data to the server
-         *
-         * @param proxyToClientIS Stream that proxy uses to receive data from client
-         * @param proxyToServerOS Stream that proxy uses to transmit data to remote server
-         */
-        public ClientToServerHttpsTransmit(InputStream proxyToClientIS, OutputStream proxyToServerOS) {
-            this.proxyToClientIS = proxyToClientIS;
-            this.proxyToServerOS = proxyToServerOS;
-        }
-
-        @Override
-        public void run() {
-            try {
-                byte[] buffer = new byte[4096];
-                int read;
-                int total = 0;
-                do {
-                    read = proxyToClientIS.read(buffer);
-                    System.out.println(buffer);
-                    if (read > 0) {
-                        total += read;
-                        proxyToServerOS.write(buffer, 0, read);
-                        if (proxyToClientIS.available() < 1) {
-                            proxyToServerOS.flush();
-                        }
-                    }
-                } while (read >= 0);
-                System.out.println("Total Sent: " + total);
-            } catch (SocketException se) {
-                System.out.println("Socket sad");
-//                se.printStackTrace();
-            } catch (IOException e) {
-                System.out.println("Proxy to client HTTPS read timed out");
-//                e.printStackTrace();
+            if (!tunnelled) {
+                AccessLog.getShared().log(record);
             }
         }
     }
 }
-
-
-
-
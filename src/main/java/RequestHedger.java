@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends a second copy of a slow GET to another upstream and takes whichever
+ * response head arrives first, the other request being cancelled.
+ * With proxy.hedge.enabled, a GET or HEAD without a body whose upstream has
+ * not answered within the hedge delay is also sent to the best untried
+ * upstream. The delay is proxy.hedge.delayMillis, or when that is 0 the
+ * proxy.hedge.quantile percentile of the upstream response times seen over the
+ * last proxy.hedge.windowMillis, so only the slowest few percent get hedged.
+ * Hedges are paid for out of a budget: each eligible request adds
+ * proxy.hedge.budgetPercent hundredths of a hedge to it, so hedging adds at
+ * most that share of extra upstream requests even when every upstream is slow.
+ * The first request runs on the caller's thread, a hedge on the handler executor.
+ */
+public final class RequestHedger {
+
+    private static final RequestHedger shared = new RequestHedger();
+
+    /**
+     * Hedges saved up at most, so a quiet spell does not allow a burst of them later
+     */
+    private static final int MAX_SAVED_HEDGES = 10;
+
+    /**
+     * Response times a window needs before its percentile replaces the delay
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.hedge.enabled", false);
+    private final long fixedDelayNanos = TimeUnit.MILLISECONDS.toNanos(ProxyConfig.getLong("proxy.hedge.delayMillis", 0));
+    private final double quantile = ProxyConfig.getInt("proxy.hedge.quantile", 95) / 100.0;
+    private final long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(ProxyConfig.getLong("proxy.hedge.minDelayMillis", 10));
+    private final long windowNanos = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(100, ProxyConfig.getLong("proxy.hedge.windowMillis", 10000)));
+    private final int budgetPercent = ProxyConfig.getInt("proxy.hedge.budgetPercent", 10);
+
+    /**
+     * Starts hedges once their delay has passed, the requests themselves never run on it
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Delay used until the first window has enough samples, then the last window's percentile
+     */
+    private volatile long adaptiveDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+            ProxyConfig.getLong("proxy.hedge.initialDelayMillis", 1000));
+    private volatile LatencyHistogram window = new LatencyHistogram();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    /**
+     * Hedges that may be sent, in hundredths of a hedge
+     */
+    private final AtomicLong budget = new AtomicLong();
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder hedged = new LongAdder();
+    final LongAdder won = new LongAdder();
+    final LongAdder overBudget = new LongAdder();
+
+    private RequestHedger() {
+        timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_hedge_requests_total", "Upstream requests that could have been hedged", requests::sum);
+        metrics.counter("proxy_hedge_sent_total", "Hedged requests sent to a second upstream", hedged::sum);
+        metrics.counter("proxy_hedge_won_total", "Hedged requests answered before the first request",
+                won::sum);
+        metrics.counter("proxy_hedge_over_budget_total", "Hedges not sent because the budget was spent",
+                overBudget::sum);
+        metrics.gauge("proxy_hedge_delay_seconds", "Time a request waits before being hedged",
+                () -> getDelayNanos() / 1e9);
+    }
+
+    public static RequestHedger getShared() {
+        return shared;
+    }
+
+    /**
+     * @return whether a request may be sent to two upstreams at once
+     */
+    public boolean canHedge(String method, HttpRequestParser client) {
+        return enabled && (method.equals("GET") || method.equals("HEAD")) && !client.hasBody()
+                && UpstreamRegistry.getShared().size() > 1;
+    }
+
+    /**
+     * @return how long a request waits for its upstream before being hedged
+     */
+    public long getDelayNanos() {
+        return fixedDelayNanos > 0 ? fixedDelayNanos : adaptiveDelayNanos;
+    }
+
+    /**
+     * @return whether a response shows the upstream doing its job, gateway errors are blamed on the upstream
+     */
+    static boolean isUpstreamOk(UpstreamResponse response) {
+        return response != null && response.status < 500 && response.status != 407;
+    }
+
+    /**
+     * Sends a request through an upstream, hedging it with another if it is slow.
+     * Every upstream used is told how it did, the one answering included.
+     *
+     * @param first    upstream chosen for the request, already started
+     * @param tried    upstreams used for the request, the hedge's upstream is added
+     * @param executor executor to run the hedge on
+     * @param method   GET or HEAD
+     * @param url      absolute URL of the resource
+     * @param headers  headers the proxy adds
+     * @param client   parsed client request, whose headers are forwarded
+     * @return the first good answer, or null if no upstream gave one
+     */
+    public Attempt execute(Upstream first, List<Upstream> tried, HandlerExecutor executor, String method, URL url,
+                           List<String[]> headers, HttpRequestParser client) {
+        requests.increment();
+        budget.accumulateAndGet(budgetPercent, (saved, added) -> Math.min(MAX_SAVED_HEDGES * 100L, saved + added));
+        Hedge hedge = new Hedge(tried, executor, method, url, headers, client);
+        Attempt primary = hedge.start(first);
+        ScheduledFuture<?> pending = null;
+        try {
+            pending = timer.schedule(hedge::launch, getDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Not hedged
+        }
+        hedge.run(primary);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        return hedge.await();
+    }
+
+    /**
+     * @return whether a whole hedge was left in the budget, which is then spent
+     */
+    private boolean takeFromBudget() {
+        while (true) {
+            long saved = budget.get();
+            if (saved < 100) {
+                return false;
+            }
+            if (budget.compareAndSet(saved, saved - 100)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds an upstream response time to the window, moving to a new window when it is over
+     */
+    private void record(long latencyNanos) {
+        LatencyHistogram current = window;
+        current.recordNanos(latencyNanos);
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+            window = new LatencyHistogram();
+            if (current.getCount() >= MIN_SAMPLES) {
+                adaptiveDelayNanos = Math.max(minDelayNanos,
+                        TimeUnit.MICROSECONDS.toNanos(current.getQuantileMicros(quantile)));
+            }
+        }
+    }
+
+    /**
+     * One request sent to one upstream
+     */
+    public static final class Attempt {
+        final Upstream upstream;
+        final UpstreamHttpClient.Call call = new UpstreamHttpClient.Call();
+        final long started = System.nanoTime();
+        UpstreamResponse response;
+
+        Attempt(Upstream upstream) {
+            this.upstream = upstream;
+        }
+
+        public Upstream getUpstream() {
+            return upstream;
+        }
+
+        public UpstreamResponse getResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * The attempts at one request, the first good answer winning
+     */
+    private final class Hedge {
+        private final List<Upstream> tried;
+        private final HandlerExecutor executor;
+        private final String method;
+        private final URL url;
+        private final List<String[]> headers;
+        private final HttpRequestParser client;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition finished = lock.newCondition();
+        private final List<Attempt> attempts = new ArrayList<>(2);
+        private Attempt primary;
+        private Attempt winner;
+        private int running;
+
+        /**
+         * Set once the caller has its answer, after which no hedge is started
+         */
+        private boolean over;
+
+        Hedge(List<Upstream> tried, HandlerExecutor executor, String method, URL url, List<String[]> headers,
+              HttpRequestParser client) {
+            this.tried = tried;
+            this.executor = executor;
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.client = client;
+        }
+
+        Attempt start(Upstream upstream) {
+            Attempt attempt = new Attempt(upstream);
+            if (primary == null) {
+                primary = attempt;
+            }
+            attempts.add(attempt);
+            running++;
+            return attempt;
+        }
+
+        /**
+         * Sends the hedge if the first request is still waiting, run by the timer
+         */
+        void launch() {
+            Attempt hedge;
+            lock.lock();
+            try {
+                if (over || winner != null || running == 0) {
+                    return;
+                }
+                if (!takeFromBudget()) {
+                    overBudget.increment();
+                    return;
+                }
+                Upstream upstream = UpstreamRegistry.getShared().select(tried);
+                if (upstream == null) {
+                    budget.addAndGet(100);
+                    return;
+                }
+                tried.add(upstream);
+                hedge = start(upstream);
+            } finally {
+                lock.unlock();
+            }
+            try {
+                executor.execute(() -> run(hedge));
+                hedged.increment();
+            } catch (RejectedExecutionException e) {
+                // No thread to run it on, the hedge was never sent
+                lock.lock();
+                try {
+                    running--;
+                    finished.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                hedge.upstream.cancelled(tried, 0);
+                budget.addAndGet(100);
+            }
+        }
+
+        void run(Attempt attempt) {
+            UpstreamResponse response = null;
+            try {
+                response = UpstreamHttpClient.execute(attempt.upstream, method, url, headers, client, null,
+                        attempt.call);
+            } catch (IOException e) {
+                if (!attempt.call.isCancelled()) {
+                    System.out.println("Request via " + attempt.upstream + " failed: " + e.getMessage());
+                }
+            }
+            done(attempt, response, System.nanoTime() - attempt.started);
+        }
+
+        /**
+         * Settles an attempt: the first good answer wins and cancels the others,
+         * answers arriving after it are dropped
+         */
+        private void done(Attempt attempt, UpstreamResponse response, long latencyNanos) {
+            boolean ok = isUpstreamOk(response);
+            List<Attempt> losers = null;
+            boolean lost;
+            lock.lock();
+            try {
+                running--;
+                lost = winner != null;
+                if (!lost && ok) {
+                    winner = attempt;
+                    attempt.response = response;
+                    losers = new ArrayList<>(attempts);
+                    losers.remove(attempt);
+                }
+                finished.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (lost || !ok) {
+                if (response != null) {
+                    response.close();
+                }
+                if (lost && (ok || attempt.call.isCancelled())) {
+                    attempt.upstream.cancelled(tried, latencyNanos);
+                } else {
+                    attempt.upstream.finished(tried, false, latencyNanos);
+                }
+                return;
+            }
+            attempt.upstream.finished(tried, true, latencyNanos);
+            // The request's own wait, hedged or not, is what the delay is chosen from
+            record(System.nanoTime() - primary.started);
+            if (attempt != primary) {
+                won.increment();
+            }
+            for (Attempt loser : losers) {
+                loser.call.cancel();
+            }
+        }
+
+        /**
+         * @return the winning attempt once there is one, or null once every attempt has failed
+         */
+        Attempt await() {
+            lock.lock();
+            try {
+                while (winner == null && running > 0) {
+                    finished.awaitUninterruptibly();
+                }
+                over = true;
+                return winner;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return summary of hedging for the console
+     */
+    public String describe() {
+        if (!enabled) {
+            return "Request hedging disabled\n";
+        }
+        long total = requests.sum();
+        long sent = hedged.sum();
+        return String.format("Hedging after %.1f ms: %d requests, %d hedged (%.1f%%), %d hedges won (%.0f%%), "
+                        + "%d over budget%n", getDelayNanos() / 1e6, total, sent, total == 0 ? 0 : sent * 100.0 / total,
+                won.sum(), sent == 0 ? 0 : won.sum() * 100.0 / sent, overBudget.sum());
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * The first line of a request sent to the proxy, split into its parts.
+ * Shared by the blocking RequestHandler and the non-blocking NioConnection
+ * so both modes interpret requests identically.
+ */
+public class RequestLine {
+
+    /**
+     * Request method, e.g. GET or CONNECT
+     */
+    final String method;
+
+    /**
+     * Requested URL, always starting with http
+     */
+    final String urlString;
+
+    /**
+     * Target host, only set for CONNECT requests
+     */
+    final String host;
+
+    /**
+     * Target port, only set for CONNECT requests
+     */
+    final int port;
+
+    /**
+     * Protocol version, e.g. HTTP/1.1, HTTP/1.0 when the client sent none
+     */
+    final String version;
+
+    private RequestLine(String method, String urlString, String host, int port, String version) {
+        this.method = method;
+        this.urlString = urlString;
+        this.host = host;
+        this.port = port;
+        this.version = version;
+    }
+
+    /**
+     * Parses a request line of the form "METHOD target HTTP/x.y"
+     *
+     * @param requestString line read from the client
+     * @return the parsed line, or null if it is malformed
+     */
+    public static RequestLine parse(String requestString) {
+        if (requestString == null) {
+            return null;
+        }
+        int firstSpace = requestString.indexOf(' ');
+        if (firstSpace <= 0) {
+            return null;
+        }
+        // Get the Request type
+        String method = requestString.substring(0, firstSpace);
+
+        // remove request type and space, then everything past next space
+        String urlString = requestString.substring(firstSpace + 1);
+        String version = "HTTP/1.0";
+        int secondSpace = urlString.indexOf(' ');
+        if (secondSpace >= 0) {
+            version = urlString.substring(secondSpace + 1).trim();
+            urlString = urlString.substring(0, secondSpace);
+        }
+        return of(method, urlString, version);
+    }
+
+    /**
+     * Interprets the parts of a request line that has already been split
+     *
+     * @param method    request method
+     * @param urlString request target as sent by the client
+     * @param version   protocol version
+     * @return the request line, or null if the target is not usable
+     */
+    public static RequestLine of(String method, String urlString, String version) {
+        if (urlString.isEmpty()) {
+            return null;
+        }
+
+        if (!method.equals("CONNECT")) {
+            // Prepend http:// if necessary to create correct URL
+            if (!urlString.startsWith("http")) {
+                urlString = "http://" + urlString;
+            }
+            return new RequestLine(method, urlString, null, -1, version);
+        }
+
+        // CONNECT targets are host:port, strip any scheme a client may have added
+        String authority = urlString;
+        int schemeEnd = authority.indexOf("://");
+        if (schemeEnd >= 0) {
+            authority = authority.substring(schemeEnd + 3);
+        }
+        int colon = authority.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(authority.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String host = authority.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new RequestLine(method, "http://" + authority, host, port, version);
+    }
+
+    public boolean isConnect() {
+        return method.equals("CONNECT");
+    }
+
+    /**
+     * @return whether the client speaks HTTP/1.1, where connections stay open unless closed explicitly
+     */
+    public boolean isHttp11() {
+        return version.equals("HTTP/1.1");
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + urlString;
+    }
+}
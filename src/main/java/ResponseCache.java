@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of GET responses in two tiers.
+ * Every stored response is written to a file in the cache directory and served
+ * from there through a memory-mapped view. Small responses are also kept in an
+ * in-memory hot tier. Both tiers are bounded in bytes and evict the least
+ * recently used entry first; leaving the hot tier only drops the in-memory copy.
+ * Freshness follows Cache-Control, Expires and Last-Modified, and stale entries
+ * carrying an ETag or Last-Modified are revalidated with a conditional request.
+ * An entry may have compressed variants, kept as entries of their own under
+ * the URL and encoding; one is only served for the version of the entry it was
+ * made from, and while that entry is fresh.
+ * Each version has a body file of its own, which is deleted once the entry has
+ * left the cache and the last request serving it has released it.
+ */
+public class ResponseCache {
+
+    /**
+     * Names of the files this cache writes, temporary ones and those from fileNameFor()
+     */
+    private static final Pattern OWN_FILE = Pattern.compile("tmp-\\d+|[A-Za-z0-9._-]*-[0-9a-f]{16}-\\d+\\.body");
+
+    private static final ResponseCache shared = new ResponseCache();
+
+    /**
+     * Heuristic freshness is capped at a day, as recommended by RFC 7234
+     */
+    private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000L;
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.cache.enabled", true);
+    private final Path directory = Paths.get(ProxyConfig.get("proxy.cache.dir", "cache"));
+    private final long memoryMaxBytes = ProxyConfig.getLong("proxy.cache.memoryMaxBytes", 64L * 1024 * 1024);
+    private final long memoryEntryMaxBytes = ProxyConfig.getLong("proxy.cache.memoryEntryMaxBytes", 1024 * 1024);
+    private final long diskMaxBytes = ProxyConfig.getLong("proxy.cache.diskMaxBytes", 1024L * 1024 * 1024);
+    private final long entryMaxBytes = ProxyConfig.getLong("proxy.cache.entryMaxBytes", 64L * 1024 * 1024);
+
+    /**
+     * Guards both tiers, held only for map updates and never during I/O
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Every cached entry in access order, bodies are on disk
+     */
+    private final LinkedHashMap<String, CacheEntry> diskTier = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * Entries whose bodies are also held in memory, in access order
+     */
+    private final LinkedHashMap<String, CacheEntry> memoryTier = new LinkedHashMap<>(256, 0.75f, true);
+
+    private volatile long diskBytes;
+    private volatile long memoryBytes;
+
+    private final AtomicLong tempFileCounter = new AtomicLong();
+
+    final LongAdder memoryHits = new LongAdder();
+    final LongAdder diskHits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder revalidations = new LongAdder();
+    final LongAdder stores = new LongAdder();
+    final LongAdder memoryEvictions = new LongAdder();
+    final LongAdder diskEvictions = new LongAdder();
+
+    private ResponseCache() {
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_cache_hits_total{tier=\"memory\"}", "Fresh cache hits by tier", memoryHits::sum);
+        metrics.counter("proxy_cache_hits_total{tier=\"disk\"}", "Fresh cache hits by tier", diskHits::sum);
+        metrics.counter("proxy_cache_misses_total", "Cache lookups without a fresh entry", misses::sum);
+        metrics.counter("proxy_cache_revalidations_total", "Stale entries confirmed by a 304", revalidations::sum);
+        metrics.counter("proxy_cache_stores_total", "Responses added to the cache", stores::sum);
+        metrics.counter("proxy_cache_evictions_total{tier=\"memory\"}", "Entries evicted by tier",
+                memoryEvictions::sum);
+        metrics.counter("proxy_cache_evictions_total{tier=\"disk\"}", "Entries evicted by tier",
+                diskEvictions::sum);
+        // Read without the lock, a slightly stale value is fine for a gauge
+        metrics.gauge("proxy_cache_bytes{tier=\"memory\"}", "Bytes held by each cache tier", () -> memoryBytes);
+        metrics.gauge("proxy_cache_bytes{tier=\"disk\"}", "Bytes held by each cache tier", () -> diskBytes);
+
+        if (enabled) {
+            try {
+                Files.createDirectories(directory);
+                // Entries are not carried over between runs, clear out files from a previous one
+                // but leave anything else that shares the directory alone
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                        file -> OWN_FILE.matcher(file.getFileName().toString()).matches())) {
+                    for (Path file : files) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not prepare cache directory " + directory);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static ResponseCache getShared() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * A cached response: its headers, validators, freshness and where its body lives
+     */
+    static class CacheEntry {
+        final String url;
+        final Path file;
+        final long size;
+        final List<String[]> headers;
+
+        /**
+         * Tells apart successive responses stored for the same URL
+         */
+        final long version;
+
+        /**
+         * For a compressed variant, the version of the entry it was made from, otherwise -1
+         */
+        final long variantOf;
+        volatile String etag;
+        volatile String lastModified;
+        volatile long expiresAt;
+
+        /**
+         * Body held by the hot tier, null when only on disk
+         */
+        volatile byte[] body;
+
+        /**
+         * One for the cache while the entry is in it, plus one per request using it
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        CacheEntry(String url, Path file, long size, List<String[]> headers, long version, long variantOf) {
+            this.url = url;
+            this.file = file;
+            this.size = size;
+            this.headers = headers;
+            this.version = version;
+            this.variantOf = variantOf;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * @param url requested URL
+     * @return the entry for the URL, fresh or stale, or null on a miss; pass it to release() when done
+     */
+    public CacheEntry lookup(String url) {
+        if (!enabled) {
+            return null;
+        }
+        lock.lock();
+        try {
+            CacheEntry entry = diskTier.get(url);
+            if (entry == null || !entry.isFresh()) {
+                // Stale entries count as misses, successful revalidations are counted separately
+                misses.increment();
+            } else if (memoryTier.get(url) != null) {
+                memoryHits.increment();
+            } else {
+                diskHits.increment();
+            }
+            if (entry != null) {
+                entry.references.incrementAndGet();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param entry    fresh entry being served
+     * @param encoding content coding of the variant
+     * @return the variant of the entry in that encoding, or null if none was stored for this version of it;
+     * pass it to release() when done
+     */
+    public CacheEntry variant(CacheEntry entry, String encoding) {
+        lock.lock();
+        try {
+            CacheEntry variant = diskTier.get(variantKey(entry.url, encoding));
+            if (variant == null || variant.variantOf != entry.version) {
+                return null;
+            }
+            variant.references.incrementAndGet();
+            return variant;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keys variants apart from the entries of URLs, which never contain a space
+     */
+    private static String variantKey(String url, String encoding) {
+        return url + " " + encoding;
+    }
+
+    /**
+     * Adds the validators of a stale entry to a request so the upstream can answer 304
+     */
+    public void addConditionalHeaders(CacheEntry entry, List<String[]> requestHeaders) {
+        if (entry.etag != null) {
+            requestHeaders.add(new String[]{"If-None-Match", entry.etag});
+        }
+        if (entry.lastModified != null) {
+            requestHeaders.add(new String[]{"If-Modified-Since", entry.lastModified});
+        }
+    }
+
+    /**
+     * Marks a stale entry fresh again after the upstream answered 304 Not Modified
+     */
+    public void revalidated(CacheEntry entry, UpstreamResponse response) {
+        revalidations.increment();
+        long lifetime = freshnessLifetime(response);
+        entry.expiresAt = System.currentTimeMillis() + Math.max(0, lifetime);
+        String etag = response.getHeader("ETag");
+        if (etag != null) {
+            entry.etag = etag;
+        }
+    }
+
+    /**
+     * Gives back an entry returned by lookup() or variant(), deleting its body file if the cache dropped it meanwhile
+     */
+    public void release(CacheEntry entry) {
+        if (entry.references.decrementAndGet() == 0) {
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void releaseAll(List<CacheEntry> entries) {
+        for (CacheEntry entry : entries) {
+            release(entry);
+        }
+    }
+
+    /**
+     * Writes the cached response to the client, from memory when the hot tier
+     * holds it and otherwise through a memory-mapped view of the body file
+     *
+     * @param entry     entry to serve, not yet released
+     * @param clientOut channel to the client, in blocking mode
+     * @param keepAlive whether the client connection stays open for another request
+     * @return bytes written to the client
+     * @throws IOException if the client or the body file fails
+     */
+    public long serve(CacheEntry entry, WritableByteChannel clientOut, boolean keepAlive) throws IOException {
+        // The body is opened first so a failure leaves nothing half sent
+        byte[] memory = entry.body;
+        ByteBuffer body = memory != null ? ByteBuffer.wrap(memory) : map(entry);
+        StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        for (String[] header : entry.headers) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        head.append("Content-Length: ").append(entry.size).append("\r\n");
+        head.append("X-Cache: HIT\r\n");
+        head.append("Proxy-agent: ProxyBridge/1.0\r\n");
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        writeFully(clientOut, ByteBuffer.wrap(headBytes));
+        writeFully(clientOut, body);
+        if (memory == null) {
+            promote(entry);
+        }
+        return headBytes.length + entry.size;
+    }
+
+    /**
+     * @param entry entry not yet released, whose file stays in place until then
+     * @return the body of an entry, from memory or mapped from its file
+     * @throws IOException if the body file cannot be read
+     */
+    public ByteBuffer body(CacheEntry entry) throws IOException {
+        byte[] body = entry.body;
+        return body != null ? ByteBuffer.wrap(body) : map(entry);
+    }
+
+    private static ByteBuffer map(CacheEntry entry) throws IOException {
+        try (FileChannel file = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Starts storing a response, if it may be cached
+     *
+     * @param url      requested URL
+     * @param response a 200 response from upstream
+     * @return a writer to feed the body to, or null if the response is not cacheable
+     */
+    public Writer store(String url, UpstreamResponse response) {
+        if (!enabled) {
+            return null;
+        }
+        long lifetime = freshnessLifetime(response);
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (lifetime < 0 || (lifetime == 0 && etag == null && lastModified == null)) {
+            return null;
+        }
+        // Responses setting cookies or marked private are for one client only (RFC 7234 3.2)
+        if (!RequestCoalescer.isShareable(response)) {
+            return null;
+        }
+        // Variants are not tracked, so responses that depend on request headers are not cached
+        if (response.getHeader("Vary") != null) {
+            return null;
+        }
+        long contentLength = response.getContentLength();
+        if (contentLength > entryMaxBytes) {
+            return null;
+        }
+
+        List<String[]> headers = new ArrayList<>();
+        for (String[] header : response.headers) {
+            String name = header[0];
+            if (RequestHandler.isHopByHopHeader(name) || name.equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            headers.add(header);
+        }
+        try {
+            long version = tempFileCounter.incrementAndGet();
+            Writer writer = new Writer(url, headers, directory.resolve("tmp-" + version), version, -1);
+            writer.etag = etag;
+            writer.lastModified = lastModified;
+            writer.lifetime = lifetime;
+            return writer;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts storing a compressed variant of an entry
+     *
+     * @param version  version of the entry the variant is made from, see {@link Writer#getVersion()}
+     * @param url      URL of the entry
+     * @param encoding content coding of the variant
+     * @param headers  headers the variant is sent with, without Content-Length
+     * @return a writer to feed the compressed body to, or null if it cannot be stored
+     */
+    public Writer storeVariant(long version, String url, String encoding, List<String[]> headers) {
+        if (!enabled) {
+            return null;
+        }
+        List<String[]> stored = new ArrayList<>();
+        for (String[] header : headers) {
+            if (!RequestHandler.isHopByHopHeader(header[0])) {
+                stored.add(header);
+            }
+        }
+        try {
+            long id = tempFileCounter.incrementAndGet();
+            Writer writer = new Writer(variantKey(url, encoding), stored, directory.resolve("tmp-" + id), id, version);
+            // Freshness is that of the entry the variant belongs to
+            writer.lifetime = Long.MAX_VALUE / 2;
+            return writer;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Receives a response body as it streams to the client and adds it to the
+     * cache once complete. Gives up quietly if the body grows too large.
+     */
+    class Writer {
+        private final String url;
+        private final List<String[]> headers;
+        private final Path temp;
+        private final long version;
+        private final long variantOf;
+        private final FileChannel channel;
+        private long size;
+        private boolean abandoned;
+        String etag;
+        String lastModified;
+        long lifetime;
+
+        Writer(String url, List<String[]> headers, Path temp, long version, long variantOf) throws IOException {
+            this.url = url;
+            this.headers = headers;
+            this.temp = temp;
+            this.version = version;
+            this.variantOf = variantOf;
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void write(byte[] buffer, int offset, int length) {
+            if (abandoned) {
+                return;
+            }
+            size += length;
+            if (size > entryMaxBytes) {
+                abort();
+                return;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        /**
+         * Adds the fully received response to the cache
+         */
+        public void commit() {
+            if (abandoned) {
+                return;
+            }
+            try {
+                channel.close();
+                Path file = directory.resolve(fileNameFor(url, version));
+                Files.move(temp, file);
+                CacheEntry entry = new CacheEntry(url, file, size, headers, version, variantOf);
+                entry.etag = etag;
+                entry.lastModified = lastModified;
+                entry.expiresAt = System.currentTimeMillis() + lifetime;
+                if (size <= memoryEntryMaxBytes) {
+                    entry.body = Files.readAllBytes(file);
+                }
+                insert(entry);
+                stores.increment();
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        /**
+         * @return version of the entry once committed, so variants can be stored for it before then
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public void abort() {
+            abandoned = true;
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void insert(CacheEntry entry) {
+        List<CacheEntry> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            CacheEntry previous = diskTier.put(entry.url, entry);
+            if (previous != null) {
+                diskBytes -= previous.size;
+                if (memoryTier.remove(entry.url) != null) {
+                    memoryBytes -= previous.size;
+                }
+                dropped.add(previous);
+            }
+            diskBytes += entry.size;
+            if (entry.body != null) {
+                memoryTier.put(entry.url, entry);
+                memoryBytes += entry.size;
+            }
+            evict(dropped, entry);
+        } finally {
+            lock.unlock();
+        }
+        releaseAll(dropped);
+    }
+
+    /**
+     * Moves an entry served from disk into the hot tier when it is small enough, the caller holding it
+     */
+    private void promote(CacheEntry entry) {
+        if (entry.size > memoryEntryMaxBytes) {
+            return;
+        }
+        byte[] body;
+        try {
+            body = Files.readAllBytes(entry.file);
+        } catch (IOException e) {
+            return;
+        }
+        List<CacheEntry> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            if (diskTier.get(entry.url) != entry || memoryTier.containsKey(entry.url)) {
+                return;
+            }
+            entry.body = body;
+            memoryTier.put(entry.url, entry);
+            memoryBytes += entry.size;
+            evict(dropped, entry);
+        } finally {
+            lock.unlock();
+        }
+        releaseAll(dropped);
+    }
+
+    /**
+     * Evicts least recently used entries until both tiers fit, must hold lock
+     *
+     * @param dropped collects entries leaving the cache, released once the lock is
+     * @param keep    entry just added, never evicted by its own insertion
+     */
+    private void evict(List<CacheEntry> dropped, CacheEntry keep) {
+        Iterator<CacheEntry> memory = memoryTier.values().iterator();
+        while (memoryBytes > memoryMaxBytes && memory.hasNext()) {
+            CacheEntry victim = memory.next();
+            if (victim == keep) {
+                continue;
+            }
+            memory.remove();
+            victim.body = null;
+            memoryBytes -= victim.size;
+            memoryEvictions.increment();
+        }
+        Iterator<CacheEntry> disk = diskTier.values().iterator();
+        while (diskBytes > diskMaxBytes && disk.hasNext()) {
+            CacheEntry victim = disk.next();
+            if (victim == keep) {
+                continue;
+            }
+            disk.remove();
+            diskBytes -= victim.size;
+            if (memoryTier.remove(victim.url) != null) {
+                memoryBytes -= victim.size;
+            }
+            dropped.add(victim);
+            diskEvictions.increment();
+        }
+    }
+
+    /**
+     * Works out how long a response stays fresh
+     *
+     * @return lifetime in milliseconds, 0 if it must be revalidated, -1 if it may not be stored
+     */
+    static long freshnessLifetime(UpstreamResponse response) {
+        String cacheControl = response.getHeader("Cache-Control");
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store") || directive.equals("private")) {
+                    return -1;
+                } else if (directive.equals("no-cache")) {
+                    return 0;
+                } else if (directive.startsWith("s-maxage=")) {
+                    sharedMaxAge = parseSeconds(directive.substring(9));
+                } else if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring(8));
+                }
+            }
+        }
+        if (sharedMaxAge >= 0) {
+            return sharedMaxAge * 1000;
+        }
+        if (maxAge >= 0) {
+            return maxAge * 1000;
+        }
+
+        long date = response.getDateHeader("Date");
+        if (date == 0) {
+            date = System.currentTimeMillis();
+        }
+        if (response.getHeader("Expires") != null) {
+            // Invalid Expires values mean already expired
+            return Math.max(0, response.getDateHeader("Expires") - date);
+        }
+        long lastModified = response.getDateHeader("Last-Modified");
+        if (lastModified > 0 && lastModified < date) {
+            return Math.min((date - lastModified) / 10, MAX_HEURISTIC_FRESHNESS);
+        }
+        return 0;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.replace("\"", "").trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Computes the on-disk name for a version of a URL's entry, readable but unique per URL and version
+     */
+    static String fileNameFor(String url, long version) {
+        // Trim off the scheme as no need for it in file name, and remove any illegal characters
+        String readable = url.substring(url.indexOf("://") + 3).replaceAll("[^A-Za-z0-9.-]", "_");
+        if (readable.length() > 64) {
+            readable = readable.substring(0, 64);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(readable).append('-');
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.append('-').append(version).append(".body").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return counters and the cached URLs, as shown by the "cached" console command
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        lock.lock();
+        try {
+            description.append("Cache: ").append(diskTier.size()).append(" entries, ")
+                    .append(diskBytes).append(" bytes on disk, ")
+                    .append(memoryTier.size()).append(" entries / ").append(memoryBytes).append(" bytes in memory\n");
+            description.append("Hits: ").append(memoryHits.sum()).append(" memory, ").append(diskHits.sum())
+                    .append(" disk; misses: ").append(misses.sum())
+                    .append("; revalidated: ").append(revalidations.sum())
+                    .append("; stored: ").append(stores.sum())
+                    .append("; evicted: ").append(memoryEvictions.sum()).append(" memory, ")
+                    .append(diskEvictions.sum()).append(" disk\n");
+            for (CacheEntry entry : diskTier.values()) {
+                description.append(entry.isFresh() ? "  fresh " : "  stale ")
+                        .append(entry.body != null ? "mem  " : "disk ")
+                        .append(entry.url).append(" (").append(entry.size).append(" bytes)\n");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return description.toString();
+    }
+}
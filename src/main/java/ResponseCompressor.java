@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses GET responses for clients that accept it.
+ * With proxy.compress.enabled, a 200 response that is not already encoded,
+ * does not forbid transformation, is at least proxy.compress.minBytes long and
+ * whose type is not already compressed (images, audio, video, archives and the
+ * like, see proxy.compress.skipTypes) is sent gzip or deflate encoded, as the
+ * client's Accept-Encoding prefers. The body is compressed as it streams, a
+ * buffer at a time, and goes out chunked to HTTP/1.1 clients and until the
+ * connection closes to older ones.
+ * Deflating runs on a budget of proxy.compress.maxConcurrent workers: a buffer
+ * is only compressed while holding one of them, and a response starting while
+ * none is free is sent as it is, so compression never takes more than its
+ * share of the CPU from relaying. The compressed bytes are never written to
+ * the client while a worker is held.
+ * The cache keeps a compressed copy of its entries next to them, so a repeat
+ * hit is served already compressed.
+ */
+public final class ResponseCompressor {
+
+    private static final ResponseCompressor shared = new ResponseCompressor();
+
+    /**
+     * Encodings in order of preference when the client accepts several equally
+     */
+    private static final String[] ENCODINGS = {"gzip", "deflate"};
+
+    /**
+     * Media types, or type prefixes ending in "/", whose bodies are already compressed
+     */
+    private static final String DEFAULT_SKIP_TYPES = "image/,audio/,video/,font/woff,font/woff2,application/font-woff,"
+            + "application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,"
+            + "application/x-7z-compressed,application/x-rar-compressed,application/zstd,application/pdf,"
+            + "application/octet-stream,application/vnd.openxmlformats-officedocument";
+
+    private final boolean enabled = ProxyConfig.getBoolean("proxy.compress.enabled", false);
+    private final long minBytes = ProxyConfig.getLong("proxy.compress.minBytes", 1024);
+    private final int level = ProxyConfig.getInt("proxy.compress.level", 6);
+    private final int maxConcurrent = Math.max(1, ProxyConfig.getInt("proxy.compress.maxConcurrent",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    private final String[] skipTypes = ProxyConfig.get("proxy.compress.skipTypes", DEFAULT_SKIP_TYPES)
+            .toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+
+    /**
+     * Workers free to deflate a buffer
+     */
+    private final Semaphore workers = new Semaphore(maxConcurrent);
+
+    final LongAdder gzipped = new LongAdder();
+    final LongAdder deflated = new LongAdder();
+    final LongAdder busy = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder variantHits = new LongAdder();
+
+    private ResponseCompressor() {
+        Metrics metrics = Metrics.getShared();
+        metrics.counter("proxy_compress_responses_total{encoding=\"gzip\"}", "Responses compressed by encoding",
+                gzipped::sum);
+        metrics.counter("proxy_compress_responses_total{encoding=\"deflate\"}", "Responses compressed by encoding",
+                deflated::sum);
+        metrics.counter("proxy_compress_busy_total", "Responses sent uncompressed as no compression worker was free",
+                busy::sum);
+        metrics.counter("proxy_compress_bytes_total{stage=\"in\"}", "Body bytes before and after compression",
+                bytesIn::sum);
+        metrics.counter("proxy_compress_bytes_total{stage=\"out\"}", "Body bytes before and after compression",
+                bytesOut::sum);
+        metrics.counter("proxy_compress_variant_hits_total", "Cache hits served from a stored compressed copy",
+                variantHits::sum);
+        metrics.gauge("proxy_compress_workers_busy", "Compression workers deflating a buffer",
+                () -> maxConcurrent - workers.availablePermits());
+    }
+
+    public static ResponseCompressor getShared() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Picks the encoding to send a response in
+     *
+     * @param client  the client's request
+     * @param status  response status
+     * @param headers response headers
+     * @param length  body length, -1 if unknown
+     * @return "gzip" or "deflate", or null to send the response as it is
+     */
+    public String encodingFor(HttpRequestParser client, int status, List<String[]> headers, long length) {
+        if (!enabled || status != 200 || (length >= 0 && length < minBytes)
+                || RequestHandler.header(headers, "Content-Encoding") != null
+                || RequestHandler.header(headers, "Content-Range") != null
+                || RequestHandler.hasToken(headers, "Cache-Control", "no-transform")
+                || !isCompressibleType(RequestHandler.header(headers, "Content-Type"))) {
+            return null;
+        }
+        return negotiate(client.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * @return the accepted encoding with the highest quality, or null if neither is accepted
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double[] quality = new double[ENCODINGS.length];
+        Arrays.fill(quality, -1);
+        double wildcard = -1;
+        for (String part : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                wildcard = q;
+            } else if (coding.equals("x-gzip")) {
+                quality[0] = Math.max(quality[0], q);
+            } else {
+                for (int i = 0; i < ENCODINGS.length; i++) {
+                    if (coding.equals(ENCODINGS[i])) {
+                        quality[i] = Math.max(quality[i], q);
+                    }
+                }
+            }
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            double q = quality[i] >= 0 ? quality[i] : wildcard;
+            if (q > bestQuality) {
+                best = ENCODINGS[i];
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A body without a type might be anything, so is left alone; text-like suffixes
+     * such as +xml and +json are compressed even under a skipped prefix
+     */
+    private boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        if (type.endsWith("+xml") || type.endsWith("+json")) {
+            return true;
+        }
+        for (String skip : skipTypes) {
+            if (skip.endsWith("/") ? type.startsWith(skip) : type.equals(skip) || type.startsWith(skip + ".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Headers of a response once compressed: Content-Length goes as the length
+     * changes, a strong ETag is weakened as the bytes are no longer the same, and
+     * caches are told the response depends on Accept-Encoding
+     *
+     * @param headers  headers of the uncompressed response
+     * @param encoding encoding it is sent in
+     * @return the headers to send with the compressed body
+     */
+    public List<String[]> encodedHeaders(List<String[]> headers, String encoding) {
+        List<String[]> encoded = new ArrayList<>(headers.size() + 2);
+        boolean varies = false;
+        for (String[] header : headers) {
+            String name = header[0];
+            if (name.equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            if (name.equalsIgnoreCase("ETag") && !header[1].trim().startsWith("W/")) {
+                encoded.add(new String[]{name, "W/" + header[1].trim()});
+            } else if (name.equalsIgnoreCase("Vary")) {
+                varies = true;
+                encoded.add(RequestHandler.hasToken(headers, "Vary", "Accept-Encoding") || header[1].trim().equals("*")
+                        ? header : new String[]{name, header[1] + ", Accept-Encoding"});
+            } else {
+                encoded.add(header);
+            }
+        }
+        encoded.add(new String[]{"Content-Encoding", encoding});
+        if (!varies) {
+            encoded.add(new String[]{"Vary", "Accept-Encoding"});
+        }
+        return encoded;
+    }
+
+    /**
+     * Checked before a response is compressed, so it goes out as it is rather
+     * than waiting behind other responses for a worker
+     *
+     * @return whether every worker is busy
+     */
+    public boolean isBusy() {
+        if (workers.availablePermits() > 0) {
+            return false;
+        }
+        busy.increment();
+        return true;
+    }
+
+    /**
+     * Starts compressing a body
+     *
+     * @param encoding "gzip" or "deflate"
+     * @param out      stream the compressed body is written to, left open
+     * @param variant  cache writer also given the compressed body, or null
+     * @return the stream to write the body to
+     */
+    public Encoder start(String encoding, OutputStream out, ResponseCache.Writer variant) {
+        (encoding.equals("gzip") ? gzipped : deflated).increment();
+        return new Encoder(encoding.equals("gzip"), out, variant);
+    }
+
+    /**
+     * Compresses one body on its way to the client. finish() writes the end of
+     * the compressed data and stores the compressed copy; close() releases the
+     * deflater and drops the copy if unfinished, so must always be called.
+     */
+    public final class Encoder extends OutputStream {
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final OutputStream out;
+        private final ResponseCache.Writer variant;
+
+        /**
+         * Compressed bytes waiting to be written, filled while holding a worker and emptied without one
+         */
+        private byte[] output = new byte[8 * 1024];
+        private int outputLength;
+        private long written;
+        private long read;
+        private boolean headerWritten;
+        private boolean finished;
+
+        private Encoder(boolean gzip, OutputStream out, ResponseCache.Writer variant) {
+            this.gzip = gzip;
+            // gzip wraps raw deflate data in its own header and trailer
+            this.deflater = new Deflater(level, gzip);
+            this.crc = gzip ? new CRC32() : null;
+            this.out = out;
+            this.variant = variant;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            workers.acquireUninterruptibly();
+            try {
+                if (crc != null) {
+                    crc.update(b, off, len);
+                }
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
+            } finally {
+                workers.release();
+            }
+            read += len;
+            emit();
+        }
+
+        /**
+         * Writes the rest of the compressed body, leaving the underlying stream open
+         */
+        public void finish() throws IOException {
+            workers.acquireUninterruptibly();
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+            } finally {
+                workers.release();
+            }
+            if (gzip) {
+                writeHeader();
+                long value = crc.getValue();
+                byte[] trailer = {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                        (byte) read, (byte) (read >> 8), (byte) (read >> 16), (byte) (read >> 24)};
+                System.arraycopy(trailer, 0, ensureRoom(trailer.length), outputLength, trailer.length);
+                outputLength += trailer.length;
+            }
+            emit();
+            finished = true;
+            if (variant != null) {
+                variant.commit();
+            }
+            bytesIn.add(read);
+            bytesOut.add(written);
+        }
+
+        private void deflate() {
+            int length = deflater.deflate(ensureRoom(1), outputLength, output.length - outputLength);
+            outputLength += length;
+        }
+
+        private byte[] ensureRoom(int room) {
+            if (output.length - outputLength < room) {
+                output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + room));
+            }
+            return output;
+        }
+
+        /**
+         * A gzip member starts with a fixed header: magic, deflate, no flags, no time, unknown OS
+         */
+        private void writeHeader() throws IOException {
+            if (!headerWritten) {
+                headerWritten = true;
+                byte[] header = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+                out.write(header);
+                if (variant != null) {
+                    variant.write(header, 0, header.length);
+                }
+                written += header.length;
+            }
+        }
+
+        private void emit() throws IOException {
+            if (outputLength == 0) {
+                return;
+            }
+            if (gzip) {
+                writeHeader();
+            }
+            out.write(output, 0, outputLength);
+            if (variant != null) {
+                variant.write(output, 0, outputLength);
+            }
+            written += outputLength;
+            outputLength = 0;
+        }
+
+        /**
+         * @return compressed bytes written so far
+         */
+        public long getBytesWritten() {
+            return written;
+        }
+
+        /**
+         * Releases the deflater, the underlying stream stays open
+         */
+        @Override
+        public void close() {
+            deflater.end();
+            if (!finished && variant != null) {
+                // Only complete bodies are cached
+                variant.abort();
+            }
+        }
+    }
+
+    /**
+     * @return summary of compression for the console
+     */
+    public String describe() {
+        if (!enabled) {
+            return "Response compression disabled\n";
+        }
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        return String.format("Compression: %d gzip, %d deflate, %d sent uncompressed while busy, "
+                        + "%d cache hits already compressed; %d bytes to %d (%.1f%%), %d of %d workers busy%n",
+                gzipped.sum(), deflated.sum(), busy.sum(), variantHits.sum(), in, out,
+                in == 0 ? 0 : out * 100.0 / in, maxConcurrent - workers.availablePermits(), maxConcurrent);
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The body of a GET response that picks up where it broke off.
+ * When the upstream fails partway through, the rest is asked for from the next
+ * healthy upstream with a Range request carrying If-Range, and that response's
+ * body continues the stream, so the client sees one unbroken response.
+ * Only responses that name their version, by a strong ETag or a Last-Modified
+ * date, and whose place in the resource is known can be resumed: a 200 with a
+ * length or chunked, or a 206 with a single Content-Range. A 200 in answer
+ * means the range was ignored, and is used when it is the same version, the
+ * part already sent being skipped. Up to proxy.resume.maxAttempts resumes are
+ * made for one response, after which the failure is passed on. The same range
+ * requests let a client that fell behind a shared response fetch the rest alone.
+ */
+public class ResumableBody extends InputStream {
+
+    private static final int MAX_ATTEMPTS = ProxyConfig.getInt("proxy.resume.maxAttempts", 2);
+
+    private static final LongAdder attempts = Metrics.getShared().counter("proxy_resume_attempts_total",
+            "Range requests sent to continue a response mid-body, after a failure or for a client left behind");
+    private static final LongAdder resumed = Metrics.getShared().counter("proxy_resume_succeeded_total",
+            "Responses continued mid-body by a range request");
+
+    private final URL url;
+
+    /**
+     * Headers of the range requests, those the proxy adds and the client's
+     */
+    private final List<String[]> headers;
+    private final List<Upstream> tried;
+    private final String etag;
+    private final String lastModified;
+
+    /**
+     * Offset in the resource of the next byte to read
+     */
+    private long position;
+
+    /**
+     * Offset of the last byte of the response, -1 when it runs to the end of a resource of unknown length
+     */
+    private final long last;
+
+    private Upstream upstream;
+    private InputStream in;
+
+    /**
+     * Response taken over from another upstream, closed with this stream
+     */
+    private UpstreamResponse current;
+    private int resumes;
+
+    private ResumableBody(UpstreamResponse response, InputStream in, Upstream upstream, List<Upstream> tried, URL url,
+                          List<String[]> headers, long first, long last) {
+        this.upstream = upstream;
+        this.tried = tried;
+        this.url = url;
+        this.headers = headers;
+        this.etag = strongEtag(response);
+        this.lastModified = response.getHeader("Last-Modified");
+        this.position = first;
+        this.last = last;
+        this.in = in;
+    }
+
+    /**
+     * Wraps the body of a response so it resumes from another upstream on failure, if it can be
+     *
+     * @param response response to a GET without a body, whose head has been read
+     * @param upstream upstream the response came from
+     * @param tried    upstreams used for the request, those resumed from are added
+     * @param url      absolute URL of the resource
+     * @param headers  headers the proxy adds to the request
+     * @param client   parsed client request, whose headers are forwarded apart from any range
+     *                 and any validators
+     * @return a resumable body, or the response's own body when it cannot be resumed
+     */
+    static InputStream of(UpstreamResponse response, Upstream upstream, List<Upstream> tried, URL url,
+                          List<String[]> headers, HttpRequestParser client) {
+        if (MAX_ATTEMPTS <= 0 || upstream == null || !response.hasBody() || response.isCloseDelimited()
+                || (strongEtag(response) == null && response.getHeader("Last-Modified") == null)) {
+            return response.getBody();
+        }
+        long first;
+        long last;
+        if (response.status == 200) {
+            first = 0;
+            long length = response.getContentLength();
+            last = length >= 0 ? length - 1 : -1;
+        } else if (response.status == 206) {
+            long[] range = contentRange(response);
+            if (range == null) {
+                return response.getBody();
+            }
+            first = range[0];
+            last = range[1];
+        } else {
+            return response.getBody();
+        }
+        return new ResumableBody(response, response.getBody(), upstream, tried, url, withClientHeaders(headers, client),
+                first, last);
+    }
+
+    /**
+     * @return whether the rest of a 200 response can be fetched again from any offset, see continueFrom()
+     */
+    static boolean canContinue(UpstreamResponse response) {
+        return MAX_ATTEMPTS > 0 && response.status == 200 && response.hasBody() && !response.isCloseDelimited()
+                && (strongEtag(response) != null || response.getHeader("Last-Modified") != null);
+    }
+
+    /**
+     * Fetches the rest of a response with a range request of its own, for a client
+     * that can no longer read it where it was, e.g. one that fell behind a shared response
+     *
+     * @param response response to a GET, for which canContinue() holds; its body is not read
+     * @param position offset in the body of the first byte wanted
+     * @param url      absolute URL of the resource
+     * @param headers  headers the proxy adds to the request
+     * @param client   parsed client request, whose headers are forwarded apart from any range
+     *                 and any validators
+     * @return the body from the offset on, resuming again should it break off
+     * @throws IOException if no upstream can continue the response
+     */
+    static InputStream continueFrom(UpstreamResponse response, long position, URL url, List<String[]> headers,
+                                    HttpRequestParser client) throws IOException {
+        long length = response.getContentLength();
+        ResumableBody rest = new ResumableBody(response, null, null, new ArrayList<>(), url,
+                withClientHeaders(headers, client), position, length >= 0 ? length - 1 : -1);
+        if (!rest.fetchRest()) {
+            throw new IOException("No upstream could continue " + url + " from byte " + position);
+        }
+        return rest;
+    }
+
+    /**
+     * Copies the client's headers, as the client's parser moves on to its next
+     * request while a shared response may still be read
+     */
+    private static List<String[]> withClientHeaders(List<String[]> headers, HttpRequestParser client) {
+        List<String[]> all = new ArrayList<>(headers);
+        ByteArrayOutputStream forwarded = new ByteArrayOutputStream();
+        try {
+            client.writeHeaders(forwarded, false, true, true);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            return all;
+        }
+        for (String line : forwarded.toString(StandardCharsets.ISO_8859_1).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                all.add(new String[]{line.substring(0, colon), line.substring(colon + 1).trim()});
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (last >= 0) {
+            if (position > last) {
+                return -1;
+            }
+            // A 200 taken in place of a range runs on to the end of the resource
+            len = (int) Math.min(len, last - position + 1);
+        }
+        while (true) {
+            int read;
+            try {
+                read = in.read(b, off, len);
+            } catch (IOException e) {
+                resume(e);
+                continue;
+            }
+            if (read > 0) {
+                position += read;
+            } else if (read < 0 && last >= 0 && position <= last) {
+                resume(new IOException("Response ended " + (last - position + 1) + " bytes short"));
+                continue;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Asks the next upstream for the rest of the response
+     *
+     * @param cause the failure, thrown once no upstream can continue
+     * @throws IOException if the response cannot be resumed
+     */
+    private void resume(IOException cause) throws IOException {
+        System.out.println("Response for " + url + " via " + upstream + " broke off at byte " + position + ": "
+                + cause.getMessage());
+        upstream.bodyFailed();
+        closeCurrent();
+        if (!fetchRest()) {
+            throw cause;
+        }
+    }
+
+    /**
+     * Asks the next upstream for the rest of the response, from position on
+     *
+     * @return whether an upstream continued it
+     */
+    private boolean fetchRest() {
+        List<String[]> rangeHeaders = new ArrayList<>(headers);
+        rangeHeaders.add(new String[]{"Range", "bytes=" + position + "-" + (last >= 0 ? last : "")});
+        rangeHeaders.add(new String[]{"If-Range", etag != null ? etag : lastModified});
+        while (resumes < MAX_ATTEMPTS) {
+            Upstream next = UpstreamRegistry.getShared().select(tried);
+            if (next == null) {
+                break;
+            }
+            resumes++;
+            attempts.increment();
+            tried.add(next);
+            long started = System.nanoTime();
+            UpstreamResponse response = null;
+            try {
+                response = UpstreamHttpClient.execute(next, "GET", url, rangeHeaders);
+            } catch (IOException e) {
+                System.out.println("Resuming " + url + " via " + next + " failed: " + e.getMessage());
+            }
+            long skip = response != null ? continues(response) : -1;
+            next.finished(tried, RequestHedger.isUpstreamOk(response), System.nanoTime() - started);
+            if (skip < 0 || !skipFully(response, skip)) {
+                if (response != null) {
+                    response.close();
+                }
+                continue;
+            }
+            System.out.println("Resumed " + url + " at byte " + position + " via " + next);
+            resumed.increment();
+            upstream = next;
+            current = response;
+            in = response.getBody();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return bytes to skip for a response to continue this one, -1 if it cannot
+     */
+    private long continues(UpstreamResponse response) {
+        if (!sameVersion(response)) {
+            return -1;
+        }
+        if (response.status == 206) {
+            long[] range = contentRange(response);
+            return range != null && range[0] == position && (last < 0 || range[1] == last) ? 0 : -1;
+        }
+        if (response.status == 200 && !response.isCloseDelimited()) {
+            // The range was ignored, the whole resource comes again
+            long length = response.getContentLength();
+            return last < 0 || length < 0 || length > last ? position : -1;
+        }
+        return -1;
+    }
+
+    private boolean sameVersion(UpstreamResponse response) {
+        if (etag != null) {
+            return etag.equals(strongEtag(response));
+        }
+        return lastModified.equals(response.getHeader("Last-Modified"));
+    }
+
+    private static boolean skipFully(UpstreamResponse response, long skip) {
+        byte[] buffer = new byte[8192];
+        InputStream body = response.getBody();
+        try {
+            while (skip > 0) {
+                int read = body.read(buffer, 0, (int) Math.min(buffer.length, skip));
+                if (read < 0) {
+                    return false;
+                }
+                skip -= read;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the ETag when it is strong, a weak one does not promise the same bytes
+     */
+    private static String strongEtag(UpstreamResponse response) {
+        String etag = response.getHeader("ETag");
+        return etag == null || etag.trim().startsWith("W/") ? null : etag.trim();
+    }
+
+    /**
+     * @return first and last byte of a "bytes first-last/length" Content-Range, or null
+     */
+    private static long[] contentRange(UpstreamResponse response) {
+        String value = response.getHeader("Content-Range");
+        if (value == null || !value.trim().startsWith("bytes ")) {
+            return null;
+        }
+        String range = value.trim().substring("bytes ".length());
+        int dash = range.indexOf('-');
+        int slash = range.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(range.substring(0, dash).trim()),
+                    Long.parseLong(range.substring(dash + 1, slash).trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void closeCurrent() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Closes a response taken over from another upstream, the original response is closed by its owner
+     */
+    @Override
+    public void close() {
+        closeCurrent();
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Socket options applied to client connections and connections to upstreams.
+ * TCP_NODELAY is on by default (proxy.socket.tcpNoDelay): a proxy passes on
+ * whatever arrives straight away, and with Nagle's algorithm a small write
+ * following another waits for the peer's delayed acknowledgement, up to 40 ms.
+ * proxy.socket.receiveBufferBytes and proxy.socket.sendBufferBytes set the
+ * kernel buffers, 0 leaving them to the operating system's autotuning.
+ */
+public final class SocketSettings {
+
+    private static final boolean TCP_NO_DELAY = ProxyConfig.getBoolean("proxy.socket.tcpNoDelay", true);
+    private static final int RECEIVE_BUFFER = ProxyConfig.getInt("proxy.socket.receiveBufferBytes", 0);
+    private static final int SEND_BUFFER = ProxyConfig.getInt("proxy.socket.sendBufferBytes", 0);
+
+    private SocketSettings() {
+    }
+
+    /**
+     * @return the receive buffer size listening sockets should give accepted connections, 0 for the default
+     */
+    static int getReceiveBuffer() {
+        return RECEIVE_BUFFER;
+    }
+
+    public static void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(TCP_NO_DELAY);
+        if (RECEIVE_BUFFER > 0) {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+        if (SEND_BUFFER > 0) {
+            socket.setSendBufferSize(SEND_BUFFER);
+        }
+    }
+
+    public static void apply(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NO_DELAY);
+        if (RECEIVE_BUFFER > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        }
+        if (SEND_BUFFER > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the deadlines and idle timeouts of every connection on one hashed
+ * timing wheel. The wheel is a ring of proxy.timer.wheelSize slots, each
+ * holding the timeouts due in one tick of proxy.timer.tickMillis; a timeout
+ * further away than one turn waits out the extra turns in its slot. Scheduling
+ * and cancelling only queue the timeout for the "timing-wheel" thread, which
+ * moves it into or out of its slot's list on the next tick, so each costs O(1)
+ * however many connections are open. Timeouts fire up to a tick late.
+ * An idle timeout is only pushed back by touch(), a plain write, and when its
+ * slot comes round it is put back for whatever idle time is left instead of
+ * firing. Expiry tasks run on the wheel thread and must only close sockets or
+ * hand work to another thread.
+ */
+public final class TimingWheel {
+
+    private static final TimingWheel shared = new TimingWheel(
+            ProxyConfig.getLong("proxy.timer.tickMillis", 100), ProxyConfig.getInt("proxy.timer.wheelSize", 512));
+
+    private final long tickNanos;
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Time zero of the wheel, deadlines are kept relative to it
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Ticks processed, only touched by the wheel thread
+     */
+    private long tick;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<String, LongAdder> expiredByPhase = new ConcurrentHashMap<>();
+
+    private TimingWheel(long tickMillis, int wheelSize) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        // A power of two, so the slot of a tick is a mask away
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+
+        Thread thread = new Thread(this::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+
+        Metrics.getShared().gauge("proxy_timer_pending", "Deadlines and idle timeouts waiting on the timing wheel",
+                pending::get);
+    }
+
+    public static TimingWheel getShared() {
+        return shared;
+    }
+
+    /**
+     * Runs a task once a deadline has passed, unless cancelled first
+     *
+     * @param phase       what the deadline limits, counted in proxy_timeouts_total when it expires
+     * @param delayMillis time until the deadline
+     * @param task        run on the wheel thread when the deadline passes
+     * @return the timeout, to be cancelled once the phase is over
+     */
+    public Timeout schedule(String phase, long delayMillis, Runnable task) {
+        return add(new Timeout(phase, 0, task), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    /**
+     * Runs a task once nothing has touched the timeout for a while, unless cancelled first
+     *
+     * @param phase       what the timeout limits, counted in proxy_timeouts_total when it expires
+     * @param idleMillis  time without activity after which the task runs
+     * @param task        run on the wheel thread when the timeout expires
+     * @return the timeout, to be touched on activity and cancelled once the phase is over
+     */
+    public Timeout scheduleIdle(String phase, long idleMillis, Runnable task) {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleMillis));
+        Timeout timeout = new Timeout(phase, idleNanos, task);
+        timeout.touch();
+        return add(timeout, timeout.lastActivity + idleNanos);
+    }
+
+    private Timeout add(Timeout timeout, long deadlineNanos) {
+        timeout.deadline = deadlineNanos - startNanos;
+        expiredCounter(timeout.phase);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    private LongAdder expiredCounter(String phase) {
+        return expiredByPhase.computeIfAbsent(phase, name -> Metrics.getShared().counter(
+                "proxy_timeouts_total{phase=\"" + name + "\"}", "Connections cut off by a deadline or idle timeout"));
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = tickNanos * (tick + 1);
+            long sleep = tickEnd - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.slot != null) {
+                    timeout.slot.remove(timeout);
+                }
+            }
+            while ((timeout = added.poll()) != null) {
+                if (timeout.state.get() == Timeout.WAITING) {
+                    place(timeout);
+                }
+            }
+            expire(slots[(int) (tick & mask)], tickEnd);
+            tick++;
+        }
+    }
+
+    /**
+     * Puts a timeout in the slot of its deadline's tick, or the current one if that has already gone by
+     */
+    private void place(Timeout timeout) {
+        long dueTick = timeout.deadline / tickNanos;
+        timeout.rounds = Math.max(0, (dueTick - tick) / slots.length);
+        slots[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+    }
+
+    /**
+     * Fires the timeouts in a slot that are due by the end of the current tick
+     */
+    private void expire(Slot slot, long tickEnd) {
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.deadline <= tickEnd) {
+                slot.remove(timeout);
+                long idleUntil = timeout.lastActivity - startNanos + timeout.idleNanos;
+                if (timeout.idleNanos > 0 && idleUntil > tickEnd) {
+                    // Touched since it was placed, wait out the rest of the idle time
+                    timeout.deadline = idleUntil;
+                    place(timeout);
+                } else {
+                    timeout.expire();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A deadline or idle timeout on the wheel
+     */
+    public final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final String phase;
+        private final long idleNanos;
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private volatile long lastActivity;
+
+        // Only touched by the wheel thread once added
+        private long deadline;
+        private long rounds;
+        private Slot slot;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(String phase, long idleNanos, Runnable task) {
+            this.phase = phase;
+            this.idleNanos = idleNanos;
+            this.task = task;
+        }
+
+        /**
+         * Pushes an idle timeout back, does nothing for a deadline
+         */
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * @return whether the timeout was still waiting, false if it already expired
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * @return whether the task has been run
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            expiredCounter(phase).increment();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The timeouts due in one slot of the wheel, a doubly linked list so any can be unlinked in O(1)
+     */
+    private static final class Slot {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+
+    /**
+     * @return summary of the wheel for the console
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder(String.format(
+                "Timing wheel: %d pending, %d slots of %d ms%n", pending.get(), slots.length,
+                TimeUnit.NANOSECONDS.toMillis(tickNanos)));
+        expiredByPhase.forEach((phase, expired) ->
+                description.append("  ").append(phase).append(": ").append(expired.sum()).append(" expired\n"));
+        return description.toString();
+    }
+}
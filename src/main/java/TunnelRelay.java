@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays an established HTTPS tunnel between the client and the upstream proxy.
+ * Each direction copies through a pooled direct buffer, so bytes go from one
+ * socket to the other without passing through the Java heap. Java offers no
+ * socket to socket splice, this is as close to zero-copy as the platform allows.
+ * An end of stream in one direction is passed on as a half-close and the
+ * tunnel is closed once both directions have finished.
+ * A tunnel silent in both directions for proxy.timeout.tunnelIdleMillis, or
+ * open for longer than proxy.timeout.tunnelMaxMillis when that is set, is
+ * closed from the timing wheel, which ends both directions at once.
+ */
+public class TunnelRelay {
+
+    static final long TUNNEL_IDLE_TIMEOUT = ProxyConfig.getLong("proxy.timeout.tunnelIdleMillis", 300000);
+
+    /**
+     * Longest a tunnel may stay open however busy, 0 for no limit
+     */
+    static final long TUNNEL_MAX_LIFETIME = ProxyConfig.getLong("proxy.timeout.tunnelMaxMillis", 0);
+
+    private final SocketChannel clientChannel;
+    private final SocketChannel upstreamChannel;
+    private final AccessLog.Record record;
+
+    /**
+     * Directions still running, the last one to finish closes the tunnel
+     */
+    private final AtomicInteger activeDirections = new AtomicInteger(2);
+
+    private TimingWheel.Timeout idle;
+    private TimingWheel.Timeout lifetime;
+
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+
+    /**
+     * @param clientChannel   channel to the client, in blocking mode
+     * @param upstreamChannel channel to the upstream proxy, in blocking mode
+     * @param record          access log record of the CONNECT request, logged once the tunnel closes
+     */
+    public TunnelRelay(SocketChannel clientChannel, SocketChannel upstreamChannel, AccessLog.Record record) {
+        this.clientChannel = clientChannel;
+        this.upstreamChannel = upstreamChannel;
+        this.record = record;
+    }
+
+    /**
+     * Relays until both directions have ended. Client to server runs on the
+     * executor, server to client on the calling thread.
+     *
+     * @param executor runs the client to server direction
+     * @param pending  bytes already received from upstream, sent to the client first
+     * @throws RejectedExecutionException if no thread is available for the second direction
+     */
+    public void run(HandlerExecutor executor, ByteBuffer pending) {
+        TimingWheel wheel = TimingWheel.getShared();
+        idle = wheel.scheduleIdle("tunnel_idle", TUNNEL_IDLE_TIMEOUT, this::close);
+        if (TUNNEL_MAX_LIFETIME > 0) {
+            lifetime = wheel.schedule("tunnel_lifetime", TUNNEL_MAX_LIFETIME, this::close);
+        }
+        try {
+            executor.execute(() -> relay(clientChannel, upstreamChannel, null));
+        } catch (RejectedExecutionException e) {
+            cancelTimeouts();
+            throw e;
+        }
+        relay(upstreamChannel, clientChannel, pending);
+    }
+
+    /**
+     * Copies one direction until end of stream or an error
+     */
+    private void relay(SocketChannel source, SocketChannel destination, ByteBuffer pending) {
+        ByteBuffer buffer = BufferPool.acquire();
+        long total = 0;
+        boolean failed = false;
+        try {
+            if (pending != null) {
+                total += pending.remaining();
+                writeFully(destination, pending);
+            }
+            while (source.read(buffer) >= 0) {
+                idle.touch();
+                buffer.flip();
+                total += buffer.remaining();
+                writeFully(destination, buffer);
+                buffer.clear();
+            }
+            // Pass the end of stream on, the other direction may still be sending
+            destination.shutdownOutput();
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        if (source == clientChannel) {
+            bytesSent = total;
+        } else {
+            bytesReceived = total;
+        }
+        if (failed) {
+            // One side is gone, nothing more can be relayed in either direction
+            close();
+        }
+        if (activeDirections.decrementAndGet() == 0) {
+            close();
+            summarize();
+        }
+    }
+
+    private static void writeFully(SocketChannel destination, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            destination.write(buffer);
+        }
+    }
+
+    private void close() {
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            upstreamChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void cancelTimeouts() {
+        idle.cancel();
+        if (lifetime != null) {
+            lifetime.cancel();
+        }
+    }
+
+    private void summarize() {
+        cancelTimeouts();
+        record.bytesIn += bytesSent;
+        record.bytesOut += bytesReceived;
+        AccessLog.getShared().log(record);
+        Metrics.getShared().activeConnections.decrement();
+        AdmissionController.getShared().connectionClosed(record.client);
+    }
+}
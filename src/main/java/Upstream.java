@@ -0,0 +1,237 @@
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One upstream proxy and what we have learned about it.
+ * Latency and error rate are exponentially weighted moving averages of the
+ * requests sent through it. A circuit breaker stops traffic to an upstream
+ * that keeps failing; once the open period has passed a single probe request
+ * is let through (half-open) and its outcome closes or reopens the breaker.
+ * A request is identified by the list of upstreams it has tried, which holds
+ * each upstream at most once, so only the probe's own outcome frees its slot.
+ */
+public class Upstream {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Weight of the newest sample in the moving averages
+     */
+    private static final double ALPHA = 0.2;
+
+    private static final int FAILURE_THRESHOLD = ProxyConfig.getInt("proxy.upstream.failureThreshold", 5);
+    private static final double ERROR_RATE_THRESHOLD = ProxyConfig.getInt("proxy.upstream.errorRatePercent", 50) / 100.0;
+    private static final long OPEN_MILLIS = ProxyConfig.getLong("proxy.upstream.openMillis", 30000);
+
+    final String host;
+    final int port;
+
+    /**
+     * host:port, kept so logging an upstream allocates nothing
+     */
+    private final String name;
+    private volatile java.net.Proxy proxy;
+    private final UpstreamConnectionPool pool = new UpstreamConnectionPool(this);
+
+    /**
+     * NaN until the first sample arrives, which then seeds the average
+     */
+    private final AtomicLong latencyMillisBits = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+    private final AtomicLong errorRateBits = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * Upstreams tried by the request holding the half-open probe slot, null when it is free
+     */
+    private final AtomicReference<Collection<Upstream>> probe = new AtomicReference<>();
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+
+    Upstream(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.name = host + ":" + port;
+        this.proxy = newProxy();
+    }
+
+    private java.net.Proxy newProxy() {
+        return new java.net.Proxy(java.net.Proxy.Type.HTTP, new InetSocketAddress(host, port));
+    }
+
+    /**
+     * @return the proxy to connect through, resolving the host again if an earlier lookup failed
+     */
+    public java.net.Proxy getProxy() {
+        java.net.Proxy current = proxy;
+        if (((InetSocketAddress) current.address()).isUnresolved()) {
+            current = newProxy();
+            proxy = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return persistent connections for plain HTTP requests through this upstream
+     */
+    public UpstreamConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @param tried upstreams already used by the request, which claims the probe slot if half-open
+     * @return whether a request may be sent now
+     */
+    boolean tryAcquire(Collection<Upstream> tried) {
+        State current = state;
+        if (current == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            current = State.HALF_OPEN;
+        }
+        if (current == State.HALF_OPEN) {
+            return probe.compareAndSet(null, tried);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether a request could be sent now, without claiming anything
+     */
+    boolean isAvailable() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= OPEN_MILLIS;
+            default:
+                return probe.get() == null;
+        }
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the outcome of a request sent through this upstream
+     *
+     * @param tried        upstreams used by the request, as passed to UpstreamRegistry.select()
+     * @param success      whether the upstream did its job
+     * @param latencyNanos time until the response headers or tunnel arrived
+     */
+    void finished(Collection<Upstream> tried, boolean success, long latencyNanos) {
+        inFlight.decrementAndGet();
+        updateAverage(errorRateBits, success ? 0 : 1);
+        if (success) {
+            updateAverage(latencyMillisBits, latencyNanos / 1_000_000.0);
+            consecutiveFailures.set(0);
+            if (state != State.CLOSED) {
+                System.out.println("Upstream " + this + " recovered, closing circuit");
+            }
+            state = State.CLOSED;
+        } else {
+            countFailure();
+        }
+        probe.compareAndSet(tried, null);
+    }
+
+    /**
+     * Records a response that broke off partway through its body, after finished() already counted it a success
+     */
+    void bodyFailed() {
+        updateAverage(errorRateBits, 1);
+        countFailure();
+    }
+
+    private void countFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state == State.HALF_OPEN || failures >= FAILURE_THRESHOLD
+                || (failures > 1 && getErrorRate() > ERROR_RATE_THRESHOLD)) {
+            open();
+        }
+    }
+
+    /**
+     * Ends a request abandoned before it finished, e.g. a hedged request another
+     * upstream answered first. It counts as neither success nor failure, but an
+     * upstream that was slower than usual has its average latency raised.
+     *
+     * @param tried        upstreams used by the request, as passed to UpstreamRegistry.select()
+     * @param elapsedNanos time the request had been waiting, a lower bound of its latency
+     */
+    void cancelled(Collection<Upstream> tried, long elapsedNanos) {
+        inFlight.decrementAndGet();
+        double elapsedMillis = elapsedNanos / 1_000_000.0;
+        if (elapsedMillis > getLatencyMillis()) {
+            updateAverage(latencyMillisBits, elapsedMillis);
+        }
+        probe.compareAndSet(tried, null);
+    }
+
+    void open() {
+        if (state != State.OPEN) {
+            System.out.println("Upstream " + this + " failing, opening circuit");
+        }
+        openedAt = System.currentTimeMillis();
+        state = State.OPEN;
+    }
+
+    /**
+     * Lets a probe through straight away, used when a health check succeeds
+     */
+    void allowProbe() {
+        if (state == State.OPEN) {
+            openedAt = 0;
+        }
+    }
+
+    private static void updateAverage(AtomicLong bits, double sample) {
+        long current;
+        long next;
+        do {
+            current = bits.get();
+            double average = Double.longBitsToDouble(current);
+            next = Double.doubleToLongBits(Double.isNaN(average) ? sample : average + ALPHA * (sample - average));
+        } while (!bits.compareAndSet(current, next));
+    }
+
+    public double getLatencyMillis() {
+        double latency = Double.longBitsToDouble(latencyMillisBits.get());
+        return Double.isNaN(latency) ? 0 : latency;
+    }
+
+    public double getErrorRate() {
+        return Double.longBitsToDouble(errorRateBits.get());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Lower is better: expected latency scaled by queued work and recent errors
+     */
+    double score() {
+        double latency = Math.max(getLatencyMillis(), 1);
+        return latency * (1 + getInFlight()) / Math.max(0.05, 1 - getErrorRate());
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
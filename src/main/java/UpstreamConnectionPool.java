@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent connections to one upstream proxy.
+ * At most proxy.pool.maxActive connections are lent out at a time; a request
+ * that finds them all busy waits up to proxy.pool.maxWaitMillis for one to
+ * come back. Returned connections are kept for the next request, the most
+ * recently used first, and closed once idle for proxy.pool.idleMillis or when
+ * more than proxy.pool.maxIdle are already waiting.
+ */
+public class UpstreamConnectionPool {
+
+    private static final int MAX_ACTIVE = ProxyConfig.getInt("proxy.pool.maxActive", 64);
+    private static final int MAX_IDLE = ProxyConfig.getInt("proxy.pool.maxIdle", 16);
+    private static final long IDLE_MILLIS = ProxyConfig.getLong("proxy.pool.idleMillis", 30000);
+    private static final long MAX_WAIT_MILLIS = ProxyConfig.getLong("proxy.pool.maxWaitMillis", 5000);
+    static final int CONNECT_TIMEOUT = ProxyConfig.getInt("proxy.upstream.connectTimeoutMillis", 10000);
+    private static final int READ_TIMEOUT = ProxyConfig.getInt("proxy.upstream.readTimeoutMillis", 30000);
+
+    private final Upstream upstream;
+
+    /**
+     * One permit per connection that may be lent out
+     */
+    private final Semaphore permits = new Semaphore(MAX_ACTIVE);
+
+    /**
+     * Idle connections, most recently returned first
+     */
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    final LongAdder created = new LongAdder();
+    final LongAdder reused = new LongAdder();
+    final LongAdder waits = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+    final LongAdder waitTimeouts = new LongAdder();
+    final LongAdder idleEvictions = new LongAdder();
+
+    UpstreamConnectionPool(Upstream upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * A connection to the upstream proxy, lent to one request at a time
+     */
+    final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        private long idleSince;
+        private int requests;
+        private boolean lent;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        }
+
+        /**
+         * @return whether an earlier request already used this connection
+         */
+        boolean isReused() {
+            return requests > 1;
+        }
+
+        /**
+         * Returns the connection after a complete exchange, for the next request to use
+         */
+        void release() {
+            if (lent) {
+                lent = false;
+                giveBack(this);
+            }
+        }
+
+        /**
+         * Closes the connection, for when the exchange on it failed or cannot be followed by another
+         */
+        void discard() {
+            if (lent) {
+                lent = false;
+                closeSocket();
+                permits.release();
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Lends out a connection, reusing an idle one when possible
+     *
+     * @return a connection to the upstream proxy, to be released or discarded when done
+     * @throws IOException if no connection frees up in time or a new one cannot be opened
+     */
+    Connection acquire() throws IOException {
+        if (!permits.tryAcquire()) {
+            waits.increment();
+            long started = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + upstream);
+            } finally {
+                waitNanos.add(System.nanoTime() - started);
+            }
+            if (!acquired) {
+                waitTimeouts.increment();
+                throw new IOException("No connection to " + upstream + " free after " + MAX_WAIT_MILLIS + " ms");
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (now - connection.idleSince < IDLE_MILLIS) {
+                reused.increment();
+                return lend(connection);
+            }
+            connection.closeSocket();
+            idleEvictions.increment();
+        }
+
+        try {
+            connection = new Connection(open());
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+        created.increment();
+        return lend(connection);
+    }
+
+    private static Connection lend(Connection connection) {
+        connection.lent = true;
+        connection.requests++;
+        return connection;
+    }
+
+    private Socket open() throws IOException {
+        InetSocketAddress address = (InetSocketAddress) upstream.getProxy().address();
+        if (address.isUnresolved()) {
+            throw new IOException("Upstream proxy address unresolved: " + address);
+        }
+        Socket socket = new Socket();
+        try {
+            SocketSettings.apply(socket);
+            socket.setKeepAlive(true);
+            long started = System.nanoTime();
+            socket.connect(address, CONNECT_TIMEOUT);
+            Metrics.getShared().upstreamConnect.recordNanos(System.nanoTime() - started);
+            socket.setSoTimeout(READ_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private void giveBack(Connection connection) {
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            connection.closeSocket();
+        } else {
+            connection.idleSince = System.currentTimeMillis();
+            idle.offerFirst(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes connections that have been idle too long, the upstream would soon drop them anyway
+     */
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            Connection connection = oldestFirst.next();
+            if (now - connection.idleSince < IDLE_MILLIS) {
+                break;
+            }
+            // Only the thread that removes it may close it, an acquire may have taken it meanwhile
+            if (idle.removeLastOccurrence(connection)) {
+                idleCount.decrementAndGet();
+                connection.closeSocket();
+                idleEvictions.increment();
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getActiveCount() {
+        return MAX_ACTIVE - permits.availablePermits();
+    }
+
+    /**
+     * @return one line of pool counters, as shown by the "upstreams" console command
+     */
+    public String describe() {
+        long waitCount = waits.sum();
+        return String.format("pool %d active, %d idle; opened %d, reused %d; waited %d times (avg %.1f ms), "
+                        + "%d timed out; evicted %d idle",
+                getActiveCount(), getIdleCount(), created.sum(), reused.sum(), waitCount,
+                waitCount == 0 ? 0.0 : waitNanos.sum() / 1e6 / waitCount, waitTimeouts.sum(), idleEvictions.sum());
+    }
+}
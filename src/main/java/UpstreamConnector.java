@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Opens CONNECT tunnels through an upstream HTTP proxy over a blocking SocketChannel.
+ * java.net.Socket(Proxy) does the same handshake internally but its sockets
+ * have no channel, which the tunnel relay needs for direct buffers.
+ * Blocking channels ignore socket timeouts, so reaching the proxy and getting
+ * its reply are held to proxy.upstream.connectTimeoutMillis on the timing wheel.
+ */
+public final class UpstreamConnector {
+
+    /**
+     * Largest reply to CONNECT accepted from the upstream proxy
+     */
+    private static final int MAX_RESPONSE_HEAD = 8192;
+
+    private UpstreamConnector() {
+    }
+
+    /**
+     * An established tunnel through an upstream proxy
+     */
+    static class Tunnel {
+        /**
+         * Channel to the upstream proxy, now relaying to the target
+         */
+        final SocketChannel channel;
+
+        /**
+         * Bytes the target already sent, received together with the proxy's reply
+         */
+        final ByteBuffer pending;
+
+        Tunnel(SocketChannel channel, ByteBuffer pending) {
+            this.channel = channel;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * Connects to the upstream proxy and asks it for a tunnel to host:port
+     *
+     * @param proxy upstream proxy to go through
+     * @param host  target host name or address literal
+     * @param port  target port
+     * @return the open tunnel
+     * @throws IOException if the proxy cannot be reached or refuses the tunnel
+     */
+    public static Tunnel connect(java.net.Proxy proxy, String host, int port) throws IOException {
+        SocketAddress address = proxy.address();
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).isUnresolved()) {
+            throw new IOException("Upstream proxy address unresolved: " + address);
+        }
+        SocketChannel channel = SocketChannel.open();
+        TimingWheel.Timeout deadline = TimingWheel.getShared().schedule("connect",
+                UpstreamConnectionPool.CONNECT_TIMEOUT, () -> {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                });
+        try {
+            SocketSettings.apply(channel);
+            long started = System.nanoTime();
+            channel.connect(address);
+            Metrics.getShared().upstreamConnect.recordNanos(System.nanoTime() - started);
+
+            String authority = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+            ByteBuffer request = ByteBuffer.wrap(("CONNECT " + authority + " HTTP/1.1\r\n" +
+                    "Host: " + authority + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+
+            ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_HEAD);
+            int headEnd;
+            while ((headEnd = indexOfHeadEnd(response)) < 0) {
+                if (!response.hasRemaining() || channel.read(response) < 0) {
+                    throw new IOException("Upstream proxy closed during CONNECT");
+                }
+            }
+            String statusLine = new String(response.array(), 0, response.position(), StandardCharsets.ISO_8859_1);
+            statusLine = statusLine.substring(0, statusLine.indexOf("\r\n"));
+            int space = statusLine.indexOf(' ');
+            if (space < 0 || !statusLine.startsWith("2", space + 1)) {
+                throw new IOException("Upstream refused CONNECT: " + statusLine);
+            }
+
+            response.flip();
+            response.position(headEnd + 4);
+            return new Tunnel(channel, response.slice());
+        } catch (IOException e) {
+            channel.close();
+            if (deadline.isExpired()) {
+                throw new SocketTimeoutException("No tunnel from upstream proxy within "
+                        + UpstreamConnectionPool.CONNECT_TIMEOUT + " ms");
+            }
+            throw e;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * @return index of the blank line ending the head in a buffer in fill mode, or -1
+     */
+    private static int indexOfHeadEnd(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        for (int i = 0; i + 3 < buffer.position(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
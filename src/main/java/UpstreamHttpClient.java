@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends plain HTTP requests through an upstream proxy over its pooled connections.
+ * HttpURLConnection keeps its own hidden connection cache, which cannot be
+ * bounded per upstream or measured, so requests are written here directly.
+ */
+public final class UpstreamHttpClient {
+
+    /**
+     * Longest an upstream may take to start its response once the request has been sent
+     */
+    static final long FIRST_BYTE_TIMEOUT = ProxyConfig.getLong("proxy.timeout.firstByteMillis", 30000);
+
+    private UpstreamHttpClient() {
+    }
+
+    /**
+     * Lets another thread abandon a request while it waits for the upstream
+     */
+    static final class Call {
+        private volatile UpstreamConnectionPool.Connection connection;
+        private volatile boolean cancelled;
+
+        /**
+         * Closes the connection the request is using, failing it with an IOException
+         */
+        void cancel() {
+            cancelled = true;
+            UpstreamConnectionPool.Connection current = connection;
+            if (current != null) {
+                close(current);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void use(UpstreamConnectionPool.Connection current) {
+            connection = current;
+            // Checked after publishing the connection, so cancel() either sees it or is seen here
+            if (cancelled) {
+                close(current);
+            }
+        }
+
+        private static void close(UpstreamConnectionPool.Connection current) {
+            try {
+                // Only the socket, the connection is discarded by the thread using it
+                current.socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Sends a request made up by the proxy itself and reads the response head
+     *
+     * @param upstream upstream proxy to send the request through
+     * @param method   GET or HEAD, which are safe to send again on a fresh connection
+     * @param url      absolute URL of the resource
+     * @param headers  request headers besides Host
+     * @return the response, which must be closed once its body has been read
+     * @throws IOException if the upstream cannot be reached or does not answer properly
+     */
+    public static UpstreamResponse execute(Upstream upstream, String method, URL url, List<String[]> headers)
+            throws IOException {
+        return execute(upstream, method, url, headers, null, null);
+    }
+
+    /**
+     * Forwards a client's request and reads the response head. The client's
+     * headers are passed on apart from hop-by-hop ones, and its body is streamed
+     * from the client to the upstream as it arrives.
+     *
+     * @param upstream upstream proxy to send the request through
+     * @param method   request method
+     * @param url      absolute URL of the resource
+     * @param headers  headers the proxy adds, sent before the client's
+     * @param client   parsed client request whose headers and body are forwarded, or null
+     * @param clientIn stream the rest of the client's body is read from
+     * @return the response, which must be closed once its body has been read
+     * @throws IOException if the upstream cannot be reached or does not answer properly
+     */
+    public static UpstreamResponse execute(Upstream upstream, String method, URL url, List<String[]> headers,
+                                           HttpRequestParser client, InputStream clientIn) throws IOException {
+        return execute(upstream, method, url, headers, client, clientIn, null);
+    }
+
+    /**
+     * Forwards a client's request and reads the response head, as above
+     *
+     * @param call lets another thread cancel the request, or null
+     */
+    static UpstreamResponse execute(Upstream upstream, String method, URL url, List<String[]> headers,
+                                    HttpRequestParser client, InputStream clientIn, Call call) throws IOException {
+        // The proxy's own validators and range replace any the client sent
+        boolean skipConditional = header(headers, "If-None-Match") || header(headers, "If-Modified-Since");
+        boolean skipRange = header(headers, "Range");
+        boolean replayable = isIdempotent(method) && (client == null || !client.hasBody());
+        while (true) {
+            UpstreamConnectionPool.Connection connection = upstream.getPool().acquire();
+            boolean headSent = false;
+            try {
+                if (call != null) {
+                    call.use(connection);
+                }
+                writeHead(connection.out, method, url, headers, client, skipConditional, skipRange);
+                headSent = true;
+                if (client != null && client.hasBody()) {
+                    client.copyBody(clientIn, connection.out);
+                }
+                connection.out.flush();
+                return readResponse(connection, method, call);
+            } catch (IOException e) {
+                connection.discard();
+                // The upstream may have dropped a pooled connection while it sat idle, try again
+                // on another one. A slow upstream is not retried, and neither is a request the
+                // upstream may already have acted on or whose body has been consumed.
+                if (!connection.isReused() || e instanceof SocketTimeoutException || (call != null && call.cancelled)
+                        || (client != null && client.isBodyStarted()) || (headSent && !replayable)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the response head, cancelling the call if it has not started within the first byte deadline
+     */
+    private static UpstreamResponse readResponse(UpstreamConnectionPool.Connection connection, String method,
+                                                 Call call) throws IOException {
+        Call deadlineCall = call != null ? call : new Call();
+        if (call == null) {
+            deadlineCall.use(connection);
+        }
+        TimingWheel.Timeout deadline = TimingWheel.getShared().schedule("first_byte", FIRST_BYTE_TIMEOUT,
+                deadlineCall::cancel);
+        try {
+            return UpstreamResponse.read(connection, method);
+        } catch (IOException e) {
+            if (deadline.isExpired()) {
+                throw new SocketTimeoutException("No response from upstream within " + FIRST_BYTE_TIMEOUT + " ms");
+            }
+            throw e;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    private static void writeHead(OutputStream out, String method, URL url, List<String[]> headers,
+                                  HttpRequestParser client, boolean skipConditional, boolean skipRange)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        // Proxies are sent the absolute URL, without any fragment
+        String target = url.toExternalForm();
+        int fragment = target.indexOf('#');
+        if (fragment >= 0) {
+            target = target.substring(0, fragment);
+        }
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getAuthority()).append("\r\n");
+        for (String[] header : headers) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (client != null) {
+            client.writeHeaders(out, false, skipConditional, skipRange);
+        }
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static boolean header(List<String[]> headers, String name) {
+        return RequestHandler.header(headers, name) != null;
+    }
+
+    /**
+     * @return whether sending the request twice has the same effect as sending it once
+     */
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE")
+                || method.equals("PUT") || method.equals("DELETE");
+    }
+}
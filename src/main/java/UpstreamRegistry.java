@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The upstream proxies requests are sent through, shared by the GET and CONNECT paths.
+ * Upstreams come from proxy.upstreams, a comma separated list of host:port.
+ * select() uses the power of two choices: it samples two available upstreams
+ * at random and takes the one with the better score, which steers load away
+ * from slow or failing upstreams without herding every request onto the
+ * single best one. A background health check connects to upstreams whose
+ * circuit is open and lets a probe request through as soon as one answers,
+ * and closes pooled connections that have sat idle too long.
+ */
+public final class UpstreamRegistry {
+
+    private static final UpstreamRegistry shared = new UpstreamRegistry(ProxyConfig.get("proxy.upstreams",
+            "proxy-main-entry:8085,proxy-main-entry:8086,proxy-main-entry:8087,proxy-main-entry:8089"));
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+
+    UpstreamRegistry(String upstreamList) {
+        for (String entry : upstreamList.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            upstreams.add(new Upstream(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        for (Upstream upstream : upstreams) {
+            registerMetrics(upstream);
+        }
+
+        long interval = ProxyConfig.getLong("proxy.upstream.healthCheckMillis", 10000);
+        if (interval > 0) {
+            Thread healthCheck = new Thread(() -> healthCheckLoop(interval), "upstream-health-check");
+            healthCheck.setDaemon(true);
+            healthCheck.start();
+        }
+    }
+
+    private static void registerMetrics(Upstream upstream) {
+        Metrics metrics = Metrics.getShared();
+        String label = "{upstream=\"" + upstream + "\"}";
+        UpstreamConnectionPool pool = upstream.getPool();
+        metrics.gauge("proxy_upstream_state" + label, "Circuit state of each upstream, 0 closed, 1 half-open, 2 open",
+                () -> upstream.getState() == Upstream.State.CLOSED ? 0 : upstream.getState() == Upstream.State.OPEN ? 2 : 1);
+        metrics.gauge("proxy_upstream_latency_seconds" + label, "Moving average of upstream response latency",
+                () -> upstream.getLatencyMillis() / 1000);
+        metrics.gauge("proxy_upstream_error_ratio" + label, "Moving average of the upstream failure rate",
+                upstream::getErrorRate);
+        metrics.gauge("proxy_upstream_in_flight" + label, "Requests currently sent through each upstream",
+                upstream::getInFlight);
+        metrics.gauge("proxy_upstream_pool_active" + label, "Pooled upstream connections lent to requests",
+                pool::getActiveCount);
+        metrics.gauge("proxy_upstream_pool_idle" + label, "Pooled upstream connections waiting for reuse",
+                pool::getIdleCount);
+        metrics.counter("proxy_upstream_pool_opened_total" + label, "Upstream connections opened by the pool",
+                pool.created::sum);
+        metrics.counter("proxy_upstream_pool_reused_total" + label, "Requests sent on a reused upstream connection",
+                pool.reused::sum);
+        metrics.counter("proxy_upstream_pool_waits_total" + label, "Requests that waited for a pooled connection",
+                pool.waits::sum);
+        metrics.counter("proxy_upstream_pool_wait_seconds_total" + label, "Time spent waiting for pooled connections",
+                () -> pool.waitNanos.sum() / 1e9);
+        metrics.counter("proxy_upstream_pool_wait_timeouts_total" + label,
+                "Requests that gave up waiting for a pooled connection", pool.waitTimeouts::sum);
+        metrics.counter("proxy_upstream_pool_idle_evictions_total" + label,
+                "Idle upstream connections closed by the pool", pool.idleEvictions::sum);
+    }
+
+    public static UpstreamRegistry getShared() {
+        return shared;
+    }
+
+    public List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    public int size() {
+        return upstreams.size();
+    }
+
+    /**
+     * Picks an upstream for the next attempt and marks the request as started on it
+     *
+     * @param tried upstreams already used for this request, skipped
+     * @return the upstream to use, or null when every untried upstream has its circuit open
+     */
+    public Upstream select(Collection<Upstream> tried) {
+        List<Upstream> candidates = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams) {
+            if (!tried.contains(upstream) && upstream.isAvailable()) {
+                candidates.add(upstream);
+            }
+        }
+
+        Upstream chosen = null;
+        while (chosen == null && !candidates.isEmpty()) {
+            Upstream first = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            Upstream pick = first;
+            if (candidates.size() > 1) {
+                Upstream second;
+                do {
+                    second = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+                } while (second == first);
+                if (second.score() < first.score()) {
+                    pick = second;
+                }
+            }
+            if (pick.tryAcquire(tried)) {
+                chosen = pick;
+            } else {
+                // Lost the half-open probe slot to another request
+                candidates.remove(pick);
+            }
+        }
+
+        if (chosen == null) {
+            // Fail fast rather than send to an upstream whose breaker is open
+            return null;
+        }
+        chosen.started();
+        return chosen;
+    }
+
+    /**
+     * Connects to each upstream with an open circuit, letting a probe through if it answers,
+     * and trims idle pooled connections
+     */
+    private void healthCheckLoop(long interval) {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Upstream upstream : upstreams) {
+                upstream.getPool().evictIdle();
+                if (upstream.getState() != Upstream.State.OPEN) {
+                    continue;
+                }
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(upstream.host, upstream.port), 2000);
+                    upstream.allowProbe();
+                } catch (IOException e) {
+                    // Still down, the circuit stays open
+                }
+            }
+        }
+    }
+
+    /**
+     * @return two lines per upstream, its state, latency, error rate and load, then its connection pool
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Upstream upstream : upstreams) {
+            description.append(String.format("  %-30s %-9s latency %.1f ms, errors %.0f%%, in flight %d%n",
+                    upstream, upstream.getState(), upstream.getLatencyMillis(),
+                    upstream.getErrorRate() * 100, upstream.getInFlight()));
+            description.append("    ").append(upstream.getPool().describe()).append(System.lineSeparator());
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response read from an upstream proxy over a pooled connection.
+ * The body stream ends exactly where the response ends. Closing the response
+ * returns the connection to its pool when the body was read to the end and
+ * the upstream allows reuse, and closes the connection otherwise.
+ */
+public class UpstreamResponse implements Closeable {
+
+    /**
+     * Longest status or header line accepted from an upstream
+     */
+    private static final int MAX_LINE = 8192;
+
+    /**
+     * Most header lines accepted in one response
+     */
+    private static final int MAX_HEADERS = 200;
+
+    final int status;
+    final String reason;
+
+    /**
+     * Header names and values in the order received
+     */
+    final List<String[]> headers;
+
+    private final InputStream body;
+    private final UpstreamConnectionPool.Connection connection;
+
+    /**
+     * Whether the upstream will accept another request on the connection
+     */
+    private final boolean persistent;
+    private final boolean hasBody;
+    private boolean closed;
+
+    private UpstreamResponse(int status, String reason, List<String[]> headers, InputStream body,
+                             UpstreamConnectionPool.Connection connection, boolean persistent) {
+        this.status = status;
+        this.reason = reason;
+        this.headers = headers;
+        this.body = body;
+        this.connection = connection;
+        this.persistent = persistent;
+        this.hasBody = !(body instanceof ContentLengthInputStream) || !((ContentLengthInputStream) body).isComplete();
+    }
+
+    /**
+     * Reads a response head and sets up its body stream
+     *
+     * @param connection connection the request was sent on
+     * @param method     request method, a response to HEAD has no body
+     * @return the response, its body not yet read
+     * @throws IOException if the upstream closes the connection or sends a malformed head
+     */
+    static UpstreamResponse read(UpstreamConnectionPool.Connection connection, String method) throws IOException {
+        InputStream in = connection.in;
+        while (true) {
+            String statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("Upstream closed the connection without responding");
+            }
+            // e.g. "HTTP/1.1 200 OK", the reason phrase may be missing
+            int firstSpace = statusLine.indexOf(' ');
+            if (!statusLine.startsWith("HTTP/") || firstSpace < 0 || statusLine.length() < firstSpace + 4) {
+                throw new IOException("Malformed status line from upstream: " + statusLine);
+            }
+            String version = statusLine.substring(0, firstSpace);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine.substring(firstSpace + 1, firstSpace + 4));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line from upstream: " + statusLine);
+            }
+            String reason = statusLine.length() > firstSpace + 5 ? statusLine.substring(firstSpace + 5) : "";
+            List<String[]> headers = readHeaders(in);
+
+            if (status >= 100 && status < 200) {
+                // Interim responses such as 100 Continue are followed by the real one
+                continue;
+            }
+
+            boolean persistent = version.equals("HTTP/1.0")
+                    ? RequestHandler.hasToken(headers, "Connection", "keep-alive")
+                    || RequestHandler.hasToken(headers, "Proxy-Connection", "keep-alive")
+                    : !RequestHandler.hasToken(headers, "Connection", "close")
+                    && !RequestHandler.hasToken(headers, "Proxy-Connection", "close");
+
+            InputStream body;
+            if (method.equals("HEAD") || status == 204 || status == 304) {
+                body = new ContentLengthInputStream(in, 0);
+            } else if (RequestHandler.hasToken(headers, "Transfer-Encoding", "chunked")) {
+                body = new ChunkedInputStream(in);
+            } else {
+                String contentLength = RequestHandler.header(headers, "Content-Length");
+                if (contentLength != null) {
+                    try {
+                        body = new ContentLengthInputStream(in, Long.parseLong(contentLength.trim()));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length from upstream: " + contentLength);
+                    }
+                } else {
+                    // The body runs until the upstream closes the connection
+                    body = in;
+                    persistent = false;
+                }
+            }
+            return new UpstreamResponse(status, reason, headers, body, connection, persistent);
+        }
+    }
+
+    private static List<String[]> readHeaders(InputStream in) throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        String line;
+        while (!(line = requireLine(in)).isEmpty()) {
+            if (headers.size() == MAX_HEADERS) {
+                throw new IOException("Too many headers from upstream");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed header from upstream: " + line);
+            }
+            headers.add(new String[]{line.substring(0, colon).trim(), line.substring(colon + 1).trim()});
+        }
+        return headers;
+    }
+
+    /**
+     * Reads one line ending in LF, dropping the line ending
+     *
+     * @return the line, or null if the stream ended before any byte was read
+     * @throws EOFException if the stream ends in the middle of a line
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed in the middle of a line");
+            }
+            if (line.size() == MAX_LINE) {
+                throw new IOException("Line from upstream longer than " + MAX_LINE + " bytes");
+            }
+            line.write(b);
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String requireLine(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            throw new EOFException("Upstream closed the connection inside the response head");
+        }
+        return line;
+    }
+
+    /**
+     * @return the first value of the header, or null if absent
+     */
+    public String getHeader(String name) {
+        return RequestHandler.header(headers, name);
+    }
+
+    /**
+     * @return the header parsed as an HTTP date in milliseconds, 0 if absent or invalid
+     */
+    public long getDateHeader(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the declared body length, or -1 if the upstream did not send one
+     */
+    public long getContentLength() {
+        String value = getHeader("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return whether the response carries a body at all
+     */
+    public boolean hasBody() {
+        return hasBody;
+    }
+
+    /**
+     * @return whether the upstream sent the body chunked
+     */
+    public boolean isChunked() {
+        return body instanceof ChunkedInputStream;
+    }
+
+    /**
+     * @return whether the body has no length and ends when the upstream closes the connection
+     */
+    public boolean isCloseDelimited() {
+        return !(body instanceof ContentLengthInputStream) && !(body instanceof ChunkedInputStream);
+    }
+
+    /**
+     * @return the body, with the transfer coding removed
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    private boolean isBodyComplete() {
+        if (body instanceof ContentLengthInputStream) {
+            return ((ContentLengthInputStream) body).isComplete();
+        }
+        if (body instanceof ChunkedInputStream) {
+            return ((ChunkedInputStream) body).isComplete();
+        }
+        return false;
+    }
+
+    /**
+     * Hands the connection back to its pool, or closes it when it cannot carry another request
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (persistent && isBodyComplete()) {
+            connection.release();
+        } else {
+            connection.discard();
+        }
+    }
+}
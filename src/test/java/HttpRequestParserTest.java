@@ -0,0 +1,238 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestParserTest {
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Hands out one byte per read, as if every byte arrived in its own TCP segment
+     */
+    private static InputStream trickle(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    /**
+     * Reads until the head is parsed
+     */
+    private static HttpRequestParser.Status readHead(HttpRequestParser parser, InputStream in) throws IOException {
+        HttpRequestParser.Status status = parser.parse();
+        while (status == HttpRequestParser.Status.INCOMPLETE) {
+            if (parser.read(in) < 0) {
+                return status;
+            }
+            status = parser.parse();
+        }
+        return status;
+    }
+
+    private static String body(HttpRequestParser parser, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.copyBody(in, out);
+        return out.toString(StandardCharsets.ISO_8859_1.name());
+    }
+
+    private static String forwardedHeaders(HttpRequestParser parser) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.writeHeaders(out, true, false);
+        return out.toString(StandardCharsets.ISO_8859_1.name());
+    }
+
+    @Test
+    void parsesPipelinedRequestsInTurn() throws IOException {
+        InputStream in = stream("GET http://a.example/ HTTP/1.1\r\nHost: a.example\r\n\r\n"
+                + "POST http://b.example/form HTTP/1.1\r\nHost: b.example\r\nContent-Length: 3\r\n\r\nabc"
+                + "GET http://c.example/ HTTP/1.0\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("GET", parser.getMethod());
+        assertEquals("http://a.example/", parser.getTarget());
+        assertTrue(parser.isHttp11());
+        assertFalse(parser.hasBody());
+        assertTrue(parser.getBufferedCount() > 0);
+
+        parser.next();
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("POST", parser.getMethod());
+        assertEquals("b.example", parser.getHeader("host"));
+        assertEquals(3, parser.getContentLength());
+        assertEquals("abc", body(parser, in));
+        assertTrue(parser.isBodyComplete());
+
+        parser.next();
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("http://c.example/", parser.getTarget());
+        assertEquals("HTTP/1.0", parser.getVersion());
+        assertEquals(0, parser.getBufferedCount());
+    }
+
+    @Test
+    void parsesRequestSplitAcrossReads() throws IOException {
+        String head = "PUT http://example.com/upload HTTP/1.1\r\nHost: example.com\r\n"
+                + "Connection: keep-alive, X-Hop\r\nX-Hop: 1\r\nContent-Length: 11\r\n\r\n";
+        InputStream in = trickle(head + "hello world");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("PUT", parser.getMethod());
+        assertEquals(head.length(), parser.getHeadLength());
+        assertTrue(parser.hasToken("Connection", "KEEP-ALIVE"));
+        assertEquals("hello world", body(parser, in));
+        assertEquals("Host: example.com\r\nContent-Length: 11\r\n", forwardedHeaders(parser));
+    }
+
+    @Test
+    void forwardsChunkedBodyWithExtensionsAndTrailers() throws IOException {
+        String chunks = "4;name=value\r\nWiki\r\n5 ; a=\"b;c\"\r\npedia\r\n0;last\r\n"
+                + "Expires: never\r\nX-Checksum: 1234\r\n\r\n";
+        String request = "POST http://example.com/ HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n" + chunks
+                + "GET http://example.com/next HTTP/1.1\r\n\r\n";
+
+        for (InputStream in : new InputStream[]{stream(request), trickle(request)}) {
+            HttpRequestParser parser = new HttpRequestParser();
+            assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+            assertTrue(parser.isChunked());
+            assertEquals(-1, parser.getContentLength());
+            assertEquals(chunks, body(parser, in));
+
+            parser.next();
+            assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+            assertEquals("http://example.com/next", parser.getTarget());
+        }
+    }
+
+    @Test
+    void rejectsMalformedChunkSize() throws IOException {
+        InputStream in = stream("POST http://example.com/ HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertThrows(IOException.class, () -> body(parser, in));
+    }
+
+    @Test
+    void chunkedOverridesContentLength() throws IOException {
+        InputStream in = stream("POST http://example.com/ HTTP/1.1\r\nContent-Length: 100\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertTrue(parser.isChunked());
+        assertEquals(-1, parser.getContentLength());
+        assertEquals("Transfer-Encoding: chunked\r\n", forwardedHeaders(parser));
+        assertEquals("3\r\nabc\r\n0\r\n\r\n", body(parser, in));
+    }
+
+    @Test
+    void rejectsAmbiguousBodyLength() throws IOException {
+        String[] heads = {
+                "Content-Length: 5\r\nContent-Length: 6\r\n",
+                "Content-Length: 5, 5\r\n",
+                "Content-Length: -1\r\n",
+                "Transfer-Encoding: chunked, gzip\r\n",
+                "Transfer-Encoding: gzip\r\nContent-Length: 5\r\n"
+        };
+        for (String head : heads) {
+            InputStream in = stream("POST http://example.com/ HTTP/1.1\r\n" + head + "\r\n");
+            assertEquals(HttpRequestParser.Status.BAD_REQUEST, readHead(new HttpRequestParser(), in), head);
+        }
+
+        InputStream repeated = stream("POST http://example.com/ HTTP/1.1\r\nContent-Length: 2\r\n"
+                + "Content-Length: 2\r\n\r\nok");
+        HttpRequestParser parser = new HttpRequestParser();
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, repeated));
+        assertEquals("ok", body(parser, repeated));
+    }
+
+    @Test
+    void acceptsBareLineFeeds() throws IOException {
+        InputStream in = stream("\nPOST http://example.com/ HTTP/1.1\nHost: example.com\nX-Empty:\n"
+                + "Transfer-Encoding: chunked\n\n2\nok\n0\nX-Trailer: 1\n\n"
+                + "GET http://example.com/ HTTP/1.1\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("POST", parser.getMethod());
+        assertEquals("example.com", parser.getHeader("Host"));
+        assertEquals("", parser.getHeader("X-Empty"));
+        assertEquals("2\nok\n0\nX-Trailer: 1\n\n", body(parser, in));
+
+        parser.next();
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("GET", parser.getMethod());
+    }
+
+    @Test
+    void rejectsMalformedHeads() throws IOException {
+        String[] requests = {
+                "GET  HTTP/1.1\r\n\r\n",
+                "GET http://example.com/ HTTP/2.0\r\n\r\n",
+                "G(T http://example.com/ HTTP/1.1\r\n\r\n",
+                "GET http://example.com/ HTTP/1.1\r\nHost : example.com\r\n\r\n",
+                "GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n folded\r\n\r\n"
+        };
+        for (String request : requests) {
+            assertEquals(HttpRequestParser.Status.BAD_REQUEST, readHead(new HttpRequestParser(), stream(request)),
+                    request);
+        }
+    }
+
+    @Test
+    void rejectsHeadLargerThanBuffer() throws IOException {
+        StringBuilder request = new StringBuilder("GET http://example.com/ HTTP/1.1\r\n");
+        while (request.length() <= HttpRequestParser.MAX_HEAD_BYTES) {
+            request.append("X-Filler: 0123456789abcdef0123456789abcdef\r\n");
+        }
+        request.append("\r\n");
+        assertEquals(HttpRequestParser.Status.TOO_LARGE,
+                readHead(new HttpRequestParser(), stream(request.toString())));
+    }
+
+    @Test
+    void keepsHeadWhileLargeBodyIsRead() throws IOException {
+        int length = HttpRequestParser.MAX_HEAD_BYTES * 5 + 7;
+        StringBuilder body = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        String head = "POST http://example.com/big HTTP/1.1\r\nHost: example.com\r\nX-Request-Id: 42\r\n"
+                + "Content-Length: " + length + "\r\n\r\n";
+        InputStream in = stream(head + body + "GET http://example.com/after HTTP/1.1\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (!parser.isBodyComplete()) {
+            parser.transferBody(out, 1000);
+            assertTrue(parser.hasRoom() || parser.getBufferedCount() > 0);
+            parser.read(in);
+            // The headers are still readable partway through the body
+            assertEquals("42", parser.getHeader("X-Request-Id"));
+            assertEquals("http://example.com/big", parser.getTarget());
+        }
+        assertEquals(body.toString(), out.toString(StandardCharsets.ISO_8859_1.name()));
+        assertEquals(head.length() + (long) length, parser.getRequestBytes());
+
+        parser.next();
+        assertEquals(HttpRequestParser.Status.COMPLETE, readHead(parser, in));
+        assertEquals("http://example.com/after", parser.getTarget());
+    }
+}